@@ -0,0 +1,40 @@
+package net.twentyonesolutions.m2pg;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks with the options of the JMH command line and the GC profiler, so that each result
+ * includes gc.alloc.rate.norm, the number of bytes that are allocated per operation.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+
+        CommandLineOptions cmdOptions = new CommandLineOptions(args);
+
+        if (cmdOptions.shouldHelp() || cmdOptions.shouldList() || cmdOptions.shouldListProfilers()) {
+            // the default main of JMH prints the help and the lists
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        // -prof gc may be passed as well, e.g. with options of the profiler
+        boolean hasGcProfiler = cmdOptions.getProfilers()
+                .stream()
+                .anyMatch(p -> p.getKlass().equals("gc") || p.getKlass().equals(GCProfiler.class.getName()));
+
+        OptionsBuilder builder = new OptionsBuilder();
+        builder.parent(cmdOptions);
+
+        if (!hasGcProfiler)
+            builder.addProfiler(GCProfiler.class);
+
+        Options options = builder.build();
+
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,94 @@
+package net.twentyonesolutions.m2pg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Flattens and populates a large config as Config.fromFile does after the templates were merged.  The
+ * config has sections of mappings like the schema, table, and column mappings, and a tenth of the values
+ * refer to other values with %placeholders%.
+ *
+ * flattenAndPopulate replaces the placeholders in the nested maps of its input, so the input is copied
+ * before each invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConfigBenchmark {
+
+    static final int KEYS_PER_SECTION = 100;
+
+    @Param({ "1000", "10000" })
+    int keys;
+
+    Map<String, Object> template;
+    Map<String, Object> config;
+
+
+    @Setup(Level.Trial)
+    public void setupTemplate() {
+
+        template = new HashMap<>();
+        template.put("name", "benchmark");
+        template.put("source", "mssql");
+
+        for (int s = 0; s < keys / KEYS_PER_SECTION; s++) {
+
+            Map<String, Object> section = new HashMap<>();
+
+            for (int k = 0; k < KEYS_PER_SECTION; k++) {
+
+                String value = (k % 10 == 0)
+                        ? "%name%_%source%_" + k
+                        : "SourceColumn" + s + "_" + k;
+
+                section.put("TargetColumn" + k, value);
+            }
+
+            template.put("section_" + s, section);
+        }
+    }
+
+
+    @Setup(Level.Invocation)
+    public void setupConfig() {
+        config = copy(template);
+    }
+
+
+    static Map<String, Object> copy(Map<String, Object> map) {
+
+        Map<String, Object> result = new HashMap<>(map.size() * 2);
+
+        for (Map.Entry<String, Object> e : map.entrySet()) {
+
+            Object v = e.getValue();
+            result.put(e.getKey(), (v instanceof Map) ? copy((Map<String, Object>) v) : v);
+        }
+
+        return result;
+    }
+
+
+    @Benchmark
+    public Map<String, Object> flattenAndPopulate() {
+        return Util.flattenAndPopulate(config);
+    }
+}
@@ -0,0 +1,98 @@
+package net.twentyonesolutions.m2pg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generates the DDL of 50,000 synthetic columns with the type mappings and column defaults of the
+ * ms-sql-server template.  buildColumnDdlLine reports the time per column and getDdl the time per table.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DdlBenchmark {
+
+    static final int COLUMNS = 50_000;
+
+    @Param({ "", "camel_to_snake_case" })
+    String columnTransform;
+
+    Config config;
+    Table table;
+
+
+    @Setup
+    public void setup() throws IOException {
+
+        config = Config.fromFile("ms-sql-server");
+        config.config.put("column_transform", columnTransform);
+
+        table = new Table("dbo.WideTable");
+
+        for (int i = 0; i < COLUMNS; i++) {
+
+            Column col;
+
+            switch (i % 8) {
+                case 0:
+                    col = new Column("OrderId" + i, "int", i, false, 0, 10, i == 0, false, null);
+                    break;
+                case 1:
+                    col = new Column("CustomerName" + i, "nvarchar", i, true, 50, 0, false, false, "(N'')");
+                    break;
+                case 2:
+                    col = new Column("CreatedAt" + i, "datetime", i, false, 0, 0, false, false, "(getdate())");
+                    break;
+                case 3:
+                    col = new Column("IsActive" + i, "bit", i, false, 0, 0, false, false, "((1))");
+                    break;
+                case 4:
+                    col = new Column("Amount" + i, "decimal", i, true, 0, 18, false, false, "((0))");
+                    break;
+                case 5:
+                    col = new Column("Notes" + i, "ntext", i, true, -1, 0, false, false, null);
+                    break;
+                case 6:
+                    col = new Column("RowGuid" + i, "uniqueidentifier", i, false, 0, 0, false, false, "(newid())");
+                    break;
+                default:
+                    col = new Column("FullName" + i, "nvarchar", i, true, 101, 0, false, true, "([FirstName]+' '+[LastName])");
+            }
+
+            table.columns.add(col);
+        }
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(COLUMNS)
+    public void buildColumnDdlLine(Blackhole blackhole) {
+
+        for (Column col : table.columns)
+            blackhole.consume(config.buildColumnDdlLine(col));
+    }
+
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public String getDdl() {
+        return table.getDdl(config);
+    }
+}
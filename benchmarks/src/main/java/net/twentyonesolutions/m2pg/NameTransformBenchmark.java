@@ -0,0 +1,48 @@
+package net.twentyonesolutions.m2pg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts table and column names with the camel_to_snake_case transform, which is applied to every
+ * column name of every table when the DDL is generated and when the rows are copied.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class NameTransformBenchmark {
+
+    static final String[] NAMES = {
+         "BusinessEntityID"
+        ,"FirstName"
+        ,"ModifiedDate"
+        ,"rowguid"
+        ,"AddressLine1"
+        ,"Product Category"
+        ,"SalesOrderDetail"
+        ,"already_snake_case"
+    };
+
+
+    @Benchmark
+    @OperationsPerInvocation(8)
+    public void convertCamelToSnakeCase(Blackhole blackhole) {
+
+        for (String name : NAMES)
+            blackhole.consume(Util.convertCamelToSnakeCase(name));
+    }
+}
@@ -0,0 +1,138 @@
+package net.twentyonesolutions.m2pg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.postgresql.jdbc.TimestampUtils;
+
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Binds batches of rows as InsertWriter does for each row that is read from the source with dml.method
+ * insert, i.e. with the binder of ColumnCodec for the type of each value, e.g. setLong(index, value).
+ *
+ * The benchmark runs without a database, so bindRows binds to a stub statement and measures the cost of
+ * the writer, and convertValues converts the values to the text of the parameters with the conversions
+ * of pgjdbc, e.g. TimestampUtils for timestamps, to show the cost of the driver.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowBindingBenchmark {
+
+    static final int ROWS = 1000;
+
+    static final int[] COLUMN_TYPES = { Types.INTEGER, Types.BIGINT, Types.NUMERIC, Types.TIMESTAMP, Types.VARCHAR, Types.BIT, Types.VARCHAR };
+
+    Object[][] rows;
+    InsertWriter writer;
+    TimestampUtils timestampUtils;
+
+
+    @Setup
+    public void setup() {
+
+        rows = new Object[ROWS][];
+
+        long time = Timestamp.valueOf("2021-03-14 15:09:26.535").getTime();
+
+        for (int i = 0; i < ROWS; i++) {
+
+            rows[i] = new Object[]{
+                     i + 1
+                    ,1_000_000_000L * i
+                    ,new BigDecimal(i).movePointLeft(2).add(new BigDecimal("12345.6789"))
+                    ,new Timestamp(time + i * 60_000L)
+                    ,"customer name " + i
+                    ,i % 2 == 0
+                    ,null
+            };
+        }
+
+        PreparedStatement statInsert = (PreparedStatement) Proxy.newProxyInstance(
+                 PreparedStatement.class.getClassLoader()
+                ,new Class[]{ PreparedStatement.class }
+                ,(proxy, method, args) -> method.getName().equals("executeBatch") ? new int[0] : null);
+
+        writer = new InsertWriter(statInsert, COLUMN_TYPES);
+
+        TimeZone timeZone = TimeZone.getDefault();
+        timestampUtils = new TimestampUtils(false, () -> timeZone);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void bindRows() throws SQLException {
+
+        for (Object[] row : rows)
+            writer.write(row);
+    }
+
+
+    /**
+     * Converts the values to the text that pgjdbc sends for the parameters of setObject() with the types
+     */
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void convertValues(Blackhole blackhole) {
+
+        for (Object[] row : rows) {
+
+            for (int i = 0; i < COLUMN_TYPES.length; i++) {
+
+                Object value = row[i];
+
+                if (value == null) {
+                    blackhole.consume(COLUMN_TYPES[i]);
+                    continue;
+                }
+
+                switch (COLUMN_TYPES[i]) {
+
+                    case Types.INTEGER:
+                        blackhole.consume(Integer.toString((Integer) value));
+                        break;
+
+                    case Types.BIGINT:
+                        blackhole.consume(Long.toString((Long) value));
+                        break;
+
+                    case Types.NUMERIC:
+                        blackhole.consume(value.toString());
+                        break;
+
+                    case Types.TIMESTAMP:
+                        blackhole.consume(timestampUtils.toString(null, (Timestamp) value));
+                        break;
+
+                    case Types.BIT:
+                        blackhole.consume((Boolean) value ? "1" : "0");
+                        break;
+
+                    default:
+                        blackhole.consume(value.toString());
+                }
+            }
+        }
+    }
+}
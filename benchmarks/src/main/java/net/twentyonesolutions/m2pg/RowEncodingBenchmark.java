@@ -0,0 +1,87 @@
+package net.twentyonesolutions.m2pg;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encodes batches of rows into the COPY format as CopyWriter does for each row that is read from the source.
+ * gc.alloc.rate.norm of the GC profiler is the number of bytes that are allocated per row.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RowEncodingBenchmark {
+
+    static final int ROWS = 1000;
+
+    static final int[] COLUMN_TYPES = { Types.INTEGER, Types.BIGINT, Types.NUMERIC, Types.TIMESTAMP, Types.VARCHAR, Types.BIT, Types.VARCHAR };
+    static final String[] TARGET_TYPES = { "int4", "int8", "numeric", "timestamptz", "varchar", "bool", "text" };
+    static final String[] COLUMN_NAMES = { "id", "amount_cents", "amount", "created_at", "name", "is_active", "notes" };
+
+    @Param({ "text", "binary" })
+    String format;
+
+    Object[][] rows;
+    CopyEncoder encoder;
+    CopyBuffer buffer;
+
+
+    @Setup
+    public void setup() {
+
+        rows = new Object[ROWS][];
+
+        long time = Timestamp.valueOf("2021-03-14 15:09:26.535").getTime();
+
+        for (int i = 0; i < ROWS; i++) {
+
+            rows[i] = new Object[]{
+                     i + 1
+                    ,1_000_000_000L * i
+                    ,new BigDecimal(i).movePointLeft(2).add(new BigDecimal("12345.6789"))
+                    ,new Timestamp(time + i * 60_000L)
+                    ,"customer name " + i
+                    ,i % 2 == 0
+                    ,null
+            };
+        }
+
+        encoder = format.equals("binary")
+                ? CopyBinaryEncoder.create(TARGET_TYPES, COLUMN_TYPES, COLUMN_NAMES, new StringBuilder())
+                : new CopyTextEncoder(COLUMN_TYPES);
+
+        buffer = new CopyBuffer(64 * 1024);
+    }
+
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public int encodeRows() throws SQLException {
+
+        buffer.reset();
+
+        for (Object[] row : rows)
+            encoder.encodeRow(row, buffer);
+
+        return buffer.size();
+    }
+}
@@ -0,0 +1,212 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tunes the number of connections that copy at the same time with dml.threads adaptive.  The run starts
+ * with dml.adaptive.min_threads, and every dml.adaptive.interval_ms the controller compares the rows per
+ * second that were written in the interval, and the mean time of the commits in the interval, with the
+ * previous interval, and resizes the source and target limits of the TaskScheduler with AIMD:
+ *   - the mean commit time is above dml.adaptive.target_commit_ms: decrease by DECREASE_FACTOR
+ *   - the rate fell by more than MIN_GAIN after an increase: decrease by DECREASE_FACTOR
+ *   - the rate did not rise by MIN_GAIN after an increase: undo the increase and hold for PROBE_INTERVALS
+ *   - otherwise: increase by one up to dml.adaptive.max_threads, if tasks are waiting for a connection
+ *
+ * A smaller limit does not interrupt the tasks that copy, the next tasks wait until enough connections
+ * were returned.  Each decision is written to the log, and the number of threads with the highest rate
+ * is written when the run completes, so that it can be set in dml.threads for the next runs.
+ */
+public class AdaptiveConcurrency implements AutoCloseable {
+
+    static final double DECREASE_FACTOR = 0.75;
+
+    // the relative change of the rate that is considered a gain or a loss
+    static final double MIN_GAIN = 0.05;
+
+    // the number of intervals to hold after an increase that did not raise the rate
+    static final int PROBE_INTERVALS = 6;
+
+    final ConnectionPool.Limit source;
+    final ConnectionPool.Limit target;
+    final int sourceMax;
+    final int targetMax;
+    final int minThreads;
+    final int maxThreads;
+    final long intervalMillis;
+    final long targetCommitMillis;
+    final ProgressReporter progress;
+    final Path logPath;
+    final ScheduledExecutorService timer;
+
+    // the state of the timer thread
+    int threads;
+    long lastNanos = System.nanoTime();
+    long lastRows = 0;
+    long lastCommitNanos = 0;
+    long lastCommits = 0;
+    double increasedFrom = -1;      // the rate before the last increase, or -1 if the last decision was not an increase
+    int held = 0;
+    double bestRate = 0;
+    int bestThreads;
+
+
+    /**
+     * @param config
+     * @param scheduler - the scheduler whose limits are resized
+     * @param progress - the counters of the run
+     * @param logPath - the log file of the run
+     */
+    public AdaptiveConcurrency(Config config, TaskScheduler scheduler, ProgressReporter progress, Path logPath) {
+
+        this.source = config.getPool(config.source).concurrency;
+        this.target = config.getPool(config.target).concurrency;
+        this.sourceMax = scheduler.sourceConcurrency;
+        this.targetMax = scheduler.targetConcurrency;
+        this.maxThreads = Math.max(sourceMax, targetMax);
+        this.minThreads = Math.min(Math.max(config.getDmlInt("adaptive.min_threads", 2), 1), maxThreads);
+        this.intervalMillis = Math.max(config.getDmlInt("adaptive.interval_ms", 10_000), 100);
+        this.targetCommitMillis = Math.max(config.getDmlInt("adaptive.target_commit_ms", 2000), 1);
+        this.progress = progress;
+        this.logPath = logPath;
+
+        this.threads = minThreads;
+        this.bestThreads = minThreads;
+        resize();
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "m2pg-adaptive");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        timer.scheduleAtFixedRate(this::adjust, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    void resize(){
+
+        source.resize(Math.min(threads, sourceMax));
+        target.resize(Math.min(threads, targetMax));
+    }
+
+
+    /**
+     * Measures the last interval and resizes the limits.  Runs on the timer thread only.
+     */
+    synchronized void adjust(){
+
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1e9;
+        lastNanos = now;
+
+        long rows = progress.getRowsWritten();
+        long commitNanos = progress.getPhaseNanos("commit");
+        long commits = progress.getPhaseCount("commit");
+
+        double rate = (rows - lastRows) / seconds;
+        double commitMillis = (commits > lastCommits) ? (commitNanos - lastCommitNanos) / 1e6 / (commits - lastCommits) : 0;
+
+        lastRows = rows;
+        lastCommitNanos = commitNanos;
+        lastCommits = commits;
+
+        if (rate > bestRate){
+            bestRate = rate;
+            bestThreads = threads;
+        }
+
+        int previous = threads;
+        String reason;
+
+        if (commitMillis > targetCommitMillis){
+            threads = Math.max((int) (threads * DECREASE_FACTOR), minThreads);
+            reason = String.format("commit time above %,d ms", targetCommitMillis);
+            increasedFrom = -1;
+        }
+        else if (rate == 0){
+            reason = "no rows were written";
+            increasedFrom = -1;
+        }
+        else if (increasedFrom > 0 && rate < increasedFrom * (1 - MIN_GAIN)){
+            threads = Math.max((int) (threads * DECREASE_FACTOR), minThreads);
+            reason = String.format("rate fell from %,.0f rows/s", increasedFrom);
+            increasedFrom = -1;
+        }
+        else if (increasedFrom > 0 && rate < increasedFrom * (1 + MIN_GAIN)){
+            threads = Math.max(threads - 1, minThreads);
+            reason = String.format("rate did not rise from %,.0f rows/s", increasedFrom);
+            increasedFrom = -1;
+            held = PROBE_INTERVALS;
+        }
+        else if (held > 0){
+            held--;
+            reason = "holding";
+        }
+        else if (threads >= maxThreads){
+            reason = "at max_threads";
+            increasedFrom = -1;
+        }
+        else if (!source.hasQueuedThreads() && !target.hasQueuedThreads()){
+            reason = "no task is waiting for a connection";
+            increasedFrom = -1;
+        }
+        else {
+            threads++;
+            reason = "increase";
+            increasedFrom = rate;
+        }
+
+        if (threads != previous)
+            resize();
+
+        String logentry = String.format("-- %tT adaptive: %,.0f rows/s, %.0f ms per commit, %d -> %d threads, %s"
+                , System.currentTimeMillis(), rate, commitMillis, previous, threads, reason);
+
+        if (threads != previous)
+            System.out.println("\n" + logentry);
+
+        log(logentry);
+    }
+
+
+    void log(String logentry){
+
+        try {
+            Util.log(logPath, logentry);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Returns a description of the limits for the log
+     */
+    public String describe(){
+        return String.format("adaptive %d to %d threads", minThreads, maxThreads);
+    }
+
+
+    /**
+     * Stops the timer and writes the number of threads with the highest rate to the log
+     */
+    @Override
+    public void close() {
+
+        timer.shutdownNow();
+
+        synchronized (this) {
+
+            String logentry = String.format("-- adaptive: highest rate %,.0f rows/s with %d threads, set dml.threads to %d to reuse it"
+                    , bestRate, bestThreads, bestThreads);
+
+            System.out.println("\n" + logentry);
+            log(logentry);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package net.twentyonesolutions.m2pg;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * The settings of dml.bulk_load, which trades the durability of the target tables during the copy for
+ * speed.  The tables are created UNLOGGED, or are switched with ALTER TABLE ... SET UNLOGGED, so the rows
+ * are not written to the WAL, the sessions that copy the rows turn off synchronous_commit and run with
+ * session_replication_role replica so that user triggers and foreign key triggers do not fire, and each
+ * table is switched back with ALTER TABLE ... SET LOGGED once its copy is committed.
+ *
+ * An UNLOGGED table is truncated by the crash recovery of the server, so with bulk_load a table that was
+ * not completed is copied again from scratch on --resume.  A table whose copy failed is switched back to
+ * LOGGED, or the log reports that it was left UNLOGGED if the switch failed too.
+ */
+public class BulkLoad {
+
+    public static boolean isEnabled(Config config) {
+        return (boolean) config.dml.getOrDefault("bulk_load", false);
+    }
+
+
+    /**
+     * Switches the table to UNLOGGED if it is a logged table, e.g. one that was created without bulk_load.
+     * If the switch fails, e.g. because a logged table references the table, then the table is copied as
+     * a logged table.
+     *
+     * @return - true if the table is UNLOGGED
+     */
+    public static boolean setUnlogged(Connection conTgt, String tgtTable, StringBuilder log) {
+
+        try {
+
+            if (isUnlogged(conTgt, tgtTable))
+                return true;
+
+            try (Statement stat = conTgt.createStatement()) {
+                stat.execute("ALTER TABLE " + tgtTable + " SET UNLOGGED;");
+            }
+
+            log.append(" /* bulk_load: switched the table to UNLOGGED */\n");
+
+            return true;
+        }
+        catch (SQLException ex) {
+            log.append(" /* bulk_load: failed to switch the table to UNLOGGED, copying it as a logged table: ").append(ex.getMessage()).append(" */\n");
+            return false;
+        }
+    }
+
+
+    /**
+     * Switches the table to LOGGED.  The statement is committed with synchronous_commit on, so that the
+     * table is not marked as completed in the checkpoint before the switch is durable.
+     *
+     * @return - the nanoseconds that the switch took, which include writing the table to the WAL unless
+     *           the wal_level of the server is minimal
+     */
+    public static long setLogged(Connection conTgt, String tgtTable) throws SQLException {
+
+        long tp = System.nanoTime();
+
+        try (Statement stat = conTgt.createStatement()) {
+
+            stat.execute("BEGIN TRANSACTION;");
+            stat.execute("SET LOCAL synchronous_commit = on;");
+            stat.execute("ALTER TABLE " + tgtTable + " SET LOGGED;");
+            stat.execute("COMMIT;");
+        }
+
+        return System.nanoTime() - tp;
+    }
+
+
+    static boolean isUnlogged(Connection conTgt, String tgtTable) throws SQLException {
+
+        try (PreparedStatement stat = conTgt.prepareStatement("SELECT relpersistence FROM pg_class WHERE oid = to_regclass(?)")) {
+
+            stat.setString(1, tgtTable);
+
+            try (ResultSet rs = stat.executeQuery()) {
+                return rs.next() && "u".equals(rs.getString(1));
+            }
+        }
+    }
+
+
+    /**
+     * The session settings of a target connection that copies rows with bulk_load.  Declare the session
+     * after the connection in a try-with-resources statement, so that the settings are reset before the
+     * connection is returned to the pool.
+     */
+    public static class Session implements AutoCloseable {
+
+        final Connection conTgt;
+        boolean isSynchronousCommitOff = false;
+        boolean isReplicaRole = false;
+
+
+        /**
+         * @param conTgt - the target connection, outside of a transaction
+         * @param enabled - false to leave the session unchanged
+         * @param log - the log of the table, where failed settings are reported
+         */
+        public Session(Connection conTgt, boolean enabled, StringBuilder log) {
+
+            this.conTgt = conTgt;
+
+            if (!enabled)
+                return;
+
+            try (Statement stat = conTgt.createStatement()) {
+
+                stat.execute("SET synchronous_commit = off;");
+                isSynchronousCommitOff = true;
+
+                // requires superuser, or in Postgres 15 and later the SET privilege on the parameter
+                stat.execute("SET session_replication_role = replica;");
+                isReplicaRole = true;
+            }
+            catch (SQLException ex) {
+                synchronized (log) {
+                    log.append(" /* bulk_load: failed to set ")
+                        .append(isSynchronousCommitOff ? "session_replication_role, triggers remain enabled: " : "synchronous_commit: ")
+                        .append(ex.getMessage()).append(" */\n");
+                }
+            }
+        }
+
+
+        @Override
+        public void close() throws SQLException {
+
+            if (!isSynchronousCommitOff && !isReplicaRole)
+                return;
+
+            try (Statement stat = conTgt.createStatement()) {
+
+                if (isSynchronousCommitOff)
+                    stat.execute("RESET synchronous_commit;");
+
+                if (isReplicaRole)
+                    stat.execute("RESET session_replication_role;");
+            }
+        }
+    }
+}
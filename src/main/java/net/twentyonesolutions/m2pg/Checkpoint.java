@@ -0,0 +1,309 @@
+package net.twentyonesolutions.m2pg;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records the progress of the dml command in a JSON file so that an interrupted run can be resumed with
+ * "dml --resume".  Tables that were completed are skipped on resume.  Tables that are copied in key order
+ * with intermediate commits, see dml.checkpoint.commit_rows, record the last committed key of each range
+ * and are continued after that key instead of being truncated.
+ *
+ * The file is rewritten with Util.writeAtomically() outside of the lock of the state, so that the copy
+ * threads do not wait for the file while they record their progress.  A commit of rows after which a
+ * resumed run would continue waits until the file includes it, and the concurrent commits share a write.
+ * The other changes, e.g. a table that started or failed, are written by a background flusher every
+ * FLUSH_INTERVAL_MS, so that a run with thousands of tables does not rewrite the file for each of them,
+ * and by close().
+ */
+public class Checkpoint implements AutoCloseable {
+
+    static final String RUNNING = "running";
+    static final String COMPLETED = "completed";
+    static final String FAILED = "failed";
+
+    static final long FLUSH_INTERVAL_MS = 1000;
+
+    static final Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    final Path path;
+    final Map<String, TableState> tables = new LinkedHashMap<>();
+
+    long version = 0;                   // the number of changes of the state, guarded by this
+    long savedVersion = 0;              // the version in the file, guarded by fileLock
+    final Object fileLock = new Object();
+    final ScheduledExecutorService flusher;
+
+
+    /**
+     * @param path - the checkpoint file, or null to keep the state only in memory
+     */
+    public Checkpoint(Path path) {
+
+        this.path = path;
+
+        if (path != null){
+
+            this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "m2pg-checkpoint");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+            flusher.scheduleWithFixedDelay(this::flush, FLUSH_INTERVAL_MS, FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        else {
+            this.flusher = null;
+        }
+    }
+
+
+    /**
+     * Returns the path of the checkpoint file, dml.checkpoint.file, or [name].checkpoint if it is not set
+     */
+    public static Path getPath(Config config) {
+
+        String filename = (String) config.dml.getOrDefault("checkpoint.file", "");
+        if (filename.trim().isEmpty())
+            filename = config.name + ".checkpoint";
+
+        return Paths.get(filename);
+    }
+
+
+    /**
+     * Reads the checkpoint file of a previous run, or returns an empty checkpoint if the file does not exist
+     */
+    public static Checkpoint load(Path path) throws IOException {
+
+        Checkpoint result = new Checkpoint(path);
+
+        if (!Files.exists(path))
+            return result;
+
+        String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        JsonElement tables = new JsonParser().parse(text).getAsJsonObject().get("tables");
+
+        if (tables != null){
+            Map<String, TableState> loaded = gson.fromJson(tables, new TypeToken<Map<String, TableState>>(){}.getType());
+            result.tables.putAll(loaded);
+        }
+
+        return result;
+    }
+
+
+    public synchronized TableState getTable(String tableName) {
+        return tables.get(tableName);
+    }
+
+
+    /**
+     * Starts the copy of a table from scratch
+     *
+     * @param tableName
+     * @param keyColumn - the column that orders the rows for intermediate commits, or null
+     * @param ranges - the predicates of the ranges, or a single null predicate if the table is not split
+     */
+    public synchronized TableState start(String tableName, String keyColumn, List<String> ranges) {
+
+        TableState result = new TableState();
+        result.status = RUNNING;
+        result.keyColumn = keyColumn;
+
+        for (String where : ranges){
+            Range range = new Range();
+            range.where = where;
+            result.ranges.add(range);
+        }
+
+        tables.put(tableName, result);
+        version++;
+
+        return result;
+    }
+
+
+    /**
+     * Records that the rows of the range up to lastKey were committed, and waits until the file includes
+     * it, since a resumed run continues after the last key in the file
+     */
+    public void commit(TableState table, Range range, long rows, long lastKey) {
+
+        long change;
+
+        synchronized (this) {
+            table.rows += rows;
+            range.lastKey = lastKey;
+            change = ++version;
+        }
+
+        save(change);
+    }
+
+
+    /**
+     * Records that all of the rows of the range were committed.  Waits until the file includes it if rows of
+     * the range were committed before, since a resumed run would otherwise continue after that key.
+     */
+    public void complete(TableState table, Range range, long rows) {
+
+        long change;
+
+        synchronized (this) {
+            table.rows += rows;
+            range.completed = true;
+            change = ++version;
+        }
+
+        if (range.lastKey != null)
+            save(change);
+    }
+
+
+    /**
+     * Records that all of the ranges of the table were committed
+     */
+    public synchronized void complete(TableState table) {
+
+        table.status = COMPLETED;
+        version++;
+    }
+
+
+    /**
+     * Records that the table failed
+     *
+     * @param table
+     * @param isReset - true if the committed rows were removed, so that the table is copied from scratch on resume
+     */
+    public synchronized void fail(TableState table, boolean isReset) {
+
+        table.status = FAILED;
+
+        if (isReset){
+            table.rows = 0;
+            for (Range range : table.ranges){
+                range.lastKey = null;
+                range.completed = false;
+            }
+        }
+
+        version++;
+    }
+
+
+    /**
+     * Writes the checkpoint file unless it already includes the change, e.g. if a concurrent commit wrote
+     * it.  Errors are reported but do not stop the copy, since the checkpoint is only needed if the run is
+     * interrupted.
+     *
+     * @param change - the version of the state after the change
+     */
+    void save(long change) {
+
+        if (path == null)
+            return;
+
+        synchronized (fileLock) {
+
+            if (savedVersion >= change)
+                return;
+
+            String text;
+            long current;
+
+            synchronized (this) {
+                Map<String, Object> json = new LinkedHashMap<>();
+                json.put("tables", tables);
+
+                text = gson.toJson(json);
+                current = version;
+            }
+
+            try {
+                Util.writeAtomically(path, text);
+                savedVersion = current;
+            }
+            catch (IOException ex) {
+                System.err.println("Failed to write checkpoint file " + path + ": " + ex.toString());
+            }
+        }
+    }
+
+
+    /**
+     * Writes the changes that are not in the file yet
+     */
+    void flush() {
+
+        long current;
+        synchronized (this) {
+            current = version;
+        }
+
+        save(current);
+    }
+
+
+    /**
+     * Stops the background flusher and writes the changes that are not in the file yet
+     */
+    @Override
+    public void close() {
+
+        if (flusher != null)
+            flusher.shutdown();
+
+        flush();
+    }
+
+
+    /**
+     * The copy state of one table
+     */
+    static class TableState {
+
+        String status;
+        long rows;
+        String keyColumn;
+        List<Range> ranges = new ArrayList<>();
+
+        /**
+         * Returns true if rows of the table were committed, so that it can not be truncated on resume
+         */
+        boolean hasProgress() {
+            return ranges.stream().anyMatch(range -> range.completed || range.lastKey != null);
+        }
+    }
+
+
+    /**
+     * The copy state of a range of a table
+     */
+    static class Range {
+
+        String where;
+        Long lastKey;
+        boolean completed;
+
+        transient long uncommitted;     // rows that were written since the last commit
+        transient Long uncommittedKey;  // the key of the last row that was written since the last commit
+    }
+}
@@ -30,6 +30,34 @@ public class Column implements Comparable<Column> {
         return this.type.contains("CHAR");
     }
 
+    /**
+     * Returns true for the large object types of SQL Server, i.e. varbinary(max), varchar(max), and
+     * nvarchar(max), which have a maxLength of -1, and the deprecated image, text, and ntext.  The values of
+     * these columns are streamed from the source, see LobValue.
+     */
+    public boolean isLob(){
+
+        switch (this.type){
+            case "IMAGE":
+            case "TEXT":
+            case "NTEXT":
+                return true;
+            case "VARBINARY":
+            case "VARCHAR":
+            case "NVARCHAR":
+                return this.maxLength == -1;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if isLob() and the values are bytes rather than characters
+     */
+    public boolean isBinaryLob(){
+        return isLob() && (this.type.equals("IMAGE") || this.type.equals("VARBINARY"));
+    }
+
     /**
      * Compares this object with the specified object for order.  Returns a
      * negative integer, zero, or a positive integer as this object is less
@@ -0,0 +1,278 @@
+package net.twentyonesolutions.m2pg;
+
+import java.math.BigDecimal;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.function.Supplier;
+
+/**
+ * Reads the values of a column from the source ResultSet and binds them to the target PreparedStatement
+ * with the typed accessors of the column, e.g. getLong() and setLong(), instead of with getObject() and
+ * setObject(), which inspect the type of the column or of the value for every value.
+ *
+ * The readers of a table are resolved once per ResultSet by resolve(), from the source JDBC type of the
+ * column, or from the vendor type name for types with a specialized reader, e.g. the SQL Server
+ * uniqueidentifier.  The binders are resolved once per writer by getBinders(), from the target JDBC type
+ * after jdbc_type_mapping was applied.  Types without a codec are read with getObject() and bound with
+ * setObject().
+ *
+ * This removes the type dispatch of the drivers for each value, but not the boxing: the values of the
+ * primitive types are still passed to the writers as boxed objects, since the COPY encoders, the pipeline,
+ * and the SkipWriter work with rows of values.
+ */
+public class ColumnCodec {
+
+    public interface Reader {
+        Object read(ResultSet rs, int i) throws SQLException;
+    }
+
+    public interface Binder {
+        void bind(PreparedStatement stat, int i, Object value) throws SQLException;
+    }
+
+    static final Reader GENERIC_READER = ResultSet::getObject;
+
+    // readers by source JDBC type, a new reader for each column since some readers keep state
+    static final Map<Integer, Supplier<Reader>> READERS = new HashMap<>();
+
+    // readers by vendor type name, which take precedence over READERS
+    static final Map<String, Supplier<Reader>> VENDOR_READERS = new HashMap<>();
+
+    // binders by target JDBC type
+    static final Map<Integer, Binder> BINDERS = new HashMap<>();
+
+    static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    static {
+
+        Supplier<Reader> readBoolean = () -> (rs, i) -> {
+            boolean v = rs.getBoolean(i);
+            return rs.wasNull() ? null : Boolean.valueOf(v);
+        };
+        Supplier<Reader> readShort = () -> (rs, i) -> {
+            short v = rs.getShort(i);
+            return rs.wasNull() ? null : Short.valueOf(v);
+        };
+        Supplier<Reader> readString = () -> ResultSet::getString;
+        Supplier<Reader> readBytes = () -> ResultSet::getBytes;
+
+        READERS.put(Types.BIT, readBoolean);
+        READERS.put(Types.BOOLEAN, readBoolean);
+        READERS.put(Types.TINYINT, readShort);
+        READERS.put(Types.SMALLINT, readShort);
+        READERS.put(Types.INTEGER, () -> (rs, i) -> {
+            int v = rs.getInt(i);
+            return rs.wasNull() ? null : Integer.valueOf(v);
+        });
+        READERS.put(Types.BIGINT, () -> (rs, i) -> {
+            long v = rs.getLong(i);
+            return rs.wasNull() ? null : Long.valueOf(v);
+        });
+        READERS.put(Types.REAL, () -> (rs, i) -> {
+            float v = rs.getFloat(i);
+            return rs.wasNull() ? null : Float.valueOf(v);
+        });
+        READERS.put(Types.FLOAT, () -> (rs, i) -> {
+            double v = rs.getDouble(i);
+            return rs.wasNull() ? null : Double.valueOf(v);
+        });
+        READERS.put(Types.DOUBLE, READERS.get(Types.FLOAT));
+        READERS.put(Types.DECIMAL, () -> ResultSet::getBigDecimal);
+        READERS.put(Types.NUMERIC, () -> ResultSet::getBigDecimal);
+
+        for (int type : new int[]{ Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR, Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR })
+            READERS.put(type, readString);
+
+        for (int type : new int[]{ Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY })
+            READERS.put(type, readBytes);
+
+        // the calendars are in the default time zone, as with getObject(), and are reused for all of the rows
+        READERS.put(Types.DATE, () -> {
+            Calendar cal = Calendar.getInstance(TimeZone.getDefault());
+            return (rs, i) -> rs.getDate(i, cal);
+        });
+        READERS.put(Types.TIME, () -> {
+            Calendar cal = Calendar.getInstance(TimeZone.getDefault());
+            return (rs, i) -> rs.getTime(i, cal);
+        });
+        READERS.put(Types.TIMESTAMP, () -> {
+            Calendar cal = Calendar.getInstance(TimeZone.getDefault());
+            return (rs, i) -> rs.getTimestamp(i, cal);
+        });
+
+        // SQL Server
+        VENDOR_READERS.put("uniqueidentifier", () -> (rs, i) -> formatGuid(rs.getBytes(i)));
+
+        for (int type : new int[]{ Types.BIT, Types.BOOLEAN })
+            putBinder(type, Boolean.class, PreparedStatement::setBoolean);
+
+        for (int type : new int[]{ Types.TINYINT, Types.SMALLINT })
+            putBinder(type, Number.class, (stat, i, v) -> stat.setShort(i, v.shortValue()));
+
+        putBinder(Types.INTEGER, Number.class, (stat, i, v) -> stat.setInt(i, v.intValue()));
+        putBinder(Types.BIGINT, Number.class, (stat, i, v) -> stat.setLong(i, v.longValue()));
+        putBinder(Types.REAL, Number.class, (stat, i, v) -> stat.setFloat(i, v.floatValue()));
+
+        for (int type : new int[]{ Types.FLOAT, Types.DOUBLE })
+            putBinder(type, Number.class, (stat, i, v) -> stat.setDouble(i, v.doubleValue()));
+
+        for (int type : new int[]{ Types.DECIMAL, Types.NUMERIC })
+            putBinder(type, BigDecimal.class, PreparedStatement::setBigDecimal);
+
+        for (int type : new int[]{ Types.CHAR, Types.VARCHAR, Types.LONGVARCHAR, Types.NCHAR, Types.NVARCHAR, Types.LONGNVARCHAR })
+            putBinder(type, String.class, PreparedStatement::setString);
+
+        for (int type : new int[]{ Types.BINARY, Types.VARBINARY, Types.LONGVARBINARY })
+            putBinder(type, byte[].class, PreparedStatement::setBytes);
+
+        putBinder(Types.DATE, Date.class, PreparedStatement::setDate);
+        putBinder(Types.TIME, Time.class, PreparedStatement::setTime);
+        putBinder(Types.TIMESTAMP, Timestamp.class, PreparedStatement::setTimestamp);
+    }
+
+    final Reader reader;
+
+
+    public ColumnCodec(Reader reader) {
+        this.reader = reader;
+    }
+
+
+    /**
+     * Returns the codecs of the columns of the ResultSet
+     *
+     * @param rsMetaData - the metadata of the source ResultSet
+     * @param columnTypes - the JDBC types of the columns after jdbc_type_mapping was applied, for the number of columns
+     * @param lobs - the LobValue of each LOB column that is streamed, or null, see LobValue.create()
+     */
+    public static ColumnCodec[] resolve(ResultSetMetaData rsMetaData, int[] columnTypes, LobValue[] lobs) throws SQLException {
+
+        ColumnCodec[] result = new ColumnCodec[columnTypes.length];
+
+        for (int i = 1; i <= columnTypes.length; i++){
+
+            Reader reader;
+
+            if (lobs != null && lobs[i - 1] != null){
+                LobValue lob = lobs[i - 1];
+                reader = (rs, index) -> lob;
+            }
+            else {
+                reader = getReader(rsMetaData.getColumnType(i), rsMetaData.getColumnTypeName(i));
+            }
+
+            result[i - 1] = new ColumnCodec(reader);
+        }
+
+        return result;
+    }
+
+
+    interface Setter<T> {
+        void set(PreparedStatement stat, int i, T value) throws SQLException;
+    }
+
+
+    /**
+     * Registers a binder that binds values of valueClass with the setter, and other values, e.g. values of
+     * a column that jdbc_type_mapping maps to another type, with setObject()
+     */
+    static <T> void putBinder(int tgtType, Class<T> valueClass, Setter<T> setter){
+
+        BINDERS.put(tgtType, (stat, i, v) -> {
+            if (valueClass.isInstance(v))
+                setter.set(stat, i, valueClass.cast(v));
+            else
+                stat.setObject(i, v, tgtType);
+        });
+    }
+
+
+    static Reader getReader(int srcType, String srcTypeName){
+
+        Supplier<Reader> supplier = (srcTypeName == null) ? null : VENDOR_READERS.get(srcTypeName.toLowerCase());
+
+        if (supplier == null)
+            supplier = READERS.get(srcType);
+
+        return (supplier == null) ? GENERIC_READER : supplier.get();
+    }
+
+
+    static Binder getBinder(int tgtType){
+
+        return BINDERS.getOrDefault(tgtType, (stat, i, v) -> stat.setObject(i, v, tgtType));
+    }
+
+
+    /**
+     * Returns the binders of the target JDBC types, for writers that do not read the source themselves
+     */
+    public static Binder[] getBinders(int[] columnTypes){
+
+        Binder[] result = new Binder[columnTypes.length];
+
+        for (int i = 0; i < columnTypes.length; i++)
+            result[i] = getBinder(columnTypes[i]);
+
+        return result;
+    }
+
+
+    public Object read(ResultSet rs, int i) throws SQLException {
+        return reader.read(rs, i);
+    }
+
+
+    /**
+     * Returns the SQL Server uniqueidentifier in its 16 byte format as the String that getString() returns,
+     * i.e. upper case, with the first three groups in little-endian byte order
+     */
+    static String formatGuid(byte[] b){
+
+        if (b == null)
+            return null;
+
+        if (b.length != 16)
+            throw new IllegalArgumentException("uniqueidentifier value has " + b.length + " bytes instead of 16");
+
+        char[] c = new char[36];
+        int pos = 0;
+
+        for (int i = 3; i >= 0; i--)
+            pos = writeHex(b[i], c, pos);
+        c[pos++] = '-';
+        for (int i = 5; i >= 4; i--)
+            pos = writeHex(b[i], c, pos);
+        c[pos++] = '-';
+        for (int i = 7; i >= 6; i--)
+            pos = writeHex(b[i], c, pos);
+        c[pos++] = '-';
+        for (int i = 8; i <= 9; i++)
+            pos = writeHex(b[i], c, pos);
+        c[pos++] = '-';
+        for (int i = 10; i <= 15; i++)
+            pos = writeHex(b[i], c, pos);
+
+        return new String(c);
+    }
+
+
+    static int writeHex(byte v, char[] c, int pos){
+
+        c[pos++] = HEX_DIGITS[(v >> 4) & 0x0f];
+        c[pos++] = HEX_DIGITS[v & 0x0f];
+
+        return pos;
+    }
+}
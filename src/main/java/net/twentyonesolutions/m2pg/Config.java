@@ -6,7 +6,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -15,6 +14,7 @@ import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.UnaryOperator;
 
 
@@ -32,6 +32,19 @@ public class Config {
     public static final String DATA_TYPE = "DATA_TYPE";
     public static final String CHARACTER_MAXIMUM_LENGTH = "CHARACTER_MAXIMUM_LENGTH";
     public static final String NUMERIC_PRECISION = "NUMERIC_PRECISION";
+    public static final String ROW_COUNT = "ROW_COUNT";
+    public static final String TOTAL_BYTES = "TOTAL_BYTES";
+    public static final String INDEX_NAME = "INDEX_NAME";
+    public static final String INDEX_TYPE = "INDEX_TYPE";
+    public static final String KEY_ORDINAL = "KEY_ORDINAL";
+    public static final String IS_DESCENDING = "IS_DESCENDING";
+    public static final String IS_INCLUDED = "IS_INCLUDED";
+    public static final String CONSTRAINT_NAME = "CONSTRAINT_NAME";
+    public static final String REFERENCED_TABLE_SCHEMA = "REFERENCED_TABLE_SCHEMA";
+    public static final String REFERENCED_TABLE_NAME = "REFERENCED_TABLE_NAME";
+    public static final String REFERENCED_COLUMN_NAME = "REFERENCED_COLUMN_NAME";
+    public static final String DELETE_ACTION = "DELETE_ACTION";
+    public static final String UPDATE_ACTION = "UPDATE_ACTION";
 
     public static final String DEFAULT_CONFIG_FILENAME = "Migrate2Postgres.conf";
 
@@ -45,6 +58,8 @@ public class Config {
 
     String name, source, target, timezone;
 
+    final Map<String, ConnectionPool> pools = new ConcurrentHashMap<>();
+
 
     public Config(Map<String, Object> config){
 
@@ -80,14 +95,47 @@ public class Config {
             throw new IllegalArgumentException("DML section is not found in config (did you forget to use a template?)");
 
         String[] keys = new String[]{
-             "execute.after_all"
+             "adaptive.interval_ms"
+            ,"adaptive.max_threads"
+            ,"adaptive.min_threads"
+            ,"adaptive.target_commit_ms"
+            ,"batch_size"
+            ,"bulk_load"
+            ,"checkpoint.commit_rows"
+            ,"checkpoint.file"
+            ,"copy_format"
+            ,"dead_letter_dir"
+            ,"execute.after_all"
             ,"execute.before_all"
             ,"execute.recommended"
+            ,"fetch.budget_kb"
+            ,"fetch.max_rows"
+            ,"fetch.min_rows"
+            ,"metrics.textfile"
+            ,"method"
             ,"on_error"
+            ,"pipeline.encoders"
+            ,"pipeline.ring_size"
+            ,"progress.ewma_seconds"
+            ,"progress.interval_ms"
             ,"select"
             ,"source_column_quote_prefix"
             ,"source_column_quote_suffix"
+            ,"split.min_rows"
+            ,"split.threads"
+            ,"source_concurrency"
+            ,"stage.chunk_mb"
+            ,"stage.compression"
+            ,"stage.dir"
+            ,"stage.load_threads"
+            ,"sync.state_file"
+            ,"table_size_query"
+            ,"target_concurrency"
+            ,"verify.range_size"
+            ,"verify.sample_percent"
+            ,"verify.seed"
             ,"threads"
+            ,"virtual_threads"
         };
 
         // populate result with config value or default of empty string
@@ -103,9 +151,42 @@ public class Config {
             }
         }
 
+        result.put("bulk_load", Util.isSqlTrue(result.get("bulk_load")));      // convert to boolean
+
+        Object virtualThreads = result.get("virtual_threads");
+        result.put("virtual_threads", "".equals(virtualThreads) || Util.isSqlTrue(virtualThreads));     // default true
+
+        String method = result.get("method").toString();
+        if (!method.isEmpty() && !method.equalsIgnoreCase("insert") && !method.equalsIgnoreCase("copy"))
+            throw new IllegalArgumentException("[dml.method] has an invalid value: " + method + " (valid values are insert, copy)");
+
+        String copyFormat = result.get("copy_format").toString();
+        if (!copyFormat.isEmpty() && !copyFormat.equalsIgnoreCase("text") && !copyFormat.equalsIgnoreCase("binary"))
+            throw new IllegalArgumentException("[dml.copy_format] has an invalid value: " + copyFormat + " (valid values are text, binary)");
+
+        String onError = result.get("on_error").toString();
+        if (!onError.isEmpty() && !onError.equalsIgnoreCase("rollback") && !onError.equalsIgnoreCase("skip"))
+            throw new IllegalArgumentException("[dml.on_error] has an invalid value: " + onError + " (valid values are rollback, skip)");
+
+        String compression = result.get("stage.compression").toString();
+        if (!compression.isEmpty() && !compression.equalsIgnoreCase("gzip") && !compression.equalsIgnoreCase("zstd") && !compression.equalsIgnoreCase("none"))
+            throw new IllegalArgumentException("[dml.stage.compression] has an invalid value: " + compression + " (valid values are gzip, zstd, none)");
+
         mapSrc = (Map)config.get(prefix + "jdbc_type_mapping");
         result.put("jdbc_type_mapping", getCaseInsensitiveMap(mapSrc, uppercaseValue));
 
+        mapSrc = (Map)config.get(prefix + "fetch.sizes");
+        result.put("fetch.sizes", getCaseInsensitiveMap(mapSrc));
+
+        mapSrc = (Map)config.get(prefix + "split.columns");
+        result.put("split.columns", getCaseInsensitiveMap(mapSrc));
+
+        mapSrc = (Map)config.get(prefix + "sync.key_columns");
+        result.put("sync.key_columns", getCaseInsensitiveMap(mapSrc));
+
+        mapSrc = (Map)config.get(prefix + "sync.watermark_columns");
+        result.put("sync.watermark_columns", getCaseInsensitiveMap(mapSrc));
+
         this.dml = result;
     }
 
@@ -120,6 +201,10 @@ public class Config {
 
         String[] keys = new String[]{
              "drop_schema"
+            ,"post_load"
+            ,"post_load_memory_mb"
+            ,"post_load_parallel_workers"
+            ,"post_load_threads"
         };
 
         for (String k : keys){
@@ -127,6 +212,7 @@ public class Config {
         }
 
         result.put("drop_schema", Util.isSqlTrue(result.get("drop_schema")));       // convert to boolean
+        result.put("post_load", Util.isSqlTrue(result.get("post_load")));
 
         mapSrc = (Map)config.get(prefix + "sql_type_mapping");
         result.put("sql_type_mapping", getCaseInsensitiveMap(mapSrc, uppercaseValue));
@@ -192,10 +278,13 @@ public class Config {
             Map connection = new TreeMap(String.CASE_INSENSITIVE_ORDER);
             connection.put("connectionString", connProps.get("connectionString"));
 
+            Map pool = (Map)((Map)connProps).getOrDefault("pool", Collections.EMPTY_MAP);
+            connection.put("pool", pool);
+
             Properties props = new Properties();
             for (Map.Entry<String, String> prop : connProps.entrySet()){
 
-                if (prop.getKey().equals("connectionString"))
+                if (prop.getKey().equals("connectionString") || prop.getKey().equals("pool"))
                     continue;
 
                 props.put(prop.getKey(), prop.getValue());
@@ -287,16 +376,96 @@ public class Config {
     }
 
 
+    /**
+     * Returns a connection from the pool of the named connection.  Closing the connection returns it to the pool.
+     *
+     * @param connectionName - a key of the connections config
+     * @return
+     * @throws SQLException
+     */
     public Connection connect(String connectionName) throws SQLException {
+        return getPool(connectionName).getConnection();
+    }
 
-        Map<String, Object> connInfo = (Map<String, Object>) connections.get(connectionName);
 
-        String connString = (String)connInfo.get("connectionString");
-        Properties props = (Properties)connInfo.get("properties");
+    /**
+     * Returns the pool of the named connection, which is created on first use
+     */
+    public ConnectionPool getPool(String connectionName) {
 
-        Connection result = DriverManager.getConnection(connString, props);
+        return pools.computeIfAbsent(connectionName.toLowerCase(), k -> {
 
-        return result;
+            Map<String, Object> connInfo = (Map<String, Object>) connections.get(connectionName);
+
+            if (connInfo == null)
+                throw new IllegalArgumentException("Connection " + connectionName + " is not found in config");
+
+            String connString = (String)connInfo.get("connectionString");
+            Properties props = (Properties)connInfo.get("properties");
+
+            return new ConnectionPool(connectionName, connString, props, (Map<String, Object>)connInfo.get("pool"));
+        });
+    }
+
+
+    /**
+     * Closes the connection pools and returns their statistics
+     */
+    public String closeConnections() {
+
+        StringBuilder sb = new StringBuilder();
+
+        for (ConnectionPool pool : pools.values()){
+            pool.close();
+            sb.append("-- ").append(pool).append("\n");
+        }
+
+        return sb.toString();
+    }
+
+
+    /**
+     * Returns the value of the dml setting as an int, or defaultValue if the setting is empty or invalid
+     *
+     * @param key - the key of the setting without the "dml." prefix, e.g. "batch_size"
+     * @param defaultValue
+     * @return
+     */
+    public int getDmlInt(String key, int defaultValue){
+        return getInt(this.dml, "dml.", key, defaultValue);
+    }
+
+
+    /**
+     * Returns the value of the ddl setting as an int, or defaultValue if the setting is empty or invalid
+     *
+     * @param key - the key of the setting without the "ddl." prefix, e.g. "post_load_threads"
+     * @param defaultValue
+     * @return
+     */
+    public int getDdlInt(String key, int defaultValue){
+        return getInt(this.ddl, "ddl.", key, defaultValue);
+    }
+
+
+    static int getInt(Map<String, Object> section, String prefix, String key, int defaultValue){
+
+        Object arg = section.get(key);
+
+        if (arg instanceof Number)
+            return ((Number) arg).intValue();
+
+        if (arg instanceof String && !((String) arg).isEmpty()){
+
+            try {
+                return Integer.parseInt((String) arg);
+            }
+            catch (NumberFormatException ex){
+                System.err.println("Failed to parse value of [" + prefix + key + "]");
+            }
+        }
+
+        return defaultValue;
     }
 
 
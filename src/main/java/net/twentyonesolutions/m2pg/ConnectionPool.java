@@ -0,0 +1,360 @@
+package net.twentyonesolutions.m2pg;
+
+import org.postgresql.core.BaseConnection;
+import org.postgresql.core.TransactionState;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of connections for one of the named connections in the config.  Closing a connection that was
+ * returned by getConnection() returns it to the pool, after its session state was reset, instead of
+ * closing the physical connection.
+ *
+ * The pool settings are read from the optional "pool" struct of the connection:
+ *   max_size           - the maximum number of connections that can be open at the same time, 0 for no limit
+ *   max_wait           - seconds to wait for a connection when max_size connections are in use
+ *   validation_timeout - seconds to wait for the validation of an idle connection before it is reused
+ *   reset_query        - SQL that is executed when a connection is returned, by default DISCARD ALL for
+ *                        PostgreSQL, so that the prepared statements and portals of a task are released
+ *
+ * The TaskScheduler limits the connections that are in use with setConcurrency(), which unlike max_size
+ * waits for a connection without a timeout, since the tasks of a run wait for their turn.  With dml.threads
+ * adaptive the limit is resized during the run, see AdaptiveConcurrency.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    final String name;
+    final String connectionString;
+    final Properties properties;
+
+    final int maxSize;
+    final long maxWaitSeconds;
+    final int validationTimeout;
+    final String resetQuery;
+
+    final Semaphore permits;
+    volatile Limit concurrency;
+    final Deque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+    final AtomicInteger opened = new AtomicInteger();
+    final AtomicInteger borrowed = new AtomicInteger();
+    final AtomicInteger active = new AtomicInteger();
+
+    volatile boolean closed = false;
+
+
+    public ConnectionPool(String name, String connectionString, Properties properties, Map<String, Object> settings) {
+
+        this.name = name;
+        this.connectionString = connectionString;
+        this.properties = properties;
+
+        this.maxSize = getInt(settings, "max_size", 0);
+        this.maxWaitSeconds = getInt(settings, "max_wait", 600);
+        this.validationTimeout = getInt(settings, "validation_timeout", 5);
+        this.resetQuery = (String) settings.getOrDefault("reset_query", connectionString.startsWith("jdbc:postgresql:") ? "DISCARD ALL" : "");
+
+        this.permits = (maxSize > 0) ? new Semaphore(maxSize, true) : null;
+    }
+
+
+    static int getInt(Map<String, Object> settings, String key, int defaultValue){
+
+        Object value = settings.get(key);
+
+        if (value instanceof Number)
+            return ((Number) value).intValue();
+
+        if (value instanceof String && !((String) value).isEmpty())
+            return Integer.parseInt((String) value);
+
+        return defaultValue;
+    }
+
+
+    /**
+     * Limits the connections that are in use at the same time to the number of permits, 0 for no limit
+     */
+    public void setConcurrency(int permits){
+        this.concurrency = (permits > 0) ? new Limit(permits) : null;
+    }
+
+
+    /**
+     * Returns an idle connection after it was validated, or a new connection if none is idle.  Blocks
+     * until a permit of setConcurrency() is available, and then for up to max_wait seconds if max_size
+     * connections are in use.
+     */
+    public Connection getConnection() throws SQLException {
+
+        if (closed)
+            throw new SQLException("Connection pool " + name + " is closed");
+
+        Semaphore concurrency = this.concurrency;
+
+        if (concurrency != null){
+            try {
+                concurrency.acquire();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection to " + name, ex);
+            }
+        }
+
+        if (permits != null){
+
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(maxWaitSeconds, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException ex) {
+
+                if (concurrency != null)
+                    concurrency.release();
+
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while waiting for a connection to " + name, ex);
+            }
+
+            if (!acquired){
+
+                if (concurrency != null)
+                    concurrency.release();
+
+                throw new SQLException(String.format("Timed out after %d seconds waiting for a connection to %s with pool max_size %d", maxWaitSeconds, name, maxSize));
+            }
+        }
+
+        try {
+
+            Connection conn;
+            while ((conn = idle.pollFirst()) != null){
+
+                if (isValid(conn))
+                    break;
+
+                closeQuietly(conn);
+            }
+
+            if (conn == null){
+                conn = DriverManager.getConnection(connectionString, properties);
+                opened.incrementAndGet();
+            }
+
+            borrowed.incrementAndGet();
+            active.incrementAndGet();
+
+            return (Connection) Proxy.newProxyInstance(
+                     Connection.class.getClassLoader()
+                    ,new Class[]{ Connection.class }
+                    ,new PooledConnection(conn, concurrency)
+            );
+        }
+        catch (SQLException | RuntimeException ex) {
+
+            if (permits != null)
+                permits.release();
+
+            if (concurrency != null)
+                concurrency.release();
+
+            throw ex;
+        }
+    }
+
+
+    boolean isValid(Connection conn){
+
+        try {
+            return conn.isValid(validationTimeout);
+        }
+        catch (SQLException ex) {
+            return false;
+        }
+    }
+
+
+    void release(Connection conn, Semaphore concurrency){
+
+        active.decrementAndGet();
+
+        try {
+            if (!closed && reset(conn))
+                idle.offerFirst(conn);
+            else
+                closeQuietly(conn);
+        }
+        finally {
+            if (permits != null)
+                permits.release();
+
+            // the permit of the semaphore that was in effect when the connection was borrowed
+            if (concurrency != null)
+                concurrency.release();
+        }
+    }
+
+
+    /**
+     * Resets the session state so that the next task gets a clean connection.  Open transactions, e.g.
+     * of a task that failed before it could COMMIT or ROLLBACK, are rolled back.
+     *
+     * @return - true if the connection can be reused
+     */
+    boolean reset(Connection conn){
+
+        try {
+
+            if (conn.isClosed())
+                return false;
+
+            if (!conn.getAutoCommit()){
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            else if (conn.isWrapperFor(BaseConnection.class)){
+
+                // the transactions of the tool are started with BEGIN statements, which JDBC does not track
+                if (conn.unwrap(BaseConnection.class).getTransactionState() != TransactionState.IDLE){
+                    try (Statement stat = conn.createStatement()){
+                        stat.execute("ROLLBACK;");
+                    }
+                }
+            }
+
+            if (!resetQuery.isEmpty()){
+                try (Statement stat = conn.createStatement()){
+                    stat.execute(resetQuery);
+                }
+            }
+
+            conn.clearWarnings();
+
+            return true;
+        }
+        catch (SQLException ex) {
+            return false;
+        }
+    }
+
+
+    static void closeQuietly(Connection conn){
+
+        try {
+            conn.close();
+        }
+        catch (SQLException ex) {
+            // the connection is discarded either way
+        }
+    }
+
+
+    /**
+     * Closes the idle connections.  Connections that are in use are closed when they are returned.
+     */
+    @Override
+    public void close() {
+
+        closed = true;
+
+        Connection conn;
+        while ((conn = idle.pollFirst()) != null)
+            closeQuietly(conn);
+    }
+
+
+    @Override
+    public String toString() {
+        return String.format("connection pool %s: opened %,d connections for %,d tasks, %d active", name, opened.get(), borrowed.get(), active.get());
+    }
+
+
+    /**
+     * The limit of setConcurrency(), which can be resized while connections are in use.  When the limit is
+     * reduced below the number of connections in use, the next connections wait until enough connections
+     * were returned.
+     */
+    static class Limit extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        int size;
+
+        Limit(int size) {
+            super(size, true);
+            this.size = size;
+        }
+
+        synchronized void resize(int newSize){
+
+            if (newSize > size)
+                release(newSize - size);
+            else if (newSize < size)
+                reducePermits(size - newSize);
+
+            size = newSize;
+        }
+    }
+
+
+    /**
+     * The handler of the connection that is returned to the caller.  close() returns the physical
+     * connection to the pool and all other methods are delegated to it.
+     */
+    class PooledConnection implements InvocationHandler {
+
+        final Connection conn;
+        final Semaphore concurrency;
+        boolean isClosed = false;
+
+        PooledConnection(Connection conn, Semaphore concurrency) {
+            this.conn = conn;
+            this.concurrency = concurrency;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+            switch (method.getName()){
+
+                case "close":
+                    if (!isClosed){
+                        isClosed = true;
+                        release(conn, concurrency);
+                    }
+                    return null;
+
+                case "isClosed":
+                    return isClosed || conn.isClosed();
+
+                case "toString":
+                    return "Pooled " + conn.toString();
+            }
+
+            if (isClosed)
+                throw new SQLException("Connection was returned to the pool " + name);
+
+            try {
+                return method.invoke(conn, args);
+            }
+            catch (InvocationTargetException ex) {
+                throw ex.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,557 @@
+package net.twentyonesolutions.m2pg;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.TimeZone;
+import java.util.UUID;
+
+/**
+ * Encodes rows in the PGCOPY binary format, which saves the target database the work of parsing the
+ * text representation of each value.
+ *
+ * The binary representation of a value must match the type of the target column exactly, so the
+ * encoder is resolved per column from the Postgres type of the target column and the JDBC type of the
+ * source column.  If any column has a combination that is not supported then create() returns null,
+ * and the text format should be used for the table.
+ *
+ * See https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.4
+ */
+public class CopyBinaryEncoder implements CopyEncoder {
+
+    static final byte[] SIGNATURE = { 'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0 };
+
+    static final long PG_EPOCH_SECONDS = 946_684_800L;     // 2000-01-01 00:00:00 UTC
+    static final long PG_EPOCH_DAYS = 10_957L;
+
+    static final int NUMERIC_POS = 0x0000;
+    static final int NUMERIC_NEG = 0x4000;
+    static final int NUMERIC_NAN = 0xC000;
+
+    static final BigInteger TEN_THOUSAND = BigInteger.valueOf(10_000);
+    static final BigInteger[] POW10 = { BigInteger.ONE, BigInteger.TEN, BigInteger.valueOf(100), BigInteger.valueOf(1_000) };
+
+    enum PgType { INT2, INT4, INT8, FLOAT4, FLOAT8, BOOL, NUMERIC, DATE, TIMESTAMP, TIMESTAMPTZ, UUID, TEXT, BYTEA }
+
+    final PgType[] pgTypes;
+    final String[] columnNames;
+    final TimeZone timeZone = TimeZone.getDefault();
+    short[] numericDigits = new short[32];
+
+
+    CopyBinaryEncoder(PgType[] pgTypes, String[] columnNames) {
+        this.pgTypes = pgTypes;
+        this.columnNames = columnNames;
+    }
+
+
+    /**
+     * Returns an encoder for the columns, or null if binary encoding is not supported for one of them
+     *
+     * @param tgtTypeNames - the Postgres type names of the target columns, e.g. int4, timestamptz
+     * @param columnTypes - the JDBC types of the source columns after jdbc_type_mapping was applied
+     * @param columnNames - the names of the target columns, used in error messages
+     * @param unsupported - if not null, the first unsupported column is appended to it
+     * @return
+     */
+    public static CopyBinaryEncoder create(String[] tgtTypeNames, int[] columnTypes, String[] columnNames, StringBuilder unsupported){
+
+        PgType[] pgTypes = new PgType[columnTypes.length];
+
+        for (int i = 0; i < columnTypes.length; i++){
+
+            pgTypes[i] = resolve(tgtTypeNames[i], columnTypes[i]);
+
+            if (pgTypes[i] == null){
+
+                if (unsupported != null)
+                    unsupported.append(columnNames[i]).append(' ').append(tgtTypeNames[i]);
+
+                return null;
+            }
+        }
+
+        return new CopyBinaryEncoder(pgTypes, columnNames);
+    }
+
+
+    static PgType resolve(String tgtTypeName, int srcType){
+
+        switch (tgtTypeName.toLowerCase()){
+
+            case "int2":
+            case "smallserial":
+                return isInteger(srcType) ? PgType.INT2 : null;
+
+            case "int4":
+            case "serial":
+                return isInteger(srcType) ? PgType.INT4 : null;
+
+            case "int8":
+            case "bigserial":
+                return isInteger(srcType) ? PgType.INT8 : null;
+
+            case "float4":
+                return isNumber(srcType) ? PgType.FLOAT4 : null;
+
+            case "float8":
+                return isNumber(srcType) ? PgType.FLOAT8 : null;
+
+            case "numeric":
+                return isNumber(srcType) ? PgType.NUMERIC : null;
+
+            case "bool":
+                return (srcType == Types.BIT || srcType == Types.BOOLEAN || isInteger(srcType)) ? PgType.BOOL : null;
+
+            case "date":
+                return isTemporal(srcType) ? PgType.DATE : null;
+
+            case "timestamp":
+                return isTemporal(srcType) ? PgType.TIMESTAMP : null;
+
+            case "timestamptz":
+                return isTemporal(srcType) ? PgType.TIMESTAMPTZ : null;
+
+            case "uuid":
+                return isText(srcType) ? PgType.UUID : null;
+
+            case "text":
+            case "varchar":
+            case "bpchar":
+                return isText(srcType) ? PgType.TEXT : null;
+
+            case "bytea":
+                return isBinary(srcType) ? PgType.BYTEA : null;
+        }
+
+        return null;
+    }
+
+
+    static boolean isInteger(int type){
+        return type == Types.TINYINT || type == Types.SMALLINT || type == Types.INTEGER || type == Types.BIGINT;
+    }
+
+
+    static boolean isNumber(int type){
+        return isInteger(type) || type == Types.REAL || type == Types.FLOAT || type == Types.DOUBLE
+                || type == Types.NUMERIC || type == Types.DECIMAL;
+    }
+
+
+    static boolean isTemporal(int type){
+        return type == Types.DATE || type == Types.TIMESTAMP;
+    }
+
+
+    static boolean isText(int type){
+        return type == Types.CHAR || type == Types.VARCHAR || type == Types.LONGVARCHAR
+                || type == Types.NCHAR || type == Types.NVARCHAR || type == Types.LONGNVARCHAR
+                || type == Types.CLOB || type == Types.NCLOB;
+    }
+
+
+    static boolean isBinary(int type){
+        return type == Types.BINARY || type == Types.VARBINARY || type == Types.LONGVARBINARY || type == Types.BLOB;
+    }
+
+
+    @Override
+    public String getFormat() {
+        return "binary";
+    }
+
+
+    @Override
+    public CopyEncoder newInstance() {
+        return new CopyBinaryEncoder(pgTypes, columnNames);
+    }
+
+
+    @Override
+    public void writeHeader(CopyBuffer out) {
+
+        out.write(SIGNATURE);
+        out.writeInt(0);        // flags
+        out.writeInt(0);        // header extension length
+    }
+
+
+    @Override
+    public void writeTrailer(CopyBuffer out) {
+
+        out.writeShort(-1);
+    }
+
+
+    @Override
+    public void encodeRow(Object[] values, CopyBuffer out) throws SQLException {
+
+        out.writeShort(pgTypes.length);
+
+        for (int i = 0; i < pgTypes.length; i++){
+
+            try {
+                encodeValue(values[i], pgTypes[i], out);
+            }
+            catch (RuntimeException ex){
+                throw new SQLException("Failed to encode value of column " + columnNames[i] + " as " + pgTypes[i] + ": " + ex, ex);
+            }
+        }
+    }
+
+
+    void encodeValue(Object value, PgType type, CopyBuffer out) throws SQLException {
+
+        if (value == null){
+            out.writeInt(-1);
+            return;
+        }
+
+        switch (type){
+
+            case INT2:
+                out.writeInt(2);
+                out.writeShort((int) getInteger(value, Short.MIN_VALUE, Short.MAX_VALUE, type));
+                break;
+
+            case INT4:
+                out.writeInt(4);
+                out.writeInt((int) getInteger(value, Integer.MIN_VALUE, Integer.MAX_VALUE, type));
+                break;
+
+            case INT8:
+                out.writeInt(8);
+                out.writeLong(getInteger(value, Long.MIN_VALUE, Long.MAX_VALUE, type));
+                break;
+
+            case FLOAT4:
+                out.writeInt(4);
+                out.writeInt(Float.floatToIntBits(((Number) value).floatValue()));
+                break;
+
+            case FLOAT8:
+                out.writeInt(8);
+                out.writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+                break;
+
+            case BOOL:
+                out.writeInt(1);
+                // like text COPY, which writes the number of an integer column, only 0 and 1 are accepted
+                boolean b = (value instanceof Boolean) ? (Boolean) value : getInteger(value, 0, 1, type) != 0;
+                out.write(b ? 1 : 0);
+                break;
+
+            case NUMERIC:
+                writeNumeric((Number) value, out);
+                break;
+
+            case DATE:
+                out.writeInt(4);
+                out.writeInt((int) (getLocalEpochDay(value) - PG_EPOCH_DAYS));
+                break;
+
+            case TIMESTAMP:
+                out.writeInt(8);
+                out.writeLong(getPgMicros(value, true));
+                break;
+
+            case TIMESTAMPTZ:
+                out.writeInt(8);
+                out.writeLong(getPgMicros(value, false));
+                break;
+
+            case UUID:
+                UUID uuid = (value instanceof UUID) ? (UUID) value : UUID.fromString(value.toString().trim());
+                out.writeInt(16);
+                out.writeLong(uuid.getMostSignificantBits());
+                out.writeLong(uuid.getLeastSignificantBits());
+                break;
+
+            case TEXT:
+                if (value instanceof Clob){
+                    Clob clob = (Clob) value;
+                    value = clob.getSubString(1, (int) clob.length());
+                }
+                int pos = out.size();
+                out.writeInt(0);        // placeholder for the length
+                out.writeUtf8(value.toString(), false);
+                out.setInt(pos, out.size() - pos - 4);
+                break;
+
+            case BYTEA:
+                byte[] bytes = (value instanceof Blob)
+                        ? ((Blob) value).getBytes(1, (int) ((Blob) value).length())
+                        : (byte[]) value;
+                out.writeInt(bytes.length);
+                out.write(bytes);
+                break;
+        }
+    }
+
+
+    /**
+     * Returns the value of an integer column, or throws an ArithmeticException if it does not fit in the
+     * range of the target type, where text COPY and INSERT would fail too, instead of truncating its bits
+     */
+    static long getInteger(Object value, long min, long max, PgType type){
+
+        long result;
+
+        if (value instanceof BigInteger)
+            result = ((BigInteger) value).longValueExact();
+        else if (value instanceof BigDecimal)
+            result = ((BigDecimal) value).longValueExact();
+        else
+            result = ((Number) value).longValue();
+
+        if (result < min || result > max)
+            throw new ArithmeticException("value " + value + " is out of range for " + type);
+
+        return result;
+    }
+
+
+    /**
+     * Returns the number of days since 1970-01-01 of the local date of value in the default time zone.
+     * Dates before the Gregorian cutover are converted from the Julian date of java.util.Date, as with
+     * CopyTextEncoder and setObject().
+     */
+    long getLocalEpochDay(Object value){
+
+        if (value instanceof java.util.Date){
+
+            long millis = ((java.util.Date) value).getTime();
+            long local = millis + timeZone.getOffset(millis);
+
+            if (local < CopyTextEncoder.GREGORIAN_CUTOVER_MILLIS)
+                return getLocalDateTime((java.util.Date) value).toLocalDate().toEpochDay();
+
+            return Math.floorDiv(local, 86_400_000L);
+        }
+
+        if (value instanceof LocalDate)
+            return ((LocalDate) value).toEpochDay();
+
+        if (value instanceof LocalDateTime)
+            return ((LocalDateTime) value).toLocalDate().toEpochDay();
+
+        throw new IllegalArgumentException("unsupported value type " + value.getClass().getName());
+    }
+
+
+    /**
+     * Returns the date and time of the fields of java.util.Date, i.e. in the Julian calendar before the
+     * Gregorian cutover, as a LocalDateTime with the same fields
+     */
+    static LocalDateTime getLocalDateTime(java.util.Date value){
+
+        return (value instanceof Timestamp)
+                ? ((Timestamp) value).toLocalDateTime()
+                : new Timestamp(value.getTime()).toLocalDateTime();
+    }
+
+
+    /**
+     * Returns the number of microseconds since 2000-01-01 00:00:00, which is how Postgres stores timestamps.
+     * Timestamps before the Gregorian cutover are converted from the Julian date of java.util.Date, as with
+     * CopyTextEncoder and setObject().
+     *
+     * @param value
+     * @param local - true for timestamp, where the local date/time in the default time zone is stored,
+     *              or false for timestamptz, where the UTC instant is stored
+     * @return
+     */
+    long getPgMicros(Object value, boolean local){
+
+        long seconds;
+        int nanos;
+
+        if (value instanceof java.util.Date){
+
+            long millis = ((java.util.Date) value).getTime();
+            int offsetMillis = timeZone.getOffset(millis);
+
+            if (millis + offsetMillis < CopyTextEncoder.GREGORIAN_CUTOVER_MILLIS){
+
+                // the fields of the Julian date are the proleptic Gregorian date for Postgres
+                LocalDateTime ldt = getLocalDateTime((java.util.Date) value);
+                seconds = ldt.toEpochSecond(ZoneOffset.UTC) - (local ? 0 : offsetMillis / 1000);
+                nanos = ldt.getNano();
+            }
+            else {
+
+                if (local)
+                    millis += offsetMillis;
+
+                seconds = Math.floorDiv(millis, 1000L);
+                nanos = (value instanceof Timestamp)
+                        ? ((Timestamp) value).getNanos()
+                        : (int) Math.floorMod(millis, 1000L) * 1_000_000;
+            }
+        }
+        else if (value instanceof LocalDateTime){
+
+            LocalDateTime ldt = (LocalDateTime) value;
+            seconds = local
+                    ? ldt.toEpochSecond(ZoneOffset.UTC)
+                    : ldt.atZone(timeZone.toZoneId()).toEpochSecond();
+            nanos = ldt.getNano();
+        }
+        else if (value instanceof OffsetDateTime){
+
+            OffsetDateTime odt = (OffsetDateTime) value;
+            seconds = local
+                    ? odt.toLocalDateTime().toEpochSecond(ZoneOffset.UTC)
+                    : odt.toEpochSecond();
+            nanos = odt.getNano();
+        }
+        else {
+
+            throw new IllegalArgumentException("unsupported value type " + value.getClass().getName());
+        }
+
+        // Postgres rounds fractions of a microsecond to the nearest microsecond
+        return (seconds - PG_EPOCH_SECONDS) * 1_000_000L + (nanos + 500) / 1_000;
+    }
+
+
+    /**
+     * Writes a numeric value as base-10000 digits, see numeric_send() in the Postgres source code
+     */
+    void writeNumeric(Number number, CopyBuffer out){
+
+        BigDecimal value;
+
+        if (number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte){
+            value = null;
+        }
+        else if (number instanceof BigDecimal){
+            value = (BigDecimal) number;
+        }
+        else if (number instanceof Double || number instanceof Float){
+
+            double d = number.doubleValue();
+            if (Double.isNaN(d)){
+                out.writeInt(8);
+                out.writeShort(0);
+                out.writeShort(0);
+                out.writeShort(NUMERIC_NAN);
+                out.writeShort(0);
+                return;
+            }
+
+            value = BigDecimal.valueOf(d);
+        }
+        else if (number instanceof BigInteger){
+            value = new BigDecimal((BigInteger) number);
+        }
+        else {
+            value = BigDecimal.valueOf(number.longValue());
+        }
+
+        int scale, sign;
+        long magnitude = 0;
+        BigInteger unscaled = null;     // set only if the magnitude does not fit in a long
+
+        if (value == null){
+
+            long l = number.longValue();
+            scale = 0;
+            sign = (l < 0) ? NUMERIC_NEG : NUMERIC_POS;
+
+            if (l == Long.MIN_VALUE)
+                unscaled = BigInteger.valueOf(l).abs();
+            else
+                magnitude = Math.abs(l);
+        }
+        else {
+
+            if (value.scale() < 0)
+                value = value.setScale(0);
+
+            scale = value.scale();
+            sign = (value.signum() < 0) ? NUMERIC_NEG : NUMERIC_POS;
+
+            if (value.precision() <= 18)
+                magnitude = Math.abs(value.unscaledValue().longValue());
+            else
+                unscaled = value.unscaledValue().abs();
+        }
+
+        // align the fraction to whole base-10000 digits
+        int pad = (4 - scale % 4) % 4;
+        int fractionDigits = (scale + pad) / 4;
+
+        // collect the base-10000 digits, least significant first
+        int n = 0;
+        if (unscaled == null){
+
+            long l = magnitude;
+
+            // the lowest digit has only 4 - pad decimal digits of the fraction, scale it instead of multiplying l which might overflow
+            if (pad > 0 && l != 0){
+                long div = CopyTextEncoder.POW10[4 - pad];
+                ensureNumericDigits(n);
+                numericDigits[n++] = (short) (l % div * CopyTextEncoder.POW10[pad]);
+                l /= div;
+            }
+
+            while (l != 0){
+                ensureNumericDigits(n);
+                numericDigits[n++] = (short) (l % 10_000);
+                l /= 10_000;
+            }
+        }
+        else {
+
+            BigInteger b = (pad > 0) ? unscaled.multiply(POW10[pad]) : unscaled;
+            while (b.signum() != 0){
+                BigInteger[] qr = b.divideAndRemainder(TEN_THOUSAND);
+                ensureNumericDigits(n);
+                numericDigits[n++] = qr[1].shortValue();
+                b = qr[0];
+            }
+        }
+
+        int weight = n - fractionDigits - 1;
+
+        // trailing zero digits are not stored
+        int first = 0;
+        while (first < n && numericDigits[first] == 0)
+            first++;
+
+        int ndigits = n - first;
+        if (ndigits == 0){
+            weight = 0;
+            sign = NUMERIC_POS;
+        }
+
+        out.writeInt(8 + ndigits * 2);
+        out.writeShort(ndigits);
+        out.writeShort(weight);
+        out.writeShort(sign);
+        out.writeShort(scale);
+
+        for (int i = n - 1; i >= first; i--)
+            out.writeShort(numericDigits[i]);
+    }
+
+
+    void ensureNumericDigits(int n){
+
+        if (n == numericDigits.length){
+            short[] grown = new short[n * 2];
+            System.arraycopy(numericDigits, 0, grown, 0, n);
+            numericDigits = grown;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package net.twentyonesolutions.m2pg;
+
+import java.sql.SQLException;
+
+/**
+ * A growable byte buffer that holds encoded rows until they are sent to the target with COPY
+ */
+public class CopyBuffer {
+
+    static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
+
+    // the buffer is drained to the sink once it holds this many bytes
+    static final int DRAIN_SIZE = 64 * 1024;
+
+    /**
+     * Receives the bytes of the buffer when drain() is called, e.g. to send a row with a large value in parts
+     */
+    public interface Sink {
+        void send(CopyBuffer buffer) throws SQLException;
+    }
+
+    byte[] buf;
+    int size;
+    Sink sink;
+
+
+    public CopyBuffer(int capacity) {
+        this.buf = new byte[Math.max(capacity, 16)];
+    }
+
+
+    void ensureCapacity(int additional){
+
+        int required = size + additional;
+
+        if (required > buf.length){
+
+            byte[] grown = new byte[Math.max(required, buf.length * 2)];
+            System.arraycopy(buf, 0, grown, 0, size);
+            buf = grown;
+        }
+    }
+
+
+    public void write(int b){
+
+        ensureCapacity(1);
+        buf[size++] = (byte) b;
+    }
+
+
+    public void write(byte[] b, int off, int len){
+
+        ensureCapacity(len);
+        System.arraycopy(b, off, buf, size, len);
+        size += len;
+    }
+
+
+    public void write(byte[] b){
+        write(b, 0, b.length);
+    }
+
+
+    public void writeShort(int v){
+
+        ensureCapacity(2);
+        buf[size++] = (byte) (v >>> 8);
+        buf[size++] = (byte) v;
+    }
+
+
+    public void writeInt(int v){
+
+        ensureCapacity(4);
+        buf[size++] = (byte) (v >>> 24);
+        buf[size++] = (byte) (v >>> 16);
+        buf[size++] = (byte) (v >>> 8);
+        buf[size++] = (byte) v;
+    }
+
+
+    public void writeLong(long v){
+
+        writeInt((int) (v >>> 32));
+        writeInt((int) v);
+    }
+
+
+    /**
+     * Overwrites 4 bytes at a position that was already written, e.g. a length prefix that is known
+     * only after the value was written
+     */
+    public void setInt(int pos, int v){
+
+        buf[pos]     = (byte) (v >>> 24);
+        buf[pos + 1] = (byte) (v >>> 16);
+        buf[pos + 2] = (byte) (v >>> 8);
+        buf[pos + 3] = (byte) v;
+    }
+
+
+    /**
+     * Writes the characters of s, which must all be in the ASCII range, e.g. a formatted number
+     */
+    public void writeAscii(CharSequence s){
+
+        int len = s.length();
+        ensureCapacity(len);
+
+        for (int i = 0; i < len; i++)
+            buf[size++] = (byte) s.charAt(i);
+    }
+
+
+    /**
+     * Writes the decimal digits of the value without creating a String
+     */
+    public void writeDecimal(long v){
+        writeDecimal(v, 1);
+    }
+
+
+    /**
+     * Writes the decimal digits of the value, with leading zeros up to minDigits digits
+     */
+    public void writeDecimal(long v, int minDigits){
+
+        if (v < 0){
+
+            if (v == Long.MIN_VALUE){
+                writeAscii("-9223372036854775808");
+                return;
+            }
+
+            write('-');
+            v = -v;
+        }
+
+        int digits = 1;
+        for (long rest = v / 10; rest > 0; rest /= 10)
+            digits++;
+
+        digits = Math.max(digits, minDigits);
+        ensureCapacity(digits);
+
+        for (int i = size + digits - 1; i >= size; i--){
+            buf[i] = (byte) ('0' + v % 10);
+            v /= 10;
+        }
+
+        size += digits;
+    }
+
+
+    /**
+     * Writes the hex representation of the bytes, two digits per byte
+     */
+    public void writeHex(byte[] b){
+        writeHex(b, 0, b.length);
+    }
+
+
+    public void writeHex(byte[] b, int off, int len){
+
+        ensureCapacity(len * 2);
+
+        for (int i = off; i < off + len; i++){
+            byte v = b[i];
+            buf[size++] = HEX_DIGITS[(v >> 4) & 0x0f];
+            buf[size++] = HEX_DIGITS[v & 0x0f];
+        }
+    }
+
+
+    /**
+     * Sends the bytes to the sink and resets the buffer if it has a sink and holds at least DRAIN_SIZE
+     * bytes.  The bytes may end in the middle of a row, so this is used only by writers that send the rows
+     * as a stream, i.e. COPY.
+     */
+    public void drain() throws SQLException {
+
+        if (sink != null && size >= DRAIN_SIZE){
+            sink.send(this);
+            size = 0;
+        }
+    }
+
+
+    /**
+     * Writes s in UTF-8 encoding
+     *
+     * @param s
+     * @param escapeText - when true, backslash, tab, newline and carriage return characters are escaped
+     *                   with a backslash as required by the COPY text format
+     */
+    public void writeUtf8(CharSequence s, boolean escapeText){
+
+        int len = s.length();
+        ensureCapacity(len);
+
+        for (int i = 0; i < len; i++){
+
+            char c = s.charAt(i);
+
+            if (c < 0x80){
+
+                if (escapeText){
+                    switch (c){
+                        case '\\': write('\\'); write('\\'); continue;
+                        case '\t': write('\\'); write('t');  continue;
+                        case '\n': write('\\'); write('n');  continue;
+                        case '\r': write('\\'); write('r');  continue;
+                    }
+                }
+
+                write(c);
+            }
+            else if (c < 0x800){
+
+                ensureCapacity(2);
+                buf[size++] = (byte) (0xc0 | (c >> 6));
+                buf[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))){
+
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                ensureCapacity(4);
+                buf[size++] = (byte) (0xf0 | (cp >> 18));
+                buf[size++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[size++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[size++] = (byte) (0x80 | (cp & 0x3f));
+            }
+            else if (Character.isSurrogate(c)){
+
+                write('?');     // unpaired surrogate can not be encoded, same as String.getBytes()
+            }
+            else {
+
+                ensureCapacity(3);
+                buf[size++] = (byte) (0xe0 | (c >> 12));
+                buf[size++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[size++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+
+    public byte[] array(){
+        return buf;
+    }
+
+
+    public int size(){
+        return size;
+    }
+
+
+    public void reset(){
+        size = 0;
+    }
+}
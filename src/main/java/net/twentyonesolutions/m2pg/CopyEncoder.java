@@ -0,0 +1,32 @@
+package net.twentyonesolutions.m2pg;
+
+import java.sql.SQLException;
+
+/**
+ * Encodes rows into the payload of COPY FROM STDIN
+ */
+public interface CopyEncoder {
+
+    /**
+     * @return - the FORMAT option of the COPY command, e.g. text or binary
+     */
+    String getFormat();
+
+    /**
+     * Returns a new encoder with the same column configuration.  Encoders keep state between calls, so
+     * each thread that encodes rows must use its own instance.
+     */
+    CopyEncoder newInstance();
+
+    /**
+     * Writes the data that must precede the first row, if any
+     */
+    void writeHeader(CopyBuffer out);
+
+    void encodeRow(Object[] values, CopyBuffer out) throws SQLException;
+
+    /**
+     * Writes the data that must follow the last row, if any
+     */
+    void writeTrailer(CopyBuffer out);
+}
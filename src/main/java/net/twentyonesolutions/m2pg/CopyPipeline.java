@@ -0,0 +1,361 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the rows of a table with separate threads for reading from the source and writing to the target,
+ * so that both databases can work at the same time.
+ *
+ * The reader fills batches of rows from a fixed ring of batches, optional encoder threads encode the
+ * batches into the COPY format, and the writer sends them to the target and returns them to the ring.
+ * When the writer falls behind then the ring is empty and the reader waits, so at most ring_size batches
+ * are held in memory.  The time that each stage spends waiting for the other stages is added to the log.
+ *
+ * The encoders finish the batches in any order, so the writer writes them in the order of their sequence
+ * numbers, i.e. in the order that they were read, which the intermediate commits of the checkpoint require.
+ */
+public class CopyPipeline {
+
+    static final RowBatch END = new RowBatch(0, 0, false);
+
+    final TableCopy tableCopy;
+    final int batchSize;
+    final int columnCount;
+    final int encoders;
+
+    final BlockingQueue<RowBatch> free;         // empty batches for the reader
+    final BlockingQueue<RowBatch> filled;       // batches that were read, for the encoders or the writer
+    final BlockingQueue<RowBatch> encoded;      // batches that were encoded, for the writer
+
+    final AtomicLong readerWaitNanos = new AtomicLong();
+    final AtomicLong encoderWaitNanos = new AtomicLong();
+    final AtomicLong writerWaitNanos = new AtomicLong();
+
+    volatile boolean failed = false;
+
+
+    /**
+     * @param tableCopy - the copy that owns the progress counters
+     * @param ringSize - the number of batches in the ring
+     * @param batchSize - the number of rows in each batch
+     * @param columnCount
+     * @param encoders - the number of encoder threads, 0 to encode the rows on the writer thread
+     */
+    public CopyPipeline(TableCopy tableCopy, int ringSize, int batchSize, int columnCount, int encoders) {
+
+        this.tableCopy = tableCopy;
+        this.batchSize = batchSize;
+        this.columnCount = columnCount;
+        this.encoders = encoders;
+
+        // the queues have room for all of the batches and the END markers so putting never blocks
+        int capacity = ringSize + encoders + 1;
+        this.free = new ArrayBlockingQueue<>(capacity);
+        this.filled = new ArrayBlockingQueue<>(capacity);
+        this.encoded = new ArrayBlockingQueue<>(capacity);
+
+        for (int i = 0; i < ringSize; i++)
+            free.add(new RowBatch(batchSize, columnCount, encoders > 0));
+    }
+
+
+    /**
+     * Reads the rows on the current thread and writes them on a writer thread
+     *
+     * @param rs - the source rows
+     * @param fetchSize - the fetch size of rs, which is adjusted after each batch
+     * @param codecs - the codecs that read the columns of rs
+     * @param writer - the writer of the target rows
+     * @param encoder - the encoder of the COPY format, required if encoders is greater than 0
+     * @param conTgt - the connection of the writer, for intermediate commits
+     * @param range - the range of the rows, for intermediate commits
+     * @param method - the name of the write method for the log, e.g. Copy
+     * @param where - the range of the rows, for the log
+     * @param log
+     * @return - true if all of the rows were written without errors
+     */
+    public boolean run(ResultSet rs, FetchSize fetchSize, ColumnCodec[] codecs, RowWriter writer, CopyEncoder encoder, Connection conTgt, Checkpoint.Range range, String method, String where, StringBuilder log) {
+
+        StringBuilder errors = new StringBuilder();
+        List<Thread> threads = new ArrayList<>();
+        String threadName = "m2pg-" + tableCopy.tableName;
+
+        for (int i = 0; i < encoders; i++)
+            threads.add(new Thread(() -> encode(encoder.newInstance(), errors), threadName + "-encoder-" + i));
+
+        Thread writerThread = new Thread(() -> write(writer, conTgt, range, method, where, errors), threadName + "-writer");
+        threads.add(writerThread);
+
+        threads.forEach(Thread::start);
+
+        read(rs, fetchSize, codecs, writerThread, where, errors);
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                failed = true;
+            }
+        }
+
+        log.append(errors);
+        log.append(String.format(" /* pipeline waits: reader %.3f, encoders %.3f, writer %.3f seconds */\n"
+                , readerWaitNanos.get() / 1e9
+                , encoderWaitNanos.get() / 1e9
+                , writerWaitNanos.get() / 1e9));
+
+        return !failed;
+    }
+
+
+    void read(ResultSet rs, FetchSize fetchSize, ColumnCodec[] codecs, Thread writerThread, String where, StringBuilder errors) {
+
+        long row = 0, seq = 0;
+
+        try {
+            while (!failed && !tableCopy.aborted) {
+
+                RowBatch batch = take(free, readerWaitNanos);
+                if (batch == null) {
+
+                    // timed out, check whether the writer failed
+                    if (!writerThread.isAlive())
+                        failed = true;
+
+                    continue;
+                }
+
+                batch.size = 0;
+                while (batch.size < batchSize && rs.next()) {
+
+                    Object[] values = batch.rows[batch.size++];
+                    for (int i = 1; i <= columnCount; i++)
+                        values[i - 1] = codecs[i - 1].read(rs, i);
+
+                    fetchSize.sample(values);
+                }
+
+                if (batch.size == batchSize)
+                    fetchSize.adjust(rs);
+
+                row += batch.size;
+                batch.lastRow = row;
+
+                if (batch.size == 0) {
+                    free.add(batch);
+                    break;
+                }
+
+                batch.seq = seq++;
+
+                tableCopy.counter.read(batch.size);
+                tableCopy.counter.queued(1);
+                filled.add(batch);
+
+                if (batch.size < batchSize)
+                    break;
+            }
+        }
+        catch (SQLException | RuntimeException ex) {
+            fail(ex, "Read", 0, row, where, errors);
+        }
+        finally {
+
+            if (tableCopy.aborted)
+                failed = true;
+
+            for (int i = 0, n = Math.max(encoders, 1); i < n; i++)
+                filled.add(END);
+        }
+    }
+
+
+    void encode(CopyEncoder encoder, StringBuilder errors) {
+
+        boolean isEnd = false;
+
+        try {
+            while (!isEnd) {
+
+                RowBatch batch = take(filled, encoderWaitNanos);
+                if (batch == null)
+                    continue;
+
+                isEnd = (batch == END);
+
+                if (!isEnd && !failed) {
+
+                    batch.encoded.reset();
+
+                    try {
+                        for (int i = 0; i < batch.size; i++)
+                            encoder.encodeRow(batch.rows[i], batch.encoded);
+                    }
+                    catch (SQLException | RuntimeException ex) {
+                        fail(ex, "Copy", batch.size, batch.lastRow, null, errors);
+                    }
+                }
+
+                encoded.add(batch);
+            }
+        }
+        finally {
+            // an Error must not leave the writer waiting for the END of this encoder
+            if (!isEnd) {
+                failed = true;
+                encoded.add(END);
+            }
+        }
+    }
+
+
+    void write(RowWriter writer, Connection conTgt, Checkpoint.Range range, String method, String where, StringBuilder errors) {
+
+        BlockingQueue<RowBatch> input = (encoders > 0) ? encoded : filled;
+        IProgress.Counter counter = tableCopy.counter;
+        int ends = 0;
+
+        // the batches that arrived before a batch with a lower sequence number, by sequence number
+        Map<Long, RowBatch> pending = new HashMap<>();
+        long nextSeq = 0;
+
+        boolean isDone = false;
+
+        try {
+            while (ends < Math.max(encoders, 1)) {
+
+                RowBatch batch = take(input, writerWaitNanos);
+                if (batch == null)
+                    continue;
+
+                if (batch == END) {
+                    ends++;
+                    continue;
+                }
+
+                pending.put(batch.seq, batch);
+
+                while ((batch = pending.remove(nextSeq)) != null) {
+
+                    nextSeq++;
+                    counter.queued(-1);
+
+                    // after a failure the batches are only returned to the ring, so that the other stages can finish
+                    if (!failed)
+                        writeBatch(batch, writer, conTgt, range, method, where, errors);
+
+                    free.add(batch);
+                }
+            }
+
+            if (!failed) {
+                try {
+                    writer.finish();
+                }
+                catch (SQLException | IOException | RuntimeException ex) {
+                    fail(ex, method, 0, 0, where, errors);
+                }
+            }
+
+            isDone = true;
+        }
+        finally {
+            // an Error must not leave the reader waiting for free batches
+            if (!isDone)
+                failed = true;
+        }
+    }
+
+
+    void writeBatch(RowBatch batch, RowWriter writer, Connection conTgt, Checkpoint.Range range, String method, String where, StringBuilder errors) {
+
+        try {
+            int written;
+
+            tableCopy.commitBeforeBatch(writer, conTgt, range, batch.rows[0]);
+
+            if (batch.encoded != null) {
+                written = ((CopyWriter) writer).writeEncoded(batch.encoded, batch.size);
+            }
+            else {
+                for (int i = 0; i < batch.size; i++)
+                    writer.write(batch.rows[i]);
+
+                written = writer.flush();
+            }
+
+            tableCopy.copied.add(written);
+            tableCopy.counter.add(batch.size);
+
+            tableCopy.commitIfDue(writer, conTgt, range, batch.size, batch.rows[batch.size - 1]);
+        }
+        catch (SQLException | IOException | RuntimeException ex) {
+            fail(ex, method, batch.size, batch.lastRow, where, errors);
+        }
+    }
+
+
+    /**
+     * Takes a batch from the queue and adds the time that was spent waiting to waitNanos
+     *
+     * @return - the batch, or null if none was available within a second
+     */
+    RowBatch take(BlockingQueue<RowBatch> queue, AtomicLong waitNanos) {
+
+        long tc = System.nanoTime();
+
+        try {
+            return queue.poll(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            failed = true;
+            return null;
+        }
+        finally {
+            waitNanos.addAndGet(System.nanoTime() - tc);
+        }
+    }
+
+
+    void fail(Exception ex, String method, long batched, long row, String where, StringBuilder errors) {
+
+        failed = true;
+
+        synchronized (errors) {
+            tableCopy.logWriteError(ex, method, batched, row, where, errors);
+        }
+    }
+
+
+    /**
+     * A batch of rows in the ring.  The arrays are allocated once and reused for every batch of the table.
+     */
+    static class RowBatch {
+
+        final Object[][] rows;
+        final CopyBuffer encoded;
+        int size;
+        long lastRow;
+        long seq;       // the order in which the batch was read
+
+        RowBatch(int batchSize, int columnCount, boolean isEncoded) {
+
+            this.rows = new Object[batchSize][columnCount];
+            this.encoded = isEncoded ? new CopyBuffer(64 * 1024) : null;
+        }
+    }
+}
@@ -0,0 +1,271 @@
+package net.twentyonesolutions.m2pg;
+
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.TimeZone;
+
+/**
+ * Encodes rows in the COPY text format, i.e. tab separated columns, newline separated rows, NULL as \N,
+ * and backslash escapes for special characters.
+ *
+ * See https://www.postgresql.org/docs/current/sql-copy.html#id-1.9.3.55.9.2
+ */
+public class CopyTextEncoder implements CopyEncoder {
+
+    /** java.util.Date switches from the Julian to the Gregorian calendar on 1582-10-15 */
+    static final long GREGORIAN_CUTOVER_MILLIS = -12_219_292_800_000L;
+
+    static final long[] POW10 = new long[19];
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++)
+            POW10[i] = POW10[i - 1] * 10;
+    }
+
+    final int[] columnTypes;
+    final TimeZone timeZone = TimeZone.getDefault();
+    final StringBuilder sb = new StringBuilder(64);
+
+
+    /**
+     * @param columnTypes - the target JDBC types of the columns after jdbc_type_mapping was applied
+     */
+    public CopyTextEncoder(int[] columnTypes) {
+        this.columnTypes = columnTypes;
+    }
+
+
+    @Override
+    public String getFormat() {
+        return "text";
+    }
+
+
+    @Override
+    public CopyEncoder newInstance() {
+        return new CopyTextEncoder(columnTypes);
+    }
+
+
+    @Override
+    public void writeHeader(CopyBuffer out) {}
+
+
+    @Override
+    public void writeTrailer(CopyBuffer out) {}
+
+
+    @Override
+    public void encodeRow(Object[] values, CopyBuffer out) throws SQLException {
+
+        for (int i = 0; i < columnTypes.length; i++){
+
+            if (i > 0)
+                out.write('\t');
+
+            encodeValue(values[i], columnTypes[i], out);
+        }
+
+        out.write('\n');
+    }
+
+
+    void encodeValue(Object value, int type, CopyBuffer out) throws SQLException {
+
+        if (value == null){
+            out.write('\\');
+            out.write('N');
+            return;
+        }
+
+        if (value instanceof LobValue){
+            ((LobValue) value).encodeText(out);
+            return;
+        }
+
+        if (value instanceof Blob){
+            Blob blob = (Blob) value;
+            value = blob.getBytes(1, (int) blob.length());
+        }
+        else if (value instanceof Clob){
+            Clob clob = (Clob) value;
+            value = clob.getSubString(1, (int) clob.length());
+        }
+
+        if (value instanceof byte[]){
+            // bytea hex format, the backslash of \x is escaped for the text format
+            out.write('\\');
+            out.write('\\');
+            out.write('x');
+            out.writeHex((byte[]) value);
+        }
+        else if (value instanceof Boolean){
+            out.write((Boolean) value ? 't' : 'f');
+        }
+        else if (value instanceof Number && (type == Types.BIT || type == Types.BOOLEAN)){
+            out.write(((Number) value).intValue() != 0 ? 't' : 'f');
+        }
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte){
+            out.writeDecimal(((Number) value).longValue());
+        }
+        else if (value instanceof Timestamp){
+            writeTimestamp((Timestamp) value, out);
+        }
+        else if (value instanceof BigDecimal){
+            writeBigDecimal((BigDecimal) value, out);
+        }
+        else {
+            out.writeUtf8(value.toString(), true);
+        }
+    }
+
+
+    /**
+     * Writes the value like BigDecimal.toPlainString().  Values with up to 18 digits are written from their
+     * unscaled long value so that no String is created.
+     */
+    void writeBigDecimal(BigDecimal value, CopyBuffer out){
+
+        int scale = value.scale();
+
+        if (value.precision() > 18 || scale < 0 || scale > 18){
+            out.writeAscii(value.toPlainString());
+            return;
+        }
+
+        long unscaled = value.unscaledValue().longValue();
+
+        if (scale == 0){
+            out.writeDecimal(unscaled);
+            return;
+        }
+
+        if (unscaled < 0){
+            out.write('-');
+            unscaled = -unscaled;
+        }
+
+        long pow = POW10[scale];
+        out.writeDecimal(unscaled / pow);
+        out.write('.');
+        out.writeDecimal(unscaled % pow, scale);
+    }
+
+    /**
+     * Writes the timestamp in the same format as formatTimestamp(), computing the local date from the epoch
+     * millis so that no objects are created.  Dates before the Gregorian cutover are formatted with
+     * formatTimestamp() so that they match the Julian dates of java.util.Date.
+     */
+    void writeTimestamp(Timestamp ts, CopyBuffer out){
+
+        long millis = ts.getTime();
+        int offsetMillis = timeZone.getOffset(millis);
+        long local = millis + offsetMillis;
+
+        if (local < GREGORIAN_CUTOVER_MILLIS){
+            formatTimestamp(ts);
+            out.writeAscii(sb);
+            return;
+        }
+
+        long localSeconds = Math.floorDiv(local, 1000L);
+        long epochDay = Math.floorDiv(localSeconds, 86_400L);
+        int secondOfDay = (int) Math.floorMod(localSeconds, 86_400L);
+
+        // convert the days since 1970-01-01 to the proleptic Gregorian year, month and day
+        long z = epochDay + 719_468;
+        long era = Math.floorDiv(z, 146_097);
+        long dayOfEra = z - era * 146_097;
+        long yearOfEra = (dayOfEra - dayOfEra / 1_460 + dayOfEra / 36_524 - dayOfEra / 146_096) / 365;
+        long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        long mp = (5 * dayOfYear + 2) / 153;
+        int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+
+        out.writeDecimal(year, 4);
+        out.write('-');
+        out.writeDecimal(month, 2);
+        out.write('-');
+        out.writeDecimal(day, 2);
+        out.write(' ');
+        out.writeDecimal(secondOfDay / 3600, 2);
+        out.write(':');
+        out.writeDecimal(secondOfDay / 60 % 60, 2);
+        out.write(':');
+        out.writeDecimal(secondOfDay % 60, 2);
+
+        int nanos = ts.getNanos();
+        if (nanos > 0){
+
+            int digits = 9;
+            while (nanos % 10 == 0){
+                nanos /= 10;
+                digits--;
+            }
+
+            out.write('.');
+            out.writeDecimal(nanos, digits);
+        }
+
+        int offsetMinutes = offsetMillis / 60_000;
+        out.write(offsetMinutes < 0 ? '-' : '+');
+        offsetMinutes = Math.abs(offsetMinutes);
+        out.writeDecimal(offsetMinutes / 60, 2);
+        out.write(':');
+        out.writeDecimal(offsetMinutes % 60, 2);
+    }
+
+
+    /**
+     * Formats the timestamp as yyyy-MM-dd HH:mm:ss.fffffffff+HH:MM in the default time zone, which is
+     * the same instant that pgjdbc sends for setObject() with a Timestamp value
+     */
+    void formatTimestamp(Timestamp ts){
+
+        LocalDateTime ldt = ts.toLocalDateTime();
+        int offsetMinutes = timeZone.getOffset(ts.getTime()) / 60_000;
+
+        sb.setLength(0);
+        pad(ldt.getYear(), 4).append('-');
+        pad(ldt.getMonthValue(), 2).append('-');
+        pad(ldt.getDayOfMonth(), 2).append(' ');
+        pad(ldt.getHour(), 2).append(':');
+        pad(ldt.getMinute(), 2).append(':');
+        pad(ldt.getSecond(), 2);
+
+        int nanos = ldt.getNano();
+        if (nanos > 0){
+
+            int digits = 9;
+            while (nanos % 10 == 0){
+                nanos /= 10;
+                digits--;
+            }
+
+            sb.append('.');
+            pad(nanos, digits);
+        }
+
+        sb.append(offsetMinutes < 0 ? '-' : '+');
+        offsetMinutes = Math.abs(offsetMinutes);
+        pad(offsetMinutes / 60, 2).append(':');
+        pad(offsetMinutes % 60, 2);
+    }
+
+
+    StringBuilder pad(int value, int width){
+
+        for (int limit = 10, i = 1; i < width; i++, limit *= 10){
+            if (value < limit)
+                sb.append('0');
+        }
+
+        return sb.append(value);
+    }
+}
@@ -0,0 +1,165 @@
+package net.twentyonesolutions.m2pg;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Writes rows with COPY FROM STDIN via the pgjdbc CopyManager.  Rows are encoded into a buffer that
+ * is sent to the target on flush(), so only one batch of rows is kept in memory at a time.
+ */
+public class CopyWriter implements RowWriter {
+
+    final CopyManager copyManager;
+    final String sqlCopy;
+    final CopyEncoder encoder;
+    CopyIn copyIn;
+    final CopyBuffer buffer = new CopyBuffer(64 * 1024);
+    int rows = 0;
+    boolean finished = false;
+    IProgress.Counter counter = IProgress.Counter.NONE;
+
+
+    public CopyWriter(Connection conTgt, String tgtTable, String columnList, CopyEncoder encoder) throws SQLException {
+
+        this.encoder = encoder;
+
+        this.copyManager = conTgt.unwrap(PGConnection.class).getCopyAPI();
+        this.sqlCopy = "COPY " + tgtTable + " (" + columnList + ") FROM STDIN WITH (FORMAT " + encoder.getFormat() + ")";
+
+        // the encoded chunks of a LobValue are sent as they are filled
+        this.buffer.sink = this::send;
+
+        start();
+    }
+
+
+    void start() throws SQLException {
+
+        copyIn = copyManager.copyIn(sqlCopy);
+        finished = false;
+
+        encoder.writeHeader(buffer);
+    }
+
+
+    /**
+     * Returns the Postgres type names, e.g. int4 or timestamptz, of the columns in the target table
+     *
+     * @param conTgt - a connection to the target database, which must not be in a COPY operation
+     * @param tgtTable
+     * @param columnList - the target column names separated by commas
+     * @return
+     */
+    public static String[] getTargetTypeNames(Connection conTgt, String tgtTable, String columnList) throws SQLException {
+
+        try (Statement statTgt = conTgt.createStatement();
+             ResultSet rs = statTgt.executeQuery("SELECT " + columnList + " FROM " + tgtTable + " WHERE false")) {
+
+            ResultSetMetaData rsMetaData = rs.getMetaData();
+            String[] result = new String[rsMetaData.getColumnCount()];
+
+            for (int i = 1; i <= result.length; i++)
+                result[i - 1] = rsMetaData.getColumnTypeName(i);
+
+            return result;
+        }
+    }
+
+
+    @Override
+    public void write(Object[] values) throws SQLException {
+
+        encoder.encodeRow(values, buffer);
+        rows++;
+    }
+
+
+    @Override
+    public int flush() throws SQLException {
+
+        if (buffer.size() > 0)
+            send(buffer);
+
+        buffer.reset();
+
+        int result = rows;
+        rows = 0;
+
+        return result;
+    }
+
+
+    /**
+     * Sends rows that were already encoded, e.g. by another thread, with an encoder of the same format
+     *
+     * @param encoded - the encoded rows
+     * @param rows - the number of rows in encoded
+     * @return - the number of rows that were sent
+     */
+    public int writeEncoded(CopyBuffer encoded, int rows) throws SQLException {
+
+        flush();    // send the header if it was not sent yet
+
+        if (encoded.size() > 0)
+            send(encoded);
+
+        return rows;
+    }
+
+
+    void send(CopyBuffer encoded) throws SQLException {
+
+        copyIn.writeToCopy(encoded.array(), 0, encoded.size());
+        counter.bytes(encoded.size());
+    }
+
+
+    @Override
+    public void finish() throws SQLException {
+
+        encoder.writeTrailer(buffer);
+        flush();
+
+        copyIn.endCopy();
+        finished = true;
+    }
+
+
+    /**
+     * Ends the COPY operation, commits it, and starts a new COPY operation in a new transaction
+     */
+    @Override
+    public void commit(Connection conTgt) throws SQLException {
+
+        finish();
+
+        try (Statement statTgt = conTgt.createStatement()) {
+            statTgt.execute("COMMIT;");
+            statTgt.execute("BEGIN TRANSACTION;");
+        }
+
+        start();
+    }
+
+
+    @Override
+    public void close() {
+
+        if (!finished && copyIn.isActive()){
+
+            try {
+                copyIn.cancelCopy();
+            }
+            catch (SQLException ex) {
+                // the copy is aborted either way, the error was already reported by write or flush
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The dead-letter file of a table, with the rows that the target rejected with on_error skip.  The rows
+ * are written in the COPY text format, with the columns of the copy and the error as an additional last
+ * column, so they can be loaded into a copy of the target table with an additional text column, fixed,
+ * and inserted into the target table, e.g.
+ *
+ *   CREATE TABLE sales.orders_rejected (LIKE sales.orders);
+ *   ALTER TABLE sales.orders_rejected ADD COLUMN m2pg_error text;
+ *   \copy sales.orders_rejected FROM 'sales.orders.copy'
+ *
+ * The rejected rows are kept in memory by the target connection whose transaction they belong to, and are
+ * appended to the file by commit() once that transaction was committed, or are discarded by rollback(), so
+ * that the file lists only the rows of committed batches, which a resumed run does not copy again.  The
+ * file is created when the first rejected row is committed, and the rows of a run are appended to the rows
+ * of previous runs.  reset() removes the rows of the run, e.g. when the committed ranges of a split table
+ * were truncated after another range failed.
+ */
+public class DeadLetter implements AutoCloseable {
+
+    final Path path;
+    final CopyTextEncoder encoder;
+    final Map<Connection, Pending> pending = new IdentityHashMap<>();
+    OutputStream out;
+    long initialSize = -1;  // the size of the file before the first row of the run, or -1 if it did not exist
+    long rows = 0;          // the rows that were committed
+
+
+    /**
+     * The rejected rows of the current transaction of a connection
+     */
+    static class Pending {
+
+        final CopyBuffer buffer = new CopyBuffer(4 * 1024);
+        long rows = 0;
+    }
+
+
+    /**
+     * @param path - the dead-letter file
+     * @param columnTypes - the JDBC types of the columns of the copy
+     */
+    public DeadLetter(Path path, int[] columnTypes) {
+
+        this.path = path;
+        this.encoder = new CopyTextEncoder(columnTypes);
+    }
+
+
+    /**
+     * Returns the path of the dead-letter file of the table in dml.dead_letter_dir, or in the directory
+     * [name]-rejected of the current directory if dead_letter_dir is empty
+     */
+    public static Path getPath(Config config, String tgtTable) {
+
+        String dir = (String) config.dml.getOrDefault("dead_letter_dir", "");
+
+        if (dir.isEmpty())
+            dir = config.name + "-rejected";
+
+        return Paths.get(dir, tgtTable + ".copy");
+    }
+
+
+    /**
+     * Adds the row and the error to the rows of the current transaction of conTgt.  Values that the encoder
+     * rejects, e.g. a value of an unsupported type, are written as text.
+     */
+    public synchronized void write(Connection conTgt, Object[] values, String error) {
+
+        Pending rejected = pending.computeIfAbsent(conTgt, con -> new Pending());
+        CopyBuffer buffer = rejected.buffer;
+
+        for (int i = 0; i < values.length; i++){
+
+            int pos = buffer.size();
+
+            try {
+                encoder.encodeValue(values[i], encoder.columnTypes[i], buffer);
+            }
+            catch (SQLException | RuntimeException ex) {
+                buffer.size = pos;
+                buffer.writeUtf8(String.valueOf(values[i]), true);
+            }
+
+            buffer.write('\t');
+        }
+
+        buffer.writeUtf8(error == null ? "" : error, true);
+        buffer.write('\n');
+
+        rejected.rows++;
+    }
+
+
+    /**
+     * Appends the rows of the transaction of conTgt, which was committed, to the file
+     */
+    public synchronized void commit(Connection conTgt) throws IOException {
+
+        Pending rejected = pending.remove(conTgt);
+
+        if (rejected == null || rejected.rows == 0)
+            return;
+
+        if (out == null){
+            Files.createDirectories(path.toAbsolutePath().getParent());
+
+            if (initialSize < 0 && Files.exists(path))
+                initialSize = Files.size(path);
+
+            out = new BufferedOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        }
+
+        out.write(rejected.buffer.array(), 0, rejected.buffer.size());
+        out.flush();    // the file is read when the table failed or the run was aborted, so keep it complete
+
+        rows += rejected.rows;
+    }
+
+
+    /**
+     * Discards the rows of the transaction of conTgt, which was rolled back
+     */
+    public synchronized void rollback(Connection conTgt) {
+        pending.remove(conTgt);
+    }
+
+
+    /**
+     * Removes the rows that were appended in this run, since their transactions were undone
+     */
+    public synchronized void reset() throws IOException {
+
+        close();
+
+        if (rows == 0)
+            return;
+
+        if (initialSize < 0)
+            Files.deleteIfExists(path);
+        else
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(initialSize);
+            }
+
+        rows = 0;
+    }
+
+
+    /**
+     * Closes the file.  The rows of transactions that were not committed are discarded.
+     */
+    @Override
+    public synchronized void close() {
+
+        pending.clear();
+
+        if (out == null)
+            return;
+
+        try {
+            out.close();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+
+        out = null;
+    }
+}
@@ -0,0 +1,204 @@
+package net.twentyonesolutions.m2pg;
+
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Map;
+
+/**
+ * The fetch size of the source ResultSet of a table, i.e. the number of rows that the driver reads from
+ * the source in each round trip.  The fetch size is dml.fetch.budget_kb divided by the width of a row, so
+ * that narrow tables are read with few round trips and the rows of wide tables do not fill the heap.
+ *
+ * The width is first estimated from the types and the maxLength of the columns, and is then measured from
+ * a sample of the rows that are read, and the fetch size of the ResultSet is adjusted when it differs from
+ * the fetch size of the measured width by more than ADJUST_RATIO.  A fetch size in dml.fetch.sizes is used
+ * as is for its table.
+ */
+public class FetchSize {
+
+    // every SAMPLE_INTERVAL-th row is measured
+    static final int SAMPLE_INTERVAL = 64;
+
+    // the fetch size is changed only if the new size differs by more than this ratio
+    static final double ADJUST_RATIO = 1.25;
+
+    // the width of a LOB value, which is streamed and is not measured, see LobValue
+    static final int LOB_BYTES = 8 * 1024;
+
+    final long budgetBytes;
+    final int minRows;
+    final int maxRows;
+    final boolean isFixed;
+    final long estimatedRowBytes;
+    final int initialRows;
+
+    int rows;
+    int adjustments = 0;
+    long row = 0;
+    long sampledBytes = 0;
+    long sampledRows = 0;
+
+
+    public FetchSize(Config config, Table table) {
+
+        this.budgetBytes = Math.max(config.getDmlInt("fetch.budget_kb", 4096), 1) * 1024L;
+        this.minRows = Math.max(config.getDmlInt("fetch.min_rows", 100), 1);
+        this.maxRows = Math.max(config.getDmlInt("fetch.max_rows", 50_000), minRows);
+        this.estimatedRowBytes = estimateRowBytes(table);
+
+        int fixedRows = Config.getInt((Map<String, Object>) config.dml.get("fetch.sizes"), "dml.fetch.sizes.", table.toString(), 0);
+
+        this.isFixed = fixedRows > 0;
+        this.initialRows = isFixed ? fixedRows : getRows(estimatedRowBytes);
+        this.rows = initialRows;
+    }
+
+
+    /**
+     * Returns the number of rows of the budget for rows of the given width, between min_rows and max_rows
+     */
+    int getRows(long rowBytes){
+
+        long result = budgetBytes / Math.max(rowBytes, 1);
+
+        return (int) Math.max(minRows, Math.min(maxRows, result));
+    }
+
+
+    /**
+     * Returns the estimated width of a row of the table from the types of its columns
+     */
+    static long estimateRowBytes(Table table){
+
+        long result = 0;
+
+        for (Column col : table.columns)
+            result += estimateBytes(col);
+
+        return result;
+    }
+
+
+    /**
+     * Returns the estimated width of a value of the column, the declared length for character and binary
+     * columns, with two bytes per character for the national character types
+     */
+    static int estimateBytes(Column col){
+
+        if (col.isLob())
+            return LOB_BYTES;
+
+        switch (col.type){
+            case "BIT":
+            case "TINYINT":
+                return 1;
+            case "SMALLINT":
+                return 2;
+            case "INT":
+            case "REAL":
+            case "DATE":
+            case "SMALLDATETIME":
+            case "SMALLMONEY":
+                return 4;
+            case "BIGINT":
+            case "FLOAT":
+            case "MONEY":
+            case "TIME":
+            case "DATETIME":
+            case "DATETIME2":
+                return 8;
+            case "DECIMAL":
+            case "NUMERIC":
+            case "DATETIMEOFFSET":
+            case "UNIQUEIDENTIFIER":
+                return 16;
+        }
+
+        if (col.maxLength > 0)
+            return col.type.startsWith("N") ? col.maxLength * 2 : col.maxLength;
+
+        return 16;
+    }
+
+
+    /**
+     * Returns the measured width of the value, with two bytes per character of strings
+     */
+    static long getBytes(Object value){
+
+        if (value == null)
+            return 1;
+
+        if (value instanceof String)
+            return ((String) value).length() * 2L;
+
+        if (value instanceof byte[])
+            return ((byte[]) value).length;
+
+        if (value instanceof BigDecimal)
+            return 16;
+
+        if (value instanceof LobValue)
+            return LOB_BYTES;
+
+        return 8;
+    }
+
+
+    /**
+     * Measures the width of every SAMPLE_INTERVAL-th row
+     *
+     * @param values - the values of a row that was read
+     */
+    public void sample(Object[] values){
+
+        if (isFixed || ++row % SAMPLE_INTERVAL != 0)
+            return;
+
+        long bytes = 0;
+        for (Object value : values)
+            bytes += getBytes(value);
+
+        sampledBytes += bytes;
+        sampledRows++;
+    }
+
+
+    /**
+     * Sets the fetch size of the ResultSet to the fetch size of the measured width, if it differs from the
+     * current fetch size by more than ADJUST_RATIO.  Called after each batch, the new size is used by the
+     * next round trip of the driver.
+     */
+    public void adjust(ResultSet rs) throws SQLException {
+
+        if (isFixed || sampledRows == 0)
+            return;
+
+        int target = getRows(sampledBytes / sampledRows);
+
+        if (target > rows * ADJUST_RATIO || target < rows / ADJUST_RATIO){
+            rs.setFetchSize(target);
+            rows = target;
+            adjustments++;
+        }
+    }
+
+
+    /**
+     * Returns a comment for the log with the initial fetch size, and the measured width and the final fetch
+     * size if the fetch size was adjusted
+     */
+    public String describe(){
+
+        if (isFixed)
+            return String.format(" /* fetch size %,d rows from dml.fetch.sizes */\n", rows);
+
+        String result = String.format(" /* fetch size %,d rows for an estimated %,d bytes per row", initialRows, estimatedRowBytes);
+
+        if (adjustments > 0)
+            result += String.format(", adjusted %d times to %,d rows for a measured %,d bytes per row", adjustments, rows, sampledBytes / sampledRows);
+
+        return result + " */\n";
+    }
+}
@@ -0,0 +1,91 @@
+package net.twentyonesolutions.m2pg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A foreign key of a source table, from information_schema.foreign_keys_query.  Foreign keys are added
+ * NOT VALID after the keys of the referenced tables were created, so adding them does not scan the rows,
+ * and are then validated in a separate statement, which does not block the writes to the tables.
+ */
+public class ForeignKey {
+
+    final String name;
+    final Table referencedTable;
+    final List<Column> columns = new ArrayList<>();
+    final List<Column> referencedColumns = new ArrayList<>();
+    final String onDelete;
+    final String onUpdate;
+
+
+    /**
+     * @param name
+     * @param referencedTable
+     * @param onDelete - the referential action, e.g. NO_ACTION, CASCADE, SET_NULL, or SET_DEFAULT
+     * @param onUpdate - the referential action
+     */
+    public ForeignKey(String name, Table referencedTable, String onDelete, String onUpdate) {
+
+        this.name = name;
+        this.referencedTable = referencedTable;
+        this.onDelete = getAction(onDelete);
+        this.onUpdate = getAction(onUpdate);
+    }
+
+
+    static String getAction(String action){
+
+        if (action == null)
+            return "";
+
+        action = action.trim().replace('_', ' ').toUpperCase();
+
+        return action.equals("NO ACTION") ? "" : action;
+    }
+
+
+    public void addColumn(Column col, Column referencedCol){
+
+        columns.add(col);
+        referencedColumns.add(referencedCol);
+    }
+
+
+    public String getDdl(Config config, Table table){
+
+        String result = "ALTER TABLE " + config.getTargetTableName(table)
+                + " ADD CONSTRAINT " + name
+                + " FOREIGN KEY (" + getColumnList(config, columns) + ")"
+                + " REFERENCES " + config.getTargetTableName(referencedTable)
+                + " (" + getColumnList(config, referencedColumns) + ")";
+
+        if (!onDelete.isEmpty())
+            result += " ON DELETE " + onDelete;
+
+        if (!onUpdate.isEmpty())
+            result += " ON UPDATE " + onUpdate;
+
+        return result + " NOT VALID;";
+    }
+
+
+    public String getValidateDdl(Config config, Table table){
+
+        return "ALTER TABLE " + config.getTargetTableName(table) + " VALIDATE CONSTRAINT " + name + ";";
+    }
+
+
+    static String getColumnList(Config config, List<Column> cols){
+
+        return cols.stream()
+            .map(col -> config.getTargetColumnName(col.name))
+            .collect(Collectors.joining(", "));
+    }
+
+
+    @Override
+    public String toString() {
+        return "FOREIGN KEY " + name;
+    }
+}
@@ -1,9 +1,99 @@
 package net.twentyonesolutions.m2pg;
 
+import java.util.concurrent.atomic.AtomicLong;
+
 public interface IProgress {
 
     void progress(Status status);
 
+    /**
+     * Returns the counter that the copy threads of a table update after each batch of rows.  The default
+     * counter reports each update as a Status.  Implementations that aggregate the counters on their own
+     * thread override this method so that the copy threads only increment a counter.
+     *
+     * @param name - the table name
+     * @param rowCount - the number of rows that will be copied
+     */
+    default Counter getCounter(String name, long rowCount) {
+        return new StatusCounter(this, name, rowCount);
+    }
+
+
+    /**
+     * The progress of a single table, which can be updated concurrently by the threads of its ranges
+     */
+    interface Counter {
+
+        Counter NONE = new Counter() {
+            @Override public void add(long rows) {}
+            @Override public void done() {}
+        };
+
+        /**
+         * Adds the number of rows that were copied since the last update
+         */
+        void add(long rows);
+
+        /**
+         * Marks the table as completed, or failed, so that it is no longer reported
+         */
+        void done();
+
+        /**
+         * Adds the number of rows that were read from the source since the last update
+         */
+        default void read(long rows) {}
+
+        /**
+         * Adds the number of bytes that were sent to the target since the last update
+         */
+        default void bytes(long bytes) {}
+
+        /**
+         * Adds the change in the number of batches that were read but not written yet
+         */
+        default void queued(int batches) {}
+
+        /**
+         * Counts an error of the copy
+         */
+        default void error() {}
+
+        /**
+         * Adds the time that was spent in a phase of the copy, e.g. count, copy, or commit
+         */
+        default void phase(String phase, long nanos) {}
+    }
+
+
+    /**
+     * Reports the updates of a counter as Status objects to IProgress.progress()
+     */
+    class StatusCounter implements Counter {
+
+        final IProgress progress;
+        final String name;
+        final long rowCount;
+        final AtomicLong rows = new AtomicLong();
+
+        StatusCounter(IProgress progress, String name, long rowCount) {
+            this.progress = progress;
+            this.name = name;
+            this.rowCount = rowCount;
+        }
+
+        @Override
+        public void add(long rows) {
+            progress.progress(new Status(name, this.rows.addAndGet(rows), rowCount));
+        }
+
+        @Override
+        public void done() {
+            progress.progress(new Status(name, Math.max(rows.get(), rowCount), rowCount));
+        }
+    }
+
+
     class Status {
 
         static final Status EMPTY = new Status("", 0, 0);
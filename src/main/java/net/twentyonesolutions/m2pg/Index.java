@@ -0,0 +1,92 @@
+package net.twentyonesolutions.m2pg;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A primary key, unique constraint, or index of a source table, from information_schema.indexes_query.
+ * The keys and indexes are created after the rows of the table were copied, so that the rows are written
+ * to heap tables without the maintenance of the indexes.
+ */
+public class Index {
+
+    public static final String PRIMARY_KEY = "PRIMARY KEY";
+    public static final String UNIQUE = "UNIQUE";
+    public static final String UNIQUE_INDEX = "UNIQUE INDEX";
+    public static final String INDEX = "INDEX";
+
+    final String name;
+    final String type;
+    final List<Column> columns = new ArrayList<>();
+    final List<Boolean> descending = new ArrayList<>();
+    final List<Column> included = new ArrayList<>();
+
+    // the name in the target schema, which is unique among the indexes of the schema
+    String targetName;
+
+
+    public Index(String name, String type) {
+
+        this.name = name;
+        this.type = (type == null) ? INDEX : type.trim().toUpperCase();
+        this.targetName = name;
+    }
+
+
+    /**
+     * Returns true for primary keys and unique constraints, which are added with ALTER TABLE and can be
+     * referenced by foreign keys
+     */
+    public boolean isConstraint(){
+        return type.equals(PRIMARY_KEY) || type.equals(UNIQUE);
+    }
+
+
+    public void addColumn(Column col, boolean isDescending, boolean isIncluded){
+
+        if (isIncluded){
+            included.add(col);
+        }
+        else {
+            columns.add(col);
+            descending.add(isDescending);
+        }
+    }
+
+
+    public String getDdl(Config config, Table table){
+
+        String tgtTable = config.getTargetTableName(table);
+
+        if (isConstraint()){
+
+            String colsSql = columns.stream()
+                .map(col -> config.getTargetColumnName(col.name))
+                .collect(Collectors.joining(", "));
+
+            return "ALTER TABLE " + tgtTable + " ADD CONSTRAINT " + targetName + " " + type + " (" + colsSql + ");";
+        }
+
+        List<String> cols = new ArrayList<>();
+        for (int i = 0; i < columns.size(); i++)
+            cols.add(config.getTargetColumnName(columns.get(i).name) + (descending.get(i) ? " DESC" : ""));
+
+        String result = "CREATE " + (type.equals(UNIQUE_INDEX) ? "UNIQUE " : "") + "INDEX IF NOT EXISTS " + targetName
+                + " ON " + tgtTable + " (" + String.join(", ", cols) + ")";
+
+        if (!included.isEmpty()){
+            result += " INCLUDE (" + included.stream()
+                    .map(col -> config.getTargetColumnName(col.name))
+                    .collect(Collectors.joining(", ")) + ")";
+        }
+
+        return result + ";";
+    }
+
+
+    @Override
+    public String toString() {
+        return type + " " + name;
+    }
+}
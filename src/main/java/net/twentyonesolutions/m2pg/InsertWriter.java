@@ -0,0 +1,133 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Writes rows with a batched INSERT statement
+ */
+public class InsertWriter implements RowWriter {
+
+    final PreparedStatement statInsert;
+    final int[] columnTypes;
+    final ColumnCodec.Binder[] binders;
+
+
+    public InsertWriter(PreparedStatement statInsert, int[] columnTypes) {
+        this.statInsert = statInsert;
+        this.columnTypes = columnTypes;
+        this.binders = ColumnCodec.getBinders(columnTypes);
+    }
+
+
+    @Override
+    public void write(Object[] values) throws SQLException {
+
+        for (int i = 1; i <= columnTypes.length; i++) {
+
+            if (values[i - 1] instanceof LobValue) {
+                setStream(i, (LobValue) values[i - 1]);
+                continue;
+            }
+
+            if (values[i - 1] == null)
+                statInsert.setNull(i, columnTypes[i - 1]);
+            else
+                binders[i - 1].bind(statInsert, i, values[i - 1]);
+//            statInsert.setObject(i, value, sqlTypes[i - 1]);    // throws java.sql.SQLFeatureNotSupportedException: Method org.postgresql.jdbc.PgPreparedStatement.setObject is not yet implemented.
+        }
+
+        statInsert.addBatch();
+    }
+
+
+    /**
+     * Binds the stream of the value, which the driver reads before the ResultSet moves to the next row
+     */
+    void setStream(int i, LobValue value) throws SQLException {
+
+        if (value.isBinary) {
+
+            InputStream stream = value.getBinaryStream();
+            if (stream == null)
+                statInsert.setNull(i, columnTypes[i - 1]);
+            else
+                statInsert.setBinaryStream(i, stream);
+        }
+        else {
+
+            Reader reader = value.getCharacterStream();
+            if (reader == null)
+                statInsert.setNull(i, columnTypes[i - 1]);
+            else
+                statInsert.setCharacterStream(i, reader);
+        }
+    }
+
+
+    @Override
+    public int flush() throws SQLException {
+
+        int[] executeResult = statInsert.executeBatch();
+
+        return getUpdateCount(executeResult);
+    }
+
+
+    @Override
+    public void finish() {}
+
+
+    @Override
+    public void commit(Connection conTgt) throws SQLException {
+
+        try (Statement statTgt = conTgt.createStatement()) {
+            statTgt.execute("COMMIT;");
+            statTgt.execute("BEGIN TRANSACTION;");
+        }
+    }
+
+
+    @Override
+    public void close() {
+
+        try {
+            statInsert.close();
+        }
+        catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Returns the number of rows affected by executeBatch().  Drivers may report SUCCESS_NO_INFO, e.g.
+     * pgjdbc with reWriteBatchedInserts=true, in which case each such entry is counted as one row.
+     *
+     * @param executeResult - the result of Statement.executeBatch()
+     * @return
+     */
+    static int getUpdateCount(int[] executeResult){
+
+        int result = 0;
+
+        for (int count : executeResult){
+            if (count >= 0)
+                result += count;
+            else if (count == Statement.SUCCESS_NO_INFO)
+                result++;
+        }
+
+        return result;
+    }
+
+
+    @Override
+    public String toString() {
+        return statInsert.toString();
+    }
+}
@@ -0,0 +1,174 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * The value of a LOB column, see Column.isLob(), in the current row of the source ResultSet.  It is read
+ * with getBinaryStream() or getCharacterStream() when the row is written, instead of with getObject(),
+ * which materializes the whole value as a byte[] or String, so that a table with large values is copied
+ * with buffers of a bounded size:
+ *   - CopyTextEncoder encodes the value in chunks of CHUNK_SIZE and sends the encoded chunks to the
+ *     COPY operation as they are filled, see CopyBuffer.drain()
+ *   - InsertWriter binds the stream with setBinaryStream() or setCharacterStream(), and pgjdbc spools
+ *     values of more than 50KB to a temporary file until the batch is executed
+ *
+ * The value must be written before the ResultSet moves to the next row, so the values of a LOB table are
+ * not buffered by the reader of the CopyPipeline or by the SkipWriter of on_error skip, which read the
+ * values with getObject().  The LOB columns are the last columns of the SELECT, see
+ * Table.getCopyColumns(), and the streams are read in the order of the columns.
+ */
+public class LobValue {
+
+    static final int CHUNK_SIZE = 64 * 1024;
+
+    final ResultSet rs;
+    final int index;
+    final boolean isBinary;
+
+
+    /**
+     * @param rs - the source ResultSet
+     * @param index - the 1-based index of the column in the ResultSet
+     * @param isBinary - true to read the value as bytes, false to read it as characters
+     */
+    public LobValue(ResultSet rs, int index, boolean isBinary) {
+        this.rs = rs;
+        this.index = index;
+        this.isBinary = isBinary;
+    }
+
+
+    /**
+     * Returns an array with a LobValue at the index of each LOB column and null at the index of the other
+     * columns, or null if the columns have no LOB column.  The LobValue reads the current row of the
+     * ResultSet, so it is reused for all of the rows.
+     *
+     * @param columns - the columns of the SELECT, see Table.getCopyColumns()
+     * @param rs
+     */
+    public static LobValue[] create(List<Column> columns, ResultSet rs){
+
+        LobValue[] result = null;
+
+        for (int i = 0; i < columns.size(); i++){
+
+            Column col = columns.get(i);
+
+            if (col.isLob()){
+
+                if (result == null)
+                    result = new LobValue[columns.size()];
+
+                result[i] = new LobValue(rs, i + 1, col.isBinaryLob());
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * @return - the stream of the value, or null if the value is NULL
+     */
+    public InputStream getBinaryStream() throws SQLException {
+        return rs.getBinaryStream(index);
+    }
+
+
+    /**
+     * @return - the reader of the value, or null if the value is NULL
+     */
+    public Reader getCharacterStream() throws SQLException {
+        return rs.getCharacterStream(index);
+    }
+
+
+    /**
+     * Writes the value in the COPY text format, a chunk at a time, and drains the buffer to its sink after
+     * each chunk
+     */
+    public void encodeText(CopyBuffer out) throws SQLException {
+
+        try {
+            if (isBinary)
+                encodeBytes(out);
+            else
+                encodeChars(out);
+        }
+        catch (IOException ex) {
+            throw new SQLException("Failed to read the value of column " + index + " from the source", ex);
+        }
+    }
+
+
+    void encodeBytes(CopyBuffer out) throws SQLException, IOException {
+
+        try (InputStream in = getBinaryStream()) {
+
+            if (in == null){
+                out.write('\\');
+                out.write('N');
+                return;
+            }
+
+            // bytea hex format, the backslash of \x is escaped for the text format
+            out.write('\\');
+            out.write('\\');
+            out.write('x');
+
+            byte[] chunk = new byte[CHUNK_SIZE / 2];
+            int n;
+
+            while ((n = in.read(chunk)) != -1){
+                out.writeHex(chunk, 0, n);
+                out.drain();
+            }
+        }
+    }
+
+
+    void encodeChars(CopyBuffer out) throws SQLException, IOException {
+
+        try (Reader reader = getCharacterStream()) {
+
+            if (reader == null){
+                out.write('\\');
+                out.write('N');
+                return;
+            }
+
+            char[] chunk = new char[CHUNK_SIZE];
+            int len = 0, n;
+
+            while ((n = reader.read(chunk, len, chunk.length - len)) != -1){
+
+                len += n;
+
+                // keep a high surrogate at the end of the chunk for its low surrogate in the next chunk
+                int end = Character.isHighSurrogate(chunk[len - 1]) ? len - 1 : len;
+
+                out.writeUtf8(CharBuffer.wrap(chunk, 0, end), true);
+                out.drain();
+
+                len -= end;
+                if (len > 0)
+                    chunk[0] = chunk[end];
+            }
+
+            if (len > 0)
+                out.writeUtf8(CharBuffer.wrap(chunk, 0, len), true);
+        }
+    }
+
+
+    @Override
+    public String toString() {
+        return "<stream of column " + index + ">";
+    }
+}
@@ -0,0 +1,251 @@
+package net.twentyonesolutions.m2pg;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Publishes the counters of a ProgressReporter so that unattended runs can be monitored.
+ *
+ * The run and each table that was started are registered as MXBeans in the platform MBeanServer under
+ * net.twentyonesolutions.m2pg, e.g. for jconsole or a JMX exporter.  If dml.metrics.textfile is set then
+ * the metrics are also written to that file in the Prometheus text format after each report, e.g. to
+ * the directory of the textfile collector of node_exporter.  The file is replaced atomically so that a
+ * scrape never reads a partial file.
+ */
+public class MetricsExporter implements AutoCloseable {
+
+    static final String DOMAIN = "net.twentyonesolutions.m2pg";
+
+    final ProgressReporter reporter;
+    final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    final List<ObjectName> registered = new ArrayList<>();
+    final Set<ProgressReporter.TableCounter> registeredTables = new HashSet<>();
+    Path textfile;
+
+
+    public MetricsExporter(ProgressReporter reporter, Config config) {
+
+        this.reporter = reporter;
+
+        String filename = (String) config.dml.get("metrics.textfile");
+        this.textfile = Util.isEmpty(filename) ? null : Paths.get(filename);
+
+        register(DOMAIN + ":type=Run", reporter);
+    }
+
+
+    /**
+     * Registers the tables that were started since the last export and rewrites the textfile.  Called by the
+     * reporter thread.
+     */
+    synchronized void export() {
+
+        for (ProgressReporter.TableCounter counter : reporter.counters.values()) {
+            if (registeredTables.add(counter))
+                register(DOMAIN + ":type=Table,name=" + ObjectName.quote(counter.name), counter);
+        }
+
+        if (textfile == null)
+            return;
+
+        try {
+            Util.writeAtomically(textfile, getTextfile());
+        }
+        catch (IOException ex) {
+            // report the error once instead of after each report
+            System.err.println("\nFailed to write metrics to " + textfile.toAbsolutePath() + ", " + ex.toString());
+            textfile = null;
+        }
+    }
+
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format
+     */
+    String getTextfile() {
+
+        StringBuilder sb = new StringBuilder(4096);
+        List<ProgressReporter.TableCounter> counters = new ArrayList<>(reporter.counters.values());
+
+        gauge(sb, "m2pg_run_elapsed_seconds", "Seconds since the copy started");
+        sb.append("m2pg_run_elapsed_seconds ").append(reporter.getElapsedSeconds()).append('\n');
+
+        gauge(sb, "m2pg_run_tables_left", "Tables that were not completed yet");
+        sb.append("m2pg_run_tables_left ").append(reporter.getTablesLeft()).append('\n');
+
+        gauge(sb, "m2pg_run_rows_per_second", "Moving average of the rows that are written per second by all tables");
+        sb.append("m2pg_run_rows_per_second ").append(reporter.getRowsPerSecond()).append('\n');
+
+        gauge(sb, "m2pg_connections_active", "Connections that are borrowed from the pool");
+        for (ConnectionPool pool : reporter.config.pools.values())
+            sb.append("m2pg_connections_active{pool=\"").append(escape(pool.name)).append("\"} ").append(pool.active.get()).append('\n');
+
+        counter(sb, "m2pg_connections_opened_total", "Physical connections that were opened by the pool");
+        for (ConnectionPool pool : reporter.config.pools.values())
+            sb.append("m2pg_connections_opened_total{pool=\"").append(escape(pool.name)).append("\"} ").append(pool.opened.get()).append('\n');
+
+        gauge(sb, "m2pg_table_rows", "Rows in the source table when the copy started");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_table_rows", c, c.getRowCount());
+
+        counter(sb, "m2pg_rows_read_total", "Rows that were read from the source table");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_rows_read_total", c, c.getRowsRead());
+
+        counter(sb, "m2pg_rows_written_total", "Rows that were written to the target table");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_rows_written_total", c, c.getRowsWritten());
+
+        counter(sb, "m2pg_bytes_written_total", "Bytes that were sent to the target table with COPY");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_bytes_written_total", c, c.getBytesWritten());
+
+        gauge(sb, "m2pg_rows_per_second", "Moving average of the rows that are written per second");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_rows_per_second", c, c.getRowsPerSecond());
+
+        gauge(sb, "m2pg_queue_depth", "Batches that were read but not written yet");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_queue_depth", c, c.getQueueDepth());
+
+        counter(sb, "m2pg_errors_total", "Errors of the copy");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_errors_total", c, c.getErrors());
+
+        gauge(sb, "m2pg_table_done", "1 if the copy of the table completed or failed");
+        for (ProgressReporter.TableCounter c : counters)
+            sample(sb, "m2pg_table_done", c, c.isDone() ? 1 : 0);
+
+        counter(sb, "m2pg_phase_seconds_total", "Seconds that were spent in each phase of the copy, i.e. count, copy, and commit");
+        for (ProgressReporter.TableCounter c : counters) {
+            for (Map.Entry<String, Double> e : c.getPhaseSeconds().entrySet()) {
+                sb.append("m2pg_phase_seconds_total{table=\"").append(escape(c.name))
+                  .append("\",phase=\"").append(escape(e.getKey()))
+                  .append("\"} ").append(e.getValue()).append('\n');
+            }
+        }
+
+        return sb.toString();
+    }
+
+
+    static void gauge(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" gauge\n");
+    }
+
+
+    static void counter(StringBuilder sb, String name, String help) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append("\n# TYPE ").append(name).append(" counter\n");
+    }
+
+
+    static void sample(StringBuilder sb, String name, ProgressReporter.TableCounter c, Number value) {
+        sb.append(name).append("{table=\"").append(escape(c.name)).append("\"} ").append(value).append('\n');
+    }
+
+
+    /**
+     * Escapes a label value, i.e. backslash, double quote, and line feed
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+
+    void register(String name, Object mBean) {
+
+        try {
+            ObjectName objectName = new ObjectName(name);
+
+            // e.g. a previous command in the same JVM
+            if (mBeanServer.isRegistered(objectName))
+                mBeanServer.unregisterMBean(objectName);
+
+            mBeanServer.registerMBean(mBean, objectName);
+            registered.add(objectName);
+        }
+        catch (Exception ex) {
+            System.err.println("\nFailed to register MBean " + name + ", " + ex.toString());
+        }
+    }
+
+
+    /**
+     * Unregisters the MBeans
+     */
+    @Override
+    public synchronized void close() {
+
+        for (ObjectName objectName : registered) {
+            try {
+                mBeanServer.unregisterMBean(objectName);
+            }
+            catch (Exception ex) {
+                // already unregistered
+            }
+        }
+
+        registered.clear();
+    }
+
+
+    /**
+     * The metrics of the run
+     */
+    public interface RunMXBean {
+
+        int getTablesLeft();
+
+        long getRowsRead();
+
+        long getRowsWritten();
+
+        long getBytesWritten();
+
+        double getRowsPerSecond();
+
+        long getQueueDepth();
+
+        long getErrors();
+
+        int getActiveConnections();
+
+        double getElapsedSeconds();
+    }
+
+
+    /**
+     * The metrics of a table
+     */
+    public interface TableMXBean {
+
+        String getName();
+
+        long getRowCount();
+
+        long getRowsRead();
+
+        long getRowsWritten();
+
+        long getBytesWritten();
+
+        double getRowsPerSecond();
+
+        long getQueueDepth();
+
+        long getErrors();
+
+        boolean isDone();
+
+        Map<String, Double> getPhaseSeconds();
+    }
+}
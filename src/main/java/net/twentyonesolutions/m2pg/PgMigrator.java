@@ -13,14 +13,9 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.FutureTask;
-import java.util.concurrent.atomic.AtomicLong;
 
 import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 
@@ -36,17 +31,33 @@ public class PgMigrator {
 
     public final static String USAGE = "Usage: java <options> "
             + PgMigrator.class.getCanonicalName()
-            + " <command> [<config-file> [<output-file>]]\n"
+            + " <command> [--resume] [<config-file> [<output-file>]]\n"
             + "    where command can be:\n"
             + "        ddl - generate DDL script and execute it if the target DB is empty\n"
             + "        dml - copy the data from the source DB to the target DB\n"
-            + "        all - run the ddl command and if executed run the dml command";
+            + "        all - run the ddl command and if executed run the dml command\n"
+            + "        sync - upsert the rows that changed since the previous sync, by the watermark column of each table\n"
+            + "        extract - write the data of the source DB to compressed COPY files in dml.stage.dir\n"
+            + "        load - load the files of the extract command into the target DB, without a connection to the source DB\n"
+            + "        verify - compare the hashes of the rows of each key range in the source DB and in the target DB\n"
+            + "        benchmark - generate the synthetic tables of the benchmark config in the source DB, copy them\n"
+            + "                    to the target DB, and write a throughput report to <output-file>.json\n"
+            + "    and --resume continues a dml command that was interrupted, from its checkpoint file";
 
 
     public static void main(String[] args) throws Exception {
 
         System.out.println(DISCL + "\n");
 
+        // options start with -- and can appear anywhere in the arguments
+        List<String> options = new ArrayList<>();
+        List<String> positional = new ArrayList<>();
+        for (String arg : args)
+            (arg.startsWith("--") ? options : positional).add(arg);
+
+        args = positional.toArray(new String[0]);
+        boolean resume = options.contains("--resume");
+
         if (args.length == 0){
             System.out.println(USAGE);
             System.exit(-1);
@@ -68,16 +79,34 @@ public class PgMigrator {
 
         Config config = Config.fromFile(configFile);
 
+        // close the pooled connections also when the run is aborted with System.exit()
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> System.out.print(config.closeConnections())));
+
         if (outputFile.isEmpty())
             outputFile = config.name + "-" + action + "-" + timestamp; // + (action.equals("ddl") ? ".sql" : ".log");
 
-        Schema schema = new Schema(config);
+        TimeZone.setDefault(TimeZone.getTimeZone(config.timezone));
 
-        TimeZone.setDefault(TimeZone.getTimeZone(schema.config.timezone));
+        if (action.equalsIgnoreCase("benchmark")){
+            // the benchmark generates the source tables before it reads the information schema
+            ThroughputBenchmark.run(config, outputFile);
+            return;
+        }
+
+        if (action.equalsIgnoreCase("load")){
+            // the files are loaded without a connection to the source, so the information schema is not read
+            doLoad(config, outputFile + ".log");
+            return;
+        }
+
+        Schema schema = new Schema(config);
 
         boolean cmdAll = action.equalsIgnoreCase("all");
         boolean cmdDdl = cmdAll || action.equalsIgnoreCase("ddl");
         boolean cmdDml = cmdAll || action.equalsIgnoreCase("dml");
+        boolean cmdSync = action.equalsIgnoreCase("sync");
+        boolean cmdExtract = action.equalsIgnoreCase("extract");
+        boolean cmdVerify = action.equalsIgnoreCase("verify");
 
         if (cmdDdl){
             // set cmdDml to false if we're not executing the DDL because the DB is not empty
@@ -85,10 +114,23 @@ public class PgMigrator {
         }
 
         if (cmdDml){
-            doDml(schema, outputFile + ".log");
+            doDml(schema, outputFile + ".log", resume);
         }
 
-        if (!cmdDdl && !cmdDml) {
+        if (cmdSync){
+            doSync(schema, outputFile + ".log");
+        }
+
+        if (cmdExtract){
+            doExtract(schema, outputFile + ".log");
+        }
+
+        if (cmdVerify){
+            if (!doVerify(schema, outputFile + ".log"))
+                System.exit(1);
+        }
+
+        if (!cmdDdl && !cmdDml && !cmdSync && !cmdExtract && !cmdVerify) {
             System.out.println(USAGE);
             System.exit(-1);
         }
@@ -132,12 +174,45 @@ public class PgMigrator {
 
         System.out.println("\n\nSee generated DDL file at " + path.toAbsolutePath().toString() + "\n");
 
+        String postLoadDdl = schema.generatePostLoadDdl();
+        if ((boolean) schema.config.ddl.getOrDefault("post_load", false) && postLoadDdl.contains(";")){
+
+            Path postLoadPath = Files.write(Paths.get(filename.replaceFirst("\\.sql$", "") + "-post-load.sql"), postLoadDdl.getBytes(StandardCharsets.UTF_8));
+
+            System.out.println("See the keys and indexes that the dml command creates after the data is copied at " + postLoadPath.toAbsolutePath() + "\n");
+        }
+
         return executeDdl;
     }
 
 
     public static void doDml(Schema schema, String filename) throws IOException, SQLException {
-        IProgress progress = new ProgressOneline(schema);
+        doDml(schema, filename, false);
+    }
+
+
+    /**
+     * Copies the data of all of the tables and records the progress in the checkpoint file
+     *
+     * @param schema
+     * @param filename - the log file
+     * @param resume - true to continue from the checkpoint file of a previous run
+     */
+    public static void doDml(Schema schema, String filename, boolean resume) throws IOException, SQLException {
+        doDml(schema, filename, resume, null);
+    }
+
+
+    /**
+     * Copies the data of all of the tables and records the progress in the checkpoint file
+     *
+     * @param schema
+     * @param filename - the log file
+     * @param resume - true to continue from the checkpoint file of a previous run
+     * @param progressReporter - the reporter of the progress, or null to create one when the copy starts.
+     *                         It is closed when the copy completes.
+     */
+    public static void doDml(Schema schema, String filename, boolean resume, ProgressReporter progressReporter) throws IOException, SQLException {
 
         long tc = System.currentTimeMillis();
 
@@ -168,46 +243,43 @@ public class PgMigrator {
             Util.log(path, logentry);
         }
 
-        int numThreads = 1;
+        Path checkpointPath = Checkpoint.getPath(schema.config);
+        Checkpoint checkpoint = resume ? Checkpoint.load(checkpointPath) : new Checkpoint(checkpointPath);
 
-        Object arg = schema.config.dml.get("threads");
+        logentry = (resume ? "-- resuming from checkpoint file " : "-- writing checkpoint file ") + checkpointPath.toAbsolutePath();
+        System.out.println(logentry);
+        Util.log(path, logentry);
 
-        if (arg != null){
+        TaskScheduler scheduler = new TaskScheduler(schema.config);
 
-            if (arg instanceof Number){
-                numThreads = ((Number) arg).intValue();
-            }
-            else if (arg instanceof String){
+        logentry = "-- executing DML on " + scheduler.describe();
+        System.out.println(logentry);
+        Util.log(path, logentry);
 
-                if (((String) arg).equalsIgnoreCase("cores")){
-                    numThreads = Runtime.getRuntime().availableProcessors();
-                }
-                else {
+        ProgressReporter progress = (progressReporter != null) ? progressReporter : new ProgressReporter(schema);
+        scheduler.startAdaptive(progress, path);
 
-                    try {
-                        numThreads = Integer.parseInt((String) arg);
-                    }
-                    catch (NumberFormatException ex){
-                        System.err.println("Failed to parse value of [dml.threads]");
-                    }
-                }
-            }
-            else {
-                System.err.println("[dml.threads] has an invalid value: " + arg.toString());
-            }
-        }
+        List<Future<String>> tasks = new ArrayList<>();
 
-        System.out.println("Executing DML with " + numThreads + " concurrent connections");
+        if (schema.loadTableSizes()){
 
-        ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
+            StringBuilder sb = new StringBuilder("-- copying tables largest first by estimated size:");
+            schema.getCopyOrder()
+                .stream()
+                .limit(scheduler.sourceConcurrency)
+                .map(schema::getTable)
+                .forEach(t -> sb.append(String.format("\n--   %s %,d rows %,.1f MB", t, t.estimatedRows, t.estimatedBytes / 1048576.0)));
 
-        List<Future<String>> tasks = new ArrayList<>();
+            logentry = sb.toString();
+            System.out.println(logentry);
+            Util.log(path, logentry);
+        }
 
-        for (String tableName : schema.schema.keySet()){
+        for (String tableName : schema.getCopyOrder()){
 
             Callable<String> callable = () -> {
                 try {
-                    String log = schema.copyTable(tableName, progress);
+                    String log = schema.copyTable(tableName, progress, checkpoint, resume, scheduler);
                     return log;
                 }
                 catch (Exception ex) {
@@ -217,7 +289,7 @@ public class PgMigrator {
 
             FutureTask<String> task = new FutureTask(callable);
             tasks.add(task);
-            executorService.execute(task);
+            scheduler.execute(task);
         }
 
         tasks
@@ -235,7 +307,12 @@ public class PgMigrator {
                 }
             });
 
-        executorService.shutdown();
+        scheduler.close();
+        progress.close();
+        checkpoint.close();
+
+        if ((boolean) schema.config.ddl.getOrDefault("post_load", false))
+            new PostLoad(schema, path, checkpoint).run();
 
         queries = (List<String>)schema.config.dml.getOrDefault("execute.after_all", Collections.EMPTY_LIST);
         if (!queries.isEmpty()){
@@ -263,110 +340,390 @@ public class PgMigrator {
     }
 
 
-    public static String getProductName() {
+    /**
+     * Returns the number of concurrent connections in dml.threads, which can be a number or "cores", or
+     * dml.adaptive.max_threads if it is "adaptive", see AdaptiveConcurrency
+     */
+    static int getNumThreads(Config config) {
 
-        String result = PgMigrator.class.getPackage().getImplementationTitle();
+        int numThreads = 1;
 
-        return result != null ? result : "Migrate2Postgres";
+        Object arg = config.dml.get("threads");
+
+        if (arg != null){
+
+            if (arg instanceof Number){
+                numThreads = ((Number) arg).intValue();
+            }
+            else if (arg instanceof String){
+
+                if (((String) arg).equalsIgnoreCase("cores")){
+                    numThreads = Runtime.getRuntime().availableProcessors();
+                }
+                else if (isAdaptive(config)){
+                    numThreads = config.getDmlInt("adaptive.max_threads", 2 * Runtime.getRuntime().availableProcessors());
+                }
+                else {
+
+                    try {
+                        numThreads = Integer.parseInt((String) arg);
+                    }
+                    catch (NumberFormatException ex){
+                        System.err.println("Failed to parse value of [dml.threads]");
+                    }
+                }
+            }
+            else {
+                System.err.println("[dml.threads] has an invalid value: " + arg.toString());
+            }
+        }
+
+        return numThreads;
     }
 
 
-    public static String getProductVersion() {
+    static boolean isAdaptive(Config config) {
+        return "adaptive".equalsIgnoreCase(String.valueOf(config.dml.get("threads")));
+    }
 
-        String result = PgMigrator.class.getPackage().getImplementationVersion();
 
-        return result != null ? result : "";
+    /**
+     * Upserts the rows that changed since the previous sync into the target tables, and records the new
+     * watermarks in the sync state file
+     *
+     * @param schema
+     * @param filename - the log file
+     */
+    public static void doSync(Schema schema, String filename) throws IOException {
+
+        long tc = System.currentTimeMillis();
+
+        String logentry;
+        Path path = Paths.get(filename);
+        Util.log(path, getBanner());
+
+        Path statePath = SyncState.getPath(schema.config);
+        SyncState syncState = SyncState.load(statePath);
+
+        logentry = "-- reading and writing watermarks in " + statePath.toAbsolutePath();
+        System.out.println(logentry);
+        Util.log(path, logentry);
+
+        TaskScheduler scheduler = new TaskScheduler(schema.config);
+
+        logentry = "-- executing sync on " + scheduler.describe();
+        System.out.println(logentry);
+        Util.log(path, logentry);
+
+        ProgressReporter progress = new ProgressReporter(schema);
+        scheduler.startAdaptive(progress, path);
+
+        List<Future<String>> tasks = new ArrayList<>();
+
+        for (String tableName : schema.getCopyOrder()){
+
+            tasks.add(scheduler.submit(() -> {
+                try {
+                    return schema.syncTable(tableName, progress, syncState);
+                }
+                catch (Exception ex) {
+                    return ex.getMessage();
+                }
+            }));
+        }
+
+        for (Future<String> task : tasks){
+            try {
+                Util.log(path, task.get() + "\n\n");
+            }
+            catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        scheduler.close();
+        progress.close();
+
+        tc = System.currentTimeMillis() - tc;
+
+        logentry = String.format("-- %tT Completed in %.3f seconds\n", System.currentTimeMillis(), tc / 1000.0);
+        Util.log(path, logentry);
+
+        System.out.println("\n" + logentry);
+        System.out.println("See log at " + path.toAbsolutePath() + "\n");
     }
 
 
-    public static String getBanner(){
+    /**
+     * Writes the data of all of the tables to compressed COPY files in dml.stage.dir, and records the files
+     * with their row counts and checksums in the manifest of the directory
+     *
+     * @param schema
+     * @param filename - the log file
+     */
+    public static void doExtract(Schema schema, String filename) throws IOException {
 
-        return "/**\n"
-            + "\tScripted by "
-            + getProductName()
-            + " "
-            + getProductVersion()
-            + " on "
-            + ZonedDateTime.now().format(RFC_1123_DATE_TIME)
-            + "\n\n\t"
-            + DISCL.replace("\n", "\n\t")
-            + "\n**/\n\n";
+        long tc = System.currentTimeMillis();
+
+        String logentry;
+        Path path = Paths.get(filename);
+        Util.log(path, getBanner());
+
+        Path dir = StageManifest.getDir(schema.config);
+        Files.createDirectories(dir);
+
+        StageManifest manifest = StageManifest.load(dir.resolve(StageManifest.EXTRACT_FILENAME));
+
+        logentry = "-- writing " + StageManifest.getCompression(schema.config) + " files and manifest to " + dir.toAbsolutePath();
+        System.out.println(logentry);
+        Util.log(path, logentry);
+
+        TaskScheduler scheduler = new TaskScheduler(schema.config);
+
+        logentry = "-- executing extract on " + scheduler.describe();
+        System.out.println(logentry);
+        Util.log(path, logentry);
+
+        schema.loadTableSizes();
+
+        ProgressReporter progress = new ProgressReporter(schema);
+        scheduler.startAdaptive(progress, path);
+
+        List<Future<String>> tasks = new ArrayList<>();
+
+        for (String tableName : schema.getCopyOrder()){
+
+            tasks.add(scheduler.submit(() -> {
+                try {
+                    return schema.extractTable(tableName, progress, manifest);
+                }
+                catch (Exception ex) {
+                    return ex.getMessage();
+                }
+            }));
+        }
+
+        for (Future<String> task : tasks){
+            try {
+                Util.log(path, task.get() + "\n\n");
+            }
+            catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+
+        scheduler.close();
+        progress.close();
+
+        tc = System.currentTimeMillis() - tc;
+
+        logentry = String.format("-- %tT Completed in %.3f seconds\n", System.currentTimeMillis(), tc / 1000.0);
+        Util.log(path, logentry);
+
+        System.out.println("\n" + logentry);
+        System.out.println("See log at " + path.toAbsolutePath() + "\n");
     }
 
 
-    static class ProgressOneline implements IProgress {
+    /**
+     * Loads the files of the extract command in dml.stage.dir into the target tables, and records the
+     * loaded rows and the checksums of the files in the load manifest of the directory.  The tables must
+     * exist in the target, e.g. from the ddl command.
+     *
+     * @param config
+     * @param filename - the log file
+     */
+    public static void doLoad(Config config, String filename) throws IOException {
 
-        final ConcurrentMap<String, Status> processing = new ConcurrentHashMap();
-        final ConcurrentMap<String, Table> remaining = new ConcurrentHashMap<>();
-        volatile String lastLine = "";
-        AtomicLong lastReport = new AtomicLong(System.currentTimeMillis());
+        long tc = System.currentTimeMillis();
 
-        public ProgressOneline(Schema schema) {
-            this.remaining.putAll(schema.schema);
+        String logentry;
+        Path path = Paths.get(filename);
+        Util.log(path, getBanner());
+
+        Path dir = StageManifest.getDir(config);
+        Path manifestPath = dir.resolve(StageManifest.EXTRACT_FILENAME);
+
+        if (!Files.exists(manifestPath)){
+            System.err.println("The manifest " + manifestPath.toAbsolutePath() + " is not found, run the extract command first");
+            System.exit(1);
         }
 
-        @Override
-        public void progress(Status status) {
+        StageManifest manifest = StageManifest.load(manifestPath);
+        StageManifest loadManifest = new StageManifest(dir.resolve(StageManifest.LOAD_FILENAME));
+
+        logentry = "-- loading files of manifest " + manifestPath.toAbsolutePath();
+        System.out.println(logentry);
+        Util.log(path, logentry);
 
-            if (status.row >= status.rowCount){     // if new records were added to the table while copying then row will be greater than rowCount
-//                System.out.println("");
-//                System.out.println("processed " + status.name);
-                processing.remove(status.name);
-                this.remaining.remove(status.name);
-                return;
+        TaskScheduler scheduler = new TaskScheduler(config);
+
+        logentry = "-- executing load on " + scheduler.describe();
+        System.out.println(logentry);
+        Util.log(path, logentry);
+
+        // the row counts of the manifest are the estimates of the progress
+        Map<String, Table> tables = new LinkedHashMap<>();
+        manifest.tables.forEach((tableName, entry) -> {
+            Table table = new Table(tableName);
+            table.estimatedRows = entry.rows;
+            tables.put(tableName, table);
+        });
+
+        ProgressReporter progress = new ProgressReporter(config, tables);
+        scheduler.startAdaptive(progress, path);
+
+        List<Future<String>> tasks = new ArrayList<>();
+
+        manifest.tables.forEach((tableName, entry) -> {
+
+            TableLoad tableLoad = new TableLoad(config, tableName, entry, dir, progress, loadManifest);
+            tableLoad.scheduler = scheduler;
+
+            tasks.add(scheduler.submit(() -> {
+                try {
+                    return tableLoad.load();
+                }
+                catch (Exception ex) {
+                    return ex.getMessage();
+                }
+            }));
+        });
+
+        for (Future<String> task : tasks){
+            try {
+                Util.log(path, task.get() + "\n\n");
+            }
+            catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
             }
+        }
 
+        scheduler.close();
+        progress.close();
 
-//            Status prev = processing.getOrDefault(status.name, Status.EMPTY);
-//            String prevPct = (prev == Status.EMPTY) ? "0.0" : String.format("%.1f", 100.0 * prev.row / prev.rowCount);
-//            String currPct = String.format("%.1f", 100.0 * status.row / status.rowCount);
+        tc = System.currentTimeMillis() - tc;
 
-            processing.put(status.name, status);
+        logentry = String.format("-- %tT Completed in %.3f seconds\n", System.currentTimeMillis(), tc / 1000.0);
+        Util.log(path, logentry);
 
-            if (System.currentTimeMillis() - lastReport.get() < 100)
-                return;
-            lastReport.set(System.currentTimeMillis());
+        System.out.println("\n" + logentry);
+        System.out.println("See log at " + path.toAbsolutePath() + " and loaded rows at " + loadManifest.path.toAbsolutePath() + "\n");
+    }
 
-//            if (!prevPct.equals(currPct)){
-                // print status line
-                StringBuilder sb = new StringBuilder(512);
 
-                sb.append(remaining.size())
-                  .append(" table")
-                  .append(remaining.size() > 1 ? "s " : " ")
-                  .append("left");
+    /**
+     * Compares the rows of each key range of the tables in the source and in the target, see TableVerify
+     *
+     * @param schema
+     * @param filename - the log file
+     * @return - true if all of the verified ranges match
+     */
+    public static boolean doVerify(Schema schema, String filename) throws IOException {
 
-                for (Map.Entry<String, Status> e : processing.entrySet()){
+        long tc = System.currentTimeMillis();
 
-                    sb.append("   ");
-                    String name = e.getKey();
+        String logentry;
+        Path path = Paths.get(filename);
+        Util.log(path, getBanner());
 
-                    name = name.substring(name.indexOf(".") + 1);
+        TaskScheduler scheduler = new TaskScheduler(schema.config);
 
-                    Status s = e.getValue();
-                    sb.append(name).append(": ");
+        int samplePercent = schema.config.getDmlInt("verify.sample_percent", 0);
 
-                    if (s.rowCount > 10_000_000)
-                        sb.append(String.format("%.2f%%", 100.0 * s.row / s.rowCount));
-                    else if (s.rowCount > 10_000)
-                        sb.append(String.format("%.1f%%", 100.0 * s.row / s.rowCount));
-                    else
-                        sb.append(String.format("%d%%", 100 * s.row / s.rowCount));
-                }
+        logentry = "-- executing verify on " + scheduler.describe()
+                + (samplePercent > 0 && samplePercent < 100 ? ", sampling " + samplePercent + "% of the ranges" : "");
+        System.out.println(logentry);
+        Util.log(path, logentry);
+
+        schema.loadTableSizes();
 
-                String statusLine = sb.toString();
-                if (!statusLine.equals(lastLine)){
+        ProgressReporter progress = new ProgressReporter(schema);
+        scheduler.startAdaptive(progress, path);
 
-                    System.out.printf("\r%s", statusLine);
-                    if (lastLine.length() > statusLine.length())
-                        System.out.print("                                                           ");
+        Map<String, TableVerify> verifies = new LinkedHashMap<>();
+        List<Future<String>> tasks = new ArrayList<>();
+
+        for (String tableName : schema.getCopyOrder()){
 
-                    lastLine = statusLine;
+            TableVerify tableVerify = new TableVerify(schema.config, schema.getTable(tableName), progress, scheduler);
+            verifies.put(tableName, tableVerify);
+
+            tasks.add(scheduler.submit(() -> {
+                try {
+                    return tableVerify.verify();
                 }
-//            }
+                catch (Exception ex) {
+                    tableVerify.errors++;
+                    return ex.getMessage();
+                }
+            }));
+        }
+
+        for (Future<String> task : tasks){
+            try {
+                Util.log(path, task.get() + "\n\n");
+            }
+            catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
         }
+
+        scheduler.close();
+        progress.close();
+
+        List<String> failed = new ArrayList<>();
+        verifies.forEach((tableName, tableVerify) -> {
+            if (tableVerify.mismatches > 0 || tableVerify.errors > 0)
+                failed.add(tableName);
+        });
+
+        tc = System.currentTimeMillis() - tc;
+
+        logentry = String.format("-- %tT Completed in %.3f seconds, %s\n", System.currentTimeMillis(), tc / 1000.0
+                , failed.isEmpty()
+                    ? "all of the " + verifies.size() + " tables match"
+                    : failed.size() + " of " + verifies.size() + " tables do not match or failed: " + String.join(", ", failed));
+        Util.log(path, logentry);
+
+        System.out.println("\n" + logentry);
+        System.out.println("See log at " + path.toAbsolutePath() + "\n");
+
+        return failed.isEmpty();
     }
 
+
+    public static String getProductName() {
+
+        String result = PgMigrator.class.getPackage().getImplementationTitle();
+
+        return result != null ? result : "Migrate2Postgres";
+    }
+
+
+    public static String getProductVersion() {
+
+        String result = PgMigrator.class.getPackage().getImplementationVersion();
+
+        return result != null ? result : "";
+    }
+
+
+    public static String getBanner(){
+
+        return "/**\n"
+            + "\tScripted by "
+            + getProductName()
+            + " "
+            + getProductVersion()
+            + " on "
+            + ZonedDateTime.now().format(RFC_1123_DATE_TIME)
+            + "\n\n\t"
+            + DISCL.replace("\n", "\n\t")
+            + "\n**/\n\n";
+    }
+
+
     static class ProgressVerbose implements IProgress {
 
         String lastReport = "";
@@ -0,0 +1,324 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the keys, indexes, and foreign keys of Schema.getPostLoadDdl() after the rows were copied.
+ *
+ * The phases run one after the other, and the statements of a phase run concurrently on
+ * ddl.post_load_threads connections, largest tables first, so that the longest builds start first and do
+ * not become the long tail of the phase.  Each session sets maintenance_work_mem to its share of
+ * ddl.post_load_memory_mb, so that the builds that run at the same time stay within the budget, and
+ * max_parallel_maintenance_workers to ddl.post_load_parallel_workers.
+ *
+ * Each statement runs in its own transaction, so a statement that fails, e.g. a primary key on rows with
+ * duplicate keys, is logged and the other statements are still executed.  The foreign keys of a phase
+ * lock both of their tables, so two foreign keys that reference each other's tables can deadlock, and
+ * Postgres aborts one of them.  A statement that was aborted by a deadlock or a serialization failure is
+ * executed again, up to MAX_ATTEMPTS times.
+ *
+ * Only the tables that the checkpoint records as completed are built on, and a foreign key also requires
+ * that its referenced table was completed, so that a failed table does not get keys on partial rows.  A
+ * key, index, or foreign key that already exists, e.g. from the run that a dml --resume continues, is
+ * logged as skipped instead of failed.
+ */
+public class PostLoad {
+
+    // Postgres does not accept a lower maintenance_work_mem
+    static final int MIN_MEMORY_MB = 1;
+
+    // the SQLSTATE of a relation, e.g. the index of a key, and of a constraint that already exists
+    static final String DUPLICATE_TABLE = "42P07";
+    static final String DUPLICATE_OBJECT = "42710";
+
+    // the SQLSTATE of a deadlock and of a serialization failure, after which the statement is executed again
+    static final String DEADLOCK_DETECTED = "40P01";
+    static final String SERIALIZATION_FAILURE = "40001";
+    static final int MAX_ATTEMPTS = 5;
+
+    final Schema schema;
+    final Config config;
+    final Path path;
+    final Checkpoint checkpoint;
+    final int threads;
+    final int memoryMb;
+    final int parallelWorkers;
+
+    final AtomicInteger count = new AtomicInteger();
+    final AtomicInteger failed = new AtomicInteger();
+    final AtomicInteger existing = new AtomicInteger();
+
+
+    /**
+     * A statement of the post-load DDL and the table that it builds on
+     */
+    public static class Task {
+
+        final String phase;
+        final Table table;
+        final Table referencedTable;    // of a foreign key, or null
+        final String sql;
+
+        // the size of the target table when the phase starts, which orders the tasks
+        long tableBytes = 0;
+
+        public Task(String phase, Table table, String sql) {
+            this(phase, table, null, sql);
+        }
+
+        public Task(String phase, Table table, Table referencedTable, String sql) {
+            this.phase = phase;
+            this.table = table;
+            this.referencedTable = referencedTable;
+            this.sql = sql;
+        }
+
+        @Override
+        public String toString() {
+            return sql;
+        }
+    }
+
+
+    /**
+     * @param schema
+     * @param path - the log file of the run
+     * @param checkpoint - the checkpoint of the dml run, whose completed tables are built on
+     */
+    public PostLoad(Schema schema, Path path, Checkpoint checkpoint) {
+
+        this.schema = schema;
+        this.config = schema.config;
+        this.path = path;
+        this.checkpoint = checkpoint;
+        this.threads = Math.max(config.getDdlInt("post_load_threads", 4), 1);
+        this.memoryMb = config.getDdlInt("post_load_memory_mb", 2048);
+        this.parallelWorkers = Math.max(config.getDdlInt("post_load_parallel_workers", 2), 0);
+    }
+
+
+    public void run() throws IOException {
+
+        Map<String, List<Task>> phases = schema.getPostLoadDdl();
+
+        Set<Table> incomplete = new TreeSet<>(Comparator.comparing(Table::toString));
+        for (List<Task> tasks : phases.values()){
+            tasks.removeIf(task -> {
+                boolean isSkipped = false;
+                for (Table table : new Table[]{ task.table, task.referencedTable }){
+                    if (table != null && !isCompleted(table)){
+                        incomplete.add(table);
+                        isSkipped = true;
+                    }
+                }
+                return isSkipped;
+            });
+        }
+
+        if (!incomplete.isEmpty())
+            log(String.format("-- skipping the keys, indexes, and foreign keys of %,d tables that were not completed: %s", incomplete.size(), incomplete), true);
+
+        if (phases.values().stream().allMatch(List::isEmpty))
+            return;
+
+        long tc = System.currentTimeMillis();
+
+        // the sessions of one phase run at the same time, so each gets an equal share of the budget
+        int sessionMemoryMb = Math.max(memoryMb / threads, MIN_MEMORY_MB);
+
+        log(String.format("-- creating keys, indexes, and foreign keys with %d concurrent connections, maintenance_work_mem %,dMB and max_parallel_maintenance_workers %d per connection"
+                , threads, sessionMemoryMb, parallelWorkers), true);
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        try {
+
+            for (Map.Entry<String, List<Task>> phase : phases.entrySet()){
+
+                List<Task> tasks = phase.getValue();
+                if (tasks.isEmpty())
+                    continue;
+
+                long tp = System.currentTimeMillis();
+
+                loadTableSizes(tasks);
+                tasks.sort(Comparator.comparingLong((Task t) -> t.tableBytes).reversed());
+
+                List<Future<?>> futures = new ArrayList<>();
+                for (Task task : tasks)
+                    futures.add(executorService.submit(() -> execute(task, sessionMemoryMb)));
+
+                for (Future<?> future : futures){
+                    try {
+                        future.get();
+                    }
+                    catch (InterruptedException | ExecutionException ex) {
+                        ex.printStackTrace();
+                    }
+                }
+
+                log(String.format("-- %s: %,d statements in %.3f seconds", phase.getKey(), tasks.size(), (System.currentTimeMillis() - tp) / 1000.0), true);
+            }
+        }
+        finally {
+            executorService.shutdown();
+        }
+
+        log(String.format("-- created keys, indexes, and foreign keys with %,d statements in %.3f seconds, %,d already existed, %,d failed"
+                , count.get(), (System.currentTimeMillis() - tc) / 1000.0, existing.get(), failed.get()), true);
+    }
+
+
+    boolean isCompleted(Table table) {
+
+        Checkpoint.TableState state = checkpoint.getTable(table.toString());
+
+        return state != null && Checkpoint.COMPLETED.equals(state.status);
+    }
+
+
+    /**
+     * Executes the statement of the task on a target connection with the memory settings of the session,
+     * and logs the time that it took
+     */
+    void execute(Task task, int sessionMemoryMb) {
+
+        long ts = System.nanoTime();
+        String logentry;
+
+        count.incrementAndGet();
+
+        try (Connection conTgt = config.connect(config.target);
+             Statement statTgt = conTgt.createStatement()) {
+
+            statTgt.execute("SET maintenance_work_mem = '" + sessionMemoryMb + "MB';");
+            statTgt.execute("SET max_parallel_maintenance_workers = " + parallelWorkers + ";");
+
+            try {
+                int attempts = executeWithRetry(statTgt, task.sql);
+
+                logentry = String.format("%s\n /* executed in %.3f seconds%s, table %,.1f MB */"
+                        , task.sql, (System.nanoTime() - ts) / 1e9
+                        , (attempts > 1) ? String.format(" with %d attempts", attempts) : ""
+                        , task.tableBytes / 1048576.0);
+            }
+            finally {
+                statTgt.execute("RESET maintenance_work_mem;");
+                statTgt.execute("RESET max_parallel_maintenance_workers;");
+            }
+        }
+        catch (SQLException ex){
+
+            if (DUPLICATE_TABLE.equals(ex.getSQLState()) || DUPLICATE_OBJECT.equals(ex.getSQLState())){
+                existing.incrementAndGet();
+                logentry = String.format("%s\n /* skipped, %s */", task.sql, ex.getMessage());
+            }
+            else {
+                failed.incrementAndGet();
+                logentry = String.format("%s\n/** Error after %.3f seconds: %s **/", task.sql, (System.nanoTime() - ts) / 1e9, ex.getMessage());
+                System.err.println(logentry);
+            }
+        }
+
+        try {
+            log(logentry, false);
+        }
+        catch (IOException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Executes the statement, and executes it again if it was aborted by a deadlock or a serialization
+     * failure, after a pause that grows with each attempt so that the other statement can finish
+     *
+     * @return - the number of attempts
+     */
+    static int executeWithRetry(Statement statTgt, String sql) throws SQLException {
+
+        for (int attempt = 1; ; attempt++){
+
+            try {
+                statTgt.execute(sql);
+                return attempt;
+            }
+            catch (SQLException ex){
+
+                if (attempt >= MAX_ATTEMPTS || !(DEADLOCK_DETECTED.equals(ex.getSQLState()) || SERIALIZATION_FAILURE.equals(ex.getSQLState())))
+                    throw ex;
+
+                try {
+                    Thread.sleep(attempt * 100L + ThreadLocalRandom.current().nextInt(100));
+                }
+                catch (InterruptedException iex) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Reads the size of the target tables of the tasks, which at this point is the size of the copied rows
+     */
+    void loadTableSizes(List<Task> tasks) {
+
+        Map<Table, Long> sizes = new HashMap<>();
+
+        try (Connection conTgt = config.connect(config.target);
+             PreparedStatement stat = conTgt.prepareStatement("SELECT pg_relation_size(to_regclass(?))")) {
+
+            for (Task task : tasks){
+
+                Long size = sizes.get(task.table);
+
+                if (size == null){
+
+                    stat.setString(1, config.getTargetTableName(task.table));
+
+                    try (ResultSet rs = stat.executeQuery()) {
+                        size = rs.next() ? rs.getLong(1) : 0;
+                    }
+
+                    sizes.put(task.table, size);
+                }
+
+                task.tableBytes = size;
+            }
+        }
+        catch (SQLException ex){
+            // the tasks run in the order of the tables
+            System.err.println("Failed to read the sizes of the target tables: " + ex.toString());
+        }
+    }
+
+
+    synchronized void log(String logentry, boolean isPrinted) throws IOException {
+
+        if (isPrinted)
+            System.out.println(logentry);
+
+        Util.log(path, logentry);
+    }
+}
@@ -0,0 +1,431 @@
+package net.twentyonesolutions.m2pg;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reports the progress of the copy on the console from a single reporter thread.  The copy threads only
+ * increment the LongAdder of their table, and the reporter thread renders the status line with the rows
+ * per second and the estimated time to completion of each table and of the whole run.
+ *
+ * The rates are exponentially weighted moving averages with a time constant of dml.progress.ewma_seconds,
+ * so that the ETA follows changes in throughput without jumping on every report.  The ETA of the run
+ * includes the tables that were not started yet if their estimated row counts were loaded with
+ * dml.table_size_query.
+ *
+ * After each report the counters are published by the MetricsExporter, see dml.metrics.
+ */
+public class ProgressReporter implements IProgress, MetricsExporter.RunMXBean, AutoCloseable {
+
+    final Map<String, Table> remaining = new ConcurrentHashMap<>();
+    final Map<String, TableCounter> tables = new ConcurrentHashMap<>();        // the tables that are in progress
+    final Map<String, TableCounter> counters = new ConcurrentHashMap<>();      // all of the tables that were started
+
+    final Config config;
+    final long intervalMillis;
+    final double ewmaSeconds;
+    final ScheduledExecutorService scheduler;
+    final MetricsExporter exporter;
+
+    // the state of the reporter thread
+    final long startNanos = System.nanoTime();
+    long lastNanos = startNanos;
+    long completedRows = 0;
+    long lastTotalRows = 0;
+    double totalRate = -1;
+    String lastLine = "";
+
+
+    public ProgressReporter(Schema schema) {
+        this(schema.config, schema.schema);
+    }
+
+
+    /**
+     * @param config
+     * @param tables - the tables of the run by name, with their estimated row counts if known
+     */
+    public ProgressReporter(Config config, Map<String, Table> tables) {
+
+        this.remaining.putAll(tables);
+        this.config = config;
+        this.intervalMillis = Math.max(config.getDmlInt("progress.interval_ms", 1000), 10);
+        this.ewmaSeconds = Math.max(config.getDmlInt("progress.ewma_seconds", 30), 1);
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "m2pg-progress");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.exporter = new MetricsExporter(this, config);
+
+        scheduler.scheduleAtFixedRate(this::report, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+
+    @Override
+    public Counter getCounter(String name, long rowCount) {
+
+        TableCounter result = new TableCounter(name, rowCount);
+        tables.put(name, result);
+        counters.put(name, result);
+
+        return result;
+    }
+
+
+    /**
+     * Updates the counter of the table from a Status, for callers that do not use getCounter()
+     */
+    @Override
+    public void progress(Status status) {
+
+        TableCounter counter = tables.computeIfAbsent(status.name, name -> {
+            TableCounter result = new TableCounter(name, status.rowCount);
+            counters.put(name, result);
+            return result;
+        });
+        counter.rows.add(status.row - counter.rows.sum());
+
+        if (status.row >= status.rowCount)
+            counter.done();
+    }
+
+
+    /**
+     * Renders the status line.  Runs on the reporter thread only.
+     */
+    synchronized void report() {
+
+        long now = System.nanoTime();
+        double seconds = (now - lastNanos) / 1e9;
+        double alpha = 1 - Math.exp(-seconds / ewmaSeconds);
+        lastNanos = now;
+
+        long remainingRows = 0;
+        boolean isEtaKnown = true;
+        StringBuilder sbTables = new StringBuilder(512);
+
+        for (TableCounter counter : tables.values()) {
+
+            long rows = counter.rows.sum();
+
+            if (counter.isDone) {
+                tables.remove(counter.name);
+                remaining.remove(counter.name);
+                completedRows += rows;
+                counter.lastRows = rows;
+                counter.rate = 0;
+                continue;
+            }
+
+            double rate = (rows - counter.lastRows) / seconds;
+            counter.rate = (counter.rate < 0) ? rate : counter.rate + alpha * (rate - counter.rate);
+            counter.lastRows = rows;
+
+            long left = Math.max(counter.rowCount - rows, 0);
+            remainingRows += left;
+
+            String name = counter.name.substring(counter.name.indexOf('.') + 1);
+
+            sbTables.append("   ")
+                    .append(name)
+                    .append(": ")
+                    .append(formatPercent(rows, counter.rowCount))
+                    .append(String.format(" %,.0f rows/s ETA %s", counter.rate, formatEta(left, counter.rate)));
+        }
+
+        // tables that were not started yet
+        for (Table table : remaining.values()) {
+
+            if (tables.containsKey(table.toString()))
+                continue;
+
+            if (table.estimatedRows < 0)
+                isEtaKnown = false;
+            else
+                remainingRows += table.estimatedRows;
+        }
+
+        long totalRows = completedRows;
+        for (TableCounter counter : tables.values())
+            totalRows += counter.lastRows;
+
+        double rate = (totalRows - lastTotalRows) / seconds;
+        totalRate = (totalRate < 0) ? rate : totalRate + alpha * (rate - totalRate);
+        lastTotalRows = totalRows;
+
+        String statusLine = String.format("%d table%s left, %,d rows, %,.0f rows/s ETA %s"
+                , remaining.size()
+                , remaining.size() == 1 ? "" : "s"
+                , totalRows
+                , totalRate
+                , isEtaKnown ? formatEta(remainingRows, totalRate) : "?")
+                + sbTables;
+
+        if (!statusLine.equals(lastLine)) {
+
+            System.out.printf("\r%s", statusLine);
+            if (lastLine.length() > statusLine.length())
+                System.out.print(new String(new char[lastLine.length() - statusLine.length()]).replace('\0', ' '));
+
+            lastLine = statusLine;
+        }
+
+        exporter.export();
+    }
+
+
+    @Override
+    public int getTablesLeft() {
+        return remaining.size();
+    }
+
+    @Override
+    public long getRowsRead() {
+        return counters.values().stream().mapToLong(TableCounter::getRowsRead).sum();
+    }
+
+    @Override
+    public long getRowsWritten() {
+        return counters.values().stream().mapToLong(TableCounter::getRowsWritten).sum();
+    }
+
+    @Override
+    public long getBytesWritten() {
+        return counters.values().stream().mapToLong(TableCounter::getBytesWritten).sum();
+    }
+
+    @Override
+    public double getRowsPerSecond() {
+        return Math.max(totalRate, 0);
+    }
+
+    @Override
+    public long getQueueDepth() {
+        return counters.values().stream().mapToLong(TableCounter::getQueueDepth).sum();
+    }
+
+    @Override
+    public long getErrors() {
+        return counters.values().stream().mapToLong(TableCounter::getErrors).sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return config.pools.values().stream().mapToInt(pool -> pool.active.get()).sum();
+    }
+
+    @Override
+    public double getElapsedSeconds() {
+        return (System.nanoTime() - startNanos) / 1e9;
+    }
+
+
+    /**
+     * Returns the total time of the phase, e.g. commit, of all of the tables
+     */
+    public long getPhaseNanos(String phase) {
+        return counters.values().stream().mapToLong(counter -> getSum(counter.phaseNanos, phase)).sum();
+    }
+
+
+    /**
+     * Returns the number of times that the phase, e.g. commit, was timed in all of the tables
+     */
+    public long getPhaseCount(String phase) {
+        return counters.values().stream().mapToLong(counter -> getSum(counter.phaseCounts, phase)).sum();
+    }
+
+
+    static long getSum(Map<String, LongAdder> map, String key) {
+
+        LongAdder adder = map.get(key);
+
+        return (adder == null) ? 0 : adder.sum();
+    }
+
+
+    static String formatPercent(long rows, long rowCount) {
+
+        if (rowCount <= 0)
+            return "0%";
+
+        if (rowCount > 10_000_000)
+            return String.format("%.2f%%", 100.0 * rows / rowCount);
+
+        if (rowCount > 10_000)
+            return String.format("%.1f%%", 100.0 * rows / rowCount);
+
+        return String.format("%d%%", 100 * rows / rowCount);
+    }
+
+
+    /**
+     * Returns the time to copy the rows at the rate as H:MM:SS, or ? if the rate is not known
+     */
+    static String formatEta(long rows, double rate) {
+
+        if (rows == 0)
+            return "0:00:00";
+
+        if (!(rate > 0))
+            return "?";
+
+        long seconds = (long) Math.ceil(rows / rate);
+
+        return String.format("%d:%02d:%02d", seconds / 3600, seconds / 60 % 60, seconds % 60);
+    }
+
+
+    /**
+     * Stops the reporter thread and prints the totals of the run
+     */
+    @Override
+    public void close() {
+
+        scheduler.shutdownNow();
+
+        synchronized (this) {
+
+            totalRate = 0;
+            exporter.export();
+            exporter.close();
+
+            long totalRows = completedRows;
+            for (TableCounter counter : tables.values())
+                totalRows += counter.rows.sum();
+
+            double seconds = (System.nanoTime() - startNanos) / 1e9;
+
+            System.out.printf("\r%s\r", new String(new char[lastLine.length()]).replace('\0', ' '));
+            System.out.printf("Copied %,d rows in %.1f seconds, %,.0f rows/s%n", totalRows, seconds, totalRows / Math.max(seconds, 0.001));
+        }
+    }
+
+
+    /**
+     * The counter of a table.  The copy threads write the LongAdders, the phases, and isDone, and lastRows and
+     * rate are written by the reporter thread only.
+     */
+    static class TableCounter implements Counter, MetricsExporter.TableMXBean {
+
+        final String name;
+        final long rowCount;
+        final LongAdder rows = new LongAdder();
+        final LongAdder rowsRead = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final LongAdder queued = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final Map<String, LongAdder> phaseNanos = new ConcurrentHashMap<>();
+        final Map<String, LongAdder> phaseCounts = new ConcurrentHashMap<>();
+        final long startNanos = System.nanoTime();
+        volatile long doneNanos = 0;
+        volatile boolean isDone = false;
+
+        volatile long lastRows = 0;
+        volatile double rate = -1;
+
+        TableCounter(String name, long rowCount) {
+            this.name = name;
+            this.rowCount = rowCount;
+        }
+
+        @Override
+        public void add(long rows) {
+            this.rows.add(rows);
+        }
+
+        @Override
+        public void done() {
+            doneNanos = System.nanoTime();
+            isDone = true;
+        }
+
+        @Override
+        public void read(long rows) {
+            rowsRead.add(rows);
+        }
+
+        @Override
+        public void bytes(long bytes) {
+            this.bytes.add(bytes);
+        }
+
+        @Override
+        public void queued(int batches) {
+            queued.add(batches);
+        }
+
+        @Override
+        public void error() {
+            errors.add(1);
+        }
+
+        @Override
+        public void phase(String phase, long nanos) {
+            phaseNanos.computeIfAbsent(phase, k -> new LongAdder()).add(nanos);
+            phaseCounts.computeIfAbsent(phase, k -> new LongAdder()).increment();
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public long getRowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public long getRowsRead() {
+            return rowsRead.sum();
+        }
+
+        @Override
+        public long getRowsWritten() {
+            return rows.sum();
+        }
+
+        @Override
+        public long getBytesWritten() {
+            return bytes.sum();
+        }
+
+        @Override
+        public double getRowsPerSecond() {
+            return Math.max(rate, 0);
+        }
+
+        @Override
+        public long getQueueDepth() {
+            return queued.sum();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public boolean isDone() {
+            return isDone;
+        }
+
+        @Override
+        public Map<String, Double> getPhaseSeconds() {
+
+            Map<String, Double> result = new TreeMap<>();
+            phaseNanos.forEach((phase, nanos) -> result.put(phase, nanos.sum() / 1e9));
+
+            return result;
+        }
+    }
+}
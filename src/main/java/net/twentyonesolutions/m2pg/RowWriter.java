@@ -0,0 +1,45 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Writes the rows that are read from the source table to the target table.  Rows are buffered by
+ * write() and are sent to the target when flush() is called, so that implementations can send
+ * them in batches.
+ */
+public interface RowWriter {
+
+    /**
+     * Buffers a row.  The values array may be reused by the caller after this method returns.
+     *
+     * @param values - the column values of the row in the order of Table.getColumnListTgt()
+     */
+    void write(Object[] values) throws SQLException, IOException;
+
+    /**
+     * Sends the buffered rows to the target
+     *
+     * @return - the number of rows that were sent
+     */
+    int flush() throws SQLException, IOException;
+
+    /**
+     * Completes the write operation after the last flush().  Errors that the target database reports
+     * only at the end of the operation, e.g. at the end of COPY, are thrown from this method.
+     */
+    void finish() throws SQLException, IOException;
+
+    /**
+     * Commits the rows that were flushed so far and continues the write operation in a new transaction
+     *
+     * @param conTgt - the connection of the writer, in a transaction that was started with BEGIN
+     */
+    void commit(Connection conTgt) throws SQLException, IOException;
+
+    /**
+     * Releases the resources of the writer, aborting the operation if finish() was not called
+     */
+    void close();
+}
@@ -2,17 +2,20 @@ package net.twentyonesolutions.m2pg;
 
 import java.io.IOException;
 import java.sql.Connection;
-import java.sql.JDBCType;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.util.Arrays;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
 import java.util.stream.Collectors;
 
@@ -20,14 +23,26 @@ import static net.twentyonesolutions.m2pg.Config.CHARACTER_MAXIMUM_LENGTH;
 import static net.twentyonesolutions.m2pg.Config.COLUMN_DEFAULT;
 import static net.twentyonesolutions.m2pg.Config.COLUMN_DEFINITION;
 import static net.twentyonesolutions.m2pg.Config.COLUMN_NAME;
+import static net.twentyonesolutions.m2pg.Config.CONSTRAINT_NAME;
 import static net.twentyonesolutions.m2pg.Config.DATA_TYPE;
+import static net.twentyonesolutions.m2pg.Config.DELETE_ACTION;
+import static net.twentyonesolutions.m2pg.Config.INDEX_NAME;
+import static net.twentyonesolutions.m2pg.Config.INDEX_TYPE;
 import static net.twentyonesolutions.m2pg.Config.IS_COMPUTED;
+import static net.twentyonesolutions.m2pg.Config.IS_DESCENDING;
 import static net.twentyonesolutions.m2pg.Config.IS_IDENTITY;
+import static net.twentyonesolutions.m2pg.Config.IS_INCLUDED;
 import static net.twentyonesolutions.m2pg.Config.IS_NULLABLE;
 import static net.twentyonesolutions.m2pg.Config.NUMERIC_PRECISION;
 import static net.twentyonesolutions.m2pg.Config.ORDINAL_POSITION;
+import static net.twentyonesolutions.m2pg.Config.REFERENCED_COLUMN_NAME;
+import static net.twentyonesolutions.m2pg.Config.REFERENCED_TABLE_NAME;
+import static net.twentyonesolutions.m2pg.Config.REFERENCED_TABLE_SCHEMA;
+import static net.twentyonesolutions.m2pg.Config.ROW_COUNT;
 import static net.twentyonesolutions.m2pg.Config.TABLE_NAME;
 import static net.twentyonesolutions.m2pg.Config.TABLE_SCHEMA;
+import static net.twentyonesolutions.m2pg.Config.TOTAL_BYTES;
+import static net.twentyonesolutions.m2pg.Config.UPDATE_ACTION;
 
 public class Schema {
 
@@ -44,9 +59,190 @@ public class Schema {
             throw new IllegalArgumentException("information_schema.query is missing");
         }
 
-        Connection conSrc = config.connect(config.source);
-        Statement statement = conSrc.createStatement();
-        ResultSet resultSet = statement.executeQuery(informationSchemaSql);
+        try (Connection conSrc = config.connect(config.source);
+             Statement statement = conSrc.createStatement();
+             ResultSet resultSet = statement.executeQuery(informationSchemaSql)) {
+
+            readInformationSchema(resultSet, informationSchemaSql);
+        }
+
+        loadIndexes();
+        loadForeignKeys();
+    }
+
+
+    /**
+     * Reads the primary keys, unique constraints, and indexes of the tables with
+     * information_schema.indexes_query, which must return the columns TABLE_SCHEMA, TABLE_NAME,
+     * INDEX_NAME, INDEX_TYPE (PRIMARY KEY, UNIQUE, UNIQUE INDEX, or INDEX), COLUMN_NAME, IS_DESCENDING
+     * and IS_INCLUDED, ordered by the index and the position of the column in the index.
+     *
+     * Indexes of tables or on columns that are not migrated are skipped.  If the query fails, e.g.
+     * because of missing permissions, then the tables are migrated without indexes.
+     */
+    void loadIndexes(){
+
+        String query = (String) config.config.getOrDefault("information_schema.indexes_query", "");
+        if (query.trim().isEmpty())
+            return;
+
+        Map<String, Index> indexes = new LinkedHashMap<>();
+        Set<String> skipped = new HashSet<>();
+
+        try (Connection conSrc = config.connect(config.source);
+             Statement statement = conSrc.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+
+            while (resultSet.next()){
+
+                Table table = getTable(resultSet.getString(TABLE_SCHEMA) + "." + resultSet.getString(TABLE_NAME));
+                if (table == null)
+                    continue;
+
+                String indexName = resultSet.getString(INDEX_NAME);
+                String key = table + "." + indexName;
+
+                Index index = indexes.get(key);
+
+                if (index == null){
+                    index = new Index(indexName, resultSet.getString(INDEX_TYPE));
+                    indexes.put(key, index);
+                    table.indexes.add(index);
+                }
+
+                Column col = table.getColumn(resultSet.getString(COLUMN_NAME));
+                if (col == null){
+                    skipped.add(key);
+                    continue;
+                }
+
+                index.addColumn(col, Util.isSqlTrue(resultSet.getObject(IS_DESCENDING)), Util.isSqlTrue(resultSet.getObject(IS_INCLUDED)));
+            }
+        }
+        catch (SQLException ex){
+            System.err.println("Failed to read indexes with information_schema.indexes_query: " + ex.toString());
+            return;
+        }
+
+        for (Table table : schema.values())
+            table.indexes.removeIf(index -> skipped.contains(table + "." + index.name) || index.columns.isEmpty());
+
+        setIndexTargetNames();
+    }
+
+
+    /**
+     * Sets the target names of the indexes so that they are unique in the target schema.  Index names are
+     * unique per table in SQL Server, but per schema in Postgres, where the index of a primary key or a
+     * unique constraint has the name of the constraint.  Duplicate names are prefixed with the table name
+     * and are limited to the 63 characters of a Postgres identifier.
+     */
+    void setIndexTargetNames(){
+
+        Map<String, Set<String>> namesBySchema = new HashMap<>();
+
+        for (Table table : schema.values()){
+
+            String tgtTable = config.getTargetTableName(table);
+            int pos = tgtTable.lastIndexOf('.');
+            String tgtSchema = (pos == -1) ? "" : tgtTable.substring(0, pos);
+            String tgtName = tgtTable.substring(pos + 1);
+
+            Set<String> names = namesBySchema.computeIfAbsent(tgtSchema.toLowerCase(), k -> new HashSet<>());
+
+            for (Index index : table.indexes){
+
+                String name = index.name;
+
+                if (names.contains(name.toLowerCase()))
+                    name = tgtName + "_" + index.name;
+
+                name = truncateIdentifier(name);
+
+                for (int i = 2; names.contains(name.toLowerCase()); i++)
+                    name = truncateIdentifier(tgtName + "_" + index.name, "_" + i);
+
+                names.add(name.toLowerCase());
+                index.targetName = name;
+            }
+        }
+    }
+
+
+    static String truncateIdentifier(String name){
+        return truncateIdentifier(name, "");
+    }
+
+
+    static String truncateIdentifier(String name, String suffix){
+
+        int maxLength = 63 - suffix.length();
+
+        return (name.length() > maxLength ? name.substring(0, maxLength) : name) + suffix;
+    }
+
+
+    /**
+     * Reads the foreign keys of the tables with information_schema.foreign_keys_query, which must return
+     * the columns TABLE_SCHEMA, TABLE_NAME, CONSTRAINT_NAME, COLUMN_NAME, REFERENCED_TABLE_SCHEMA,
+     * REFERENCED_TABLE_NAME, REFERENCED_COLUMN_NAME, DELETE_ACTION and UPDATE_ACTION, ordered by the
+     * constraint and the position of the column in the constraint.
+     *
+     * Foreign keys that reference tables or columns that are not migrated are skipped.
+     */
+    void loadForeignKeys(){
+
+        String query = (String) config.config.getOrDefault("information_schema.foreign_keys_query", "");
+        if (query.trim().isEmpty())
+            return;
+
+        Map<String, ForeignKey> foreignKeys = new LinkedHashMap<>();
+        Set<String> skipped = new HashSet<>();
+
+        try (Connection conSrc = config.connect(config.source);
+             Statement statement = conSrc.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
+
+            while (resultSet.next()){
+
+                Table table = getTable(resultSet.getString(TABLE_SCHEMA) + "." + resultSet.getString(TABLE_NAME));
+                if (table == null)
+                    continue;
+
+                String constraintName = resultSet.getString(CONSTRAINT_NAME);
+                String key = table + "." + constraintName;
+
+                Table refTable = getTable(resultSet.getString(REFERENCED_TABLE_SCHEMA) + "." + resultSet.getString(REFERENCED_TABLE_NAME));
+                Column col = table.getColumn(resultSet.getString(COLUMN_NAME));
+                Column refCol = (refTable == null) ? null : refTable.getColumn(resultSet.getString(REFERENCED_COLUMN_NAME));
+
+                if (col == null || refCol == null){
+                    skipped.add(key);
+                    continue;
+                }
+
+                ForeignKey foreignKey = foreignKeys.get(key);
+
+                if (foreignKey == null){
+                    foreignKey = new ForeignKey(constraintName, refTable, resultSet.getString(DELETE_ACTION), resultSet.getString(UPDATE_ACTION));
+                    foreignKeys.put(key, foreignKey);
+                    table.foreignKeys.add(foreignKey);
+                }
+
+                foreignKey.addColumn(col, refCol);
+            }
+        }
+        catch (SQLException ex){
+            System.err.println("Failed to read foreign keys with information_schema.foreign_keys_query: " + ex.toString());
+            return;
+        }
+
+        for (Table table : schema.values())
+            table.foreignKeys.removeIf(fk -> skipped.contains(table + "." + fk.name));
+    }
+
+
+    void readInformationSchema(ResultSet resultSet, String informationSchemaSql) throws SQLException {
 
         if (!resultSet.isBeforeFirst()){
             System.out.println("information_schema.query returned no results: \n" + informationSchemaSql);
@@ -98,225 +294,112 @@ public class Schema {
 
     public String copyTable(String tableName, IProgress progress) throws IOException {
 
-        StringBuilder log = new StringBuilder(1024);
-
-        String qSelect, qInsert;
-        int copied = 0;
-        long rowCount = 0;
-
-        Config config = this.config;
-        Table table = this.getTable(tableName);
-
-        String tgtSchema = config.translateSchema(table.schemaName);
-//        String tgtTable = tgtSchema + "." + table.name;
-        String tgtTable = config.getTargetTableName(table);
-
-        log.append(String.format("/** copy table %s to %s */\n", tableName, tgtTable));
-
-        long tc = System.currentTimeMillis();
-
-        try {
-
-            Connection conSrc = config.connect(config.source);
-            Connection conTgt = config.connect(config.target);
-
-            Statement statTgt = conTgt.createStatement();
-            statTgt.execute("BEGIN TRANSACTION;");
-            statTgt.execute("TRUNCATE TABLE " + tgtTable + ";");
-
-            qSelect = "SELECT COUNT(*) AS row_count" + "\nFROM " + table.toString();
-            Statement statSrc = conSrc.createStatement();
-            ResultSet rs;
-            rs = statSrc.executeQuery(qSelect);
-
-            long longValue = 0;
-            if (rs.next()) {
-                rowCount = rs.getLong("row_count");
-                log.append(String.format(" /* %,d rows */\n", rowCount));
-            } else {
-                throw new RuntimeException("No results found for " + qSelect);
-            }
-
-            qSelect = "SELECT " + table.getColumnListSrc(config) + "\nFROM " + table.toString();
-
-            qInsert = "INSERT INTO " + tgtTable + " (" + table.getColumnListTgt(config) + ")";
-
-            // add VALUES( ?, ... ) to INSERT query
-            int insertColumnCount = qInsert.substring(qInsert.indexOf('(')).split(",").length;
-            qInsert += "\nVALUES(" + String.join(", ", Collections.nCopies(insertColumnCount, "?")) + ")";
-
-            statSrc = conSrc.createStatement();
-
-            PreparedStatement statInsert = conTgt.prepareStatement(qInsert);
-
-            statSrc.setFetchSize(1000);
-
-            rs = statSrc.executeQuery(qSelect);
+        return copyTable(tableName, progress, new Checkpoint(null), false);
+    }
 
-            ResultSetMetaData rsMetaData = rs.getMetaData();
 
-            Map<String, String> jdbcTypeMapping = (Map<String, String>) config.dml.get("jdbc_type_mapping");
+    /**
+     * Copies the table and records its progress in the checkpoint
+     *
+     * @param tableName
+     * @param progress
+     * @param checkpoint
+     * @param resume - true to skip the table if the checkpoint shows it as completed, or to continue it
+     *                 after the last committed key
+     */
+    public String copyTable(String tableName, IProgress progress, Checkpoint checkpoint, boolean resume) throws IOException {
 
-            int columnCount = rsMetaData.getColumnCount();
+        return copyTable(tableName, progress, checkpoint, resume, null);
+    }
 
-            int[] columnTypes = new int[columnCount];
-            //        SQLType[] sqlTypes = new SQLType[columnCount];  // TODO: use this instead of columnTypes when pgjdbc will support setObject with SQLType
 
-            boolean hasErrors = false;
+    /**
+     * Copies the table and records its progress in the checkpoint, with the ranges of a split table on the
+     * threads of the scheduler
+     */
+    public String copyTable(String tableName, IProgress progress, Checkpoint checkpoint, boolean resume, TaskScheduler scheduler) throws IOException {
 
-            for (int i = 1; i <= columnCount; i++) {
+        TableCopy tableCopy = new TableCopy(config, this.getTable(tableName), progress, checkpoint, resume);
+        tableCopy.scheduler = scheduler;
 
-                int srcType = 0, tgtType;
-                String srcTypeName;
+        return tableCopy.copy();
+    }
 
-                try {
-                    srcType = rsMetaData.getColumnType(i);
-                    tgtType = srcType;
 
-                    // translate unsupported types, e.g. nvarchar to varchar, dml jdbcTypeMapping is based on JDBC types, while ddl jdbcTypeMapping is based on SQL types
-                    //            if (jdbcTypeMapping.containsKey(String.valueOf(srcType)))
-                    //                tgtType = Integer.parseInt(jdbcTypeMapping.getOrDefault(String.valueOf(srcType), String.valueOf(tgtType)));
+    /**
+     * Extracts the rows of the table to the staged files of the manifest
+     */
+    public String extractTable(String tableName, IProgress progress, StageManifest manifest) throws IOException {
 
-                    srcTypeName = JDBCType.valueOf(srcType).getName();   // WARN: rsMetaData.getColumnTypeName(i) returns the vendor's name instead of JDBC name, e.g. ntext instead of longnvarchar for MSSQL
-                    if (jdbcTypeMapping.containsKey(srcTypeName)) {
-                        String tgtTypeName = jdbcTypeMapping.get(srcTypeName);
-                        tgtType = JDBCType.valueOf(tgtTypeName).getVendorTypeNumber();
-                    }
+        TableExtract tableExtract = new TableExtract(config, this.getTable(tableName), progress, manifest);
 
-                    columnTypes[i - 1] = tgtType;
-                }
-                catch (Throwable t) {
-                    String colName = rsMetaData.getColumnName(i);
-                    log.append(String.format(" /* Error: Failed to get JDBC column type (%s) for %s.%s */\n", srcType, tableName, colName));
-                    log.append(" /* No rows copied */");
-                    return log.toString();
-                }
-            }
-
-            int row = 0;
-            while (rs.next()) {
+        return tableExtract.extract();
+    }
 
-                row++;
 
-                Object[] values = new Object[columnCount];
-                for (int i = 1; i <= columnCount; i++) {
-                    Object value = rs.getObject(i);
-                    values[i - 1] = value;
-                    statInsert.setObject(i, value, columnTypes[i - 1]);
-                    //                statInsert.setObject(i, value, sqlTypes[i - 1]);    // throws java.sql.SQLFeatureNotSupportedException: Method org.postgresql.jdbc.PgPreparedStatement.setObject is not yet implemented.
-                }
+    /**
+     * Upserts the rows of the table that changed since the watermark in syncState
+     */
+    public String syncTable(String tableName, IProgress progress, SyncState syncState) throws IOException {
 
-                try {
+        TableSync tableSync = new TableSync(config, this.getTable(tableName), progress, syncState);
 
-                    int executeResult = statInsert.executeUpdate();
-                    copied += executeResult;
-                }
-                catch (SQLException ex) {
+        return tableSync.sync();
+    }
 
-                    String failedSql = statInsert.toString().replace("\n", "\n\t") + ";";
 
-                    System.err.println("\n\nInsert Failed. " + ex.toString());
-//                    System.err.println("\n\tValues: " + Arrays.toString(values));
-                    System.err.println("\n\t" + failedSql);
+    /**
+     * Reads the estimated row count and size of each table with dml.table_size_query, which must return
+     * the columns TABLE_SCHEMA, TABLE_NAME, ROW_COUNT and TOTAL_BYTES
+     *
+     * @return - true if the estimates were read
+     */
+    public boolean loadTableSizes(){
 
-                    log.append("\n/** Error: Insert Failed. ")
-//                            .append(tgtTable)
-                            .append(ex.toString())
-                            .append("\n\t")
-                            .append(failedSql)
-                            .append("\n");
+        String query = (String) config.dml.getOrDefault("table_size_query", "");
+        if (query.trim().isEmpty())
+            return false;
 
-                    hasErrors = true;
-                    break;  // exit the loop and stop processing. TODO: modify for other exception handling strategies
-//                    throw ex;
-                }
+        try (Connection conSrc = config.connect(config.source);
+             Statement statement = conSrc.createStatement();
+             ResultSet resultSet = statement.executeQuery(query)) {
 
-                if (progress != null)
-                    progress.progress(new IProgress.Status(tableName, row, rowCount));
+            while (resultSet.next()){
 
-                //            System.out.printf("\r%tT %,d/%,d %.2f%% %8s %s", System.currentTimeMillis(), row, rowCount, 100.0 * row / rowCount, executeResult, table.toString());
-            }
+                Table table = getTable(resultSet.getString(TABLE_SCHEMA) + "." + resultSet.getString(TABLE_NAME));
 
-            if (rowCount == 0){
-                if (progress != null)   // report progress in case the table was empty
-                    progress.progress(new IProgress.Status(tableName, 0, 0));
-            }
-            else {
-                if (table.hasIdentity()) {
-
-                    Column identity = table.getIdentity();
-                    qSelect = "SELECT MAX(" + identity.name + ") AS max_value" + "\nFROM " + table.toString();
-                    rs = statSrc.executeQuery(qSelect);
-                    if (rs.next()) {
-
-                        longValue = rs.getLong("max_value");
-
-                        double recommendFactor = 1_000.0;
-
-                        if (longValue > 1_000_000)
-                            recommendFactor = 10_000.0;
-
-                        long recommendValue = (long) (Math.ceil((longValue + recommendFactor) / recommendFactor) * recommendFactor);
-
-                        String sqlRecommended = "ALTER TABLE " +
-                                tgtTable +
-                                " ALTER COLUMN " +
-                                config.getTargetColumnName(identity.name) +
-                                " RESTART WITH " +
-                                recommendValue +
-                                ";";
-
-                        log.append(" -- Identity column ")
-                                .append(identity.name)
-                                .append(" has max value of ")
-                                .append(longValue)
-                                .append(". ");
-
-                        if (config.dml.get("execute.recommended").toString().toLowerCase().equals("all")){
-                            Util.executeQueries(Arrays.asList(sqlRecommended), log, conTgt);
-                        }
-                        else {
-                            log.append("Recommended:\n\t")
-                                    .append(sqlRecommended)
-                                    .append("\n");
-                        }
-                    } else {
-                        throw new RuntimeException("No results found for " + qSelect);
-                    }
+                if (table != null){
+                    table.estimatedRows = resultSet.getLong(ROW_COUNT);
+                    table.estimatedBytes = resultSet.getLong(TOTAL_BYTES);
                 }
             }
-
-            if (hasErrors) {
-
-                if (config.dml.getOrDefault("on_error", "rollback").equals("rollback")) {
-                    log.append("  rolling back transaction **/\n");
-                    statTgt.execute("ROLLBACK;");
-
-                    if (progress != null)
-                        progress.progress(new IProgress.Status(tableName, 0, 0));
-                }
-            } else {
-
-                statTgt.execute("COMMIT;");
-            }
-
-            statSrc.cancel();  // if the statement did not complete then we should cancel it or else we have to wait for a timeout
-            statSrc.close();
-            rs.close();
-
-            conSrc.close();
-            conTgt.close();
         }
         catch (SQLException ex){
-            ex.printStackTrace();
+            System.err.println("Failed to read table sizes with dml.table_size_query: " + ex.toString());
+            return false;
         }
 
-        tc = System.currentTimeMillis() - tc;
+        return true;
+    }
 
-        if (rowCount > 0)
-            log.append(String.format(" /* copied %,d / %,d records in %.3f seconds **/\n", copied, rowCount, tc / 1000.0));
 
-        return log.toString();
+    /**
+     * Returns the names of the tables in the order in which they should be copied.  If the table sizes were
+     * loaded then the largest tables come first, so that they do not start last and become the long tail
+     * of the run.  Otherwise the tables are ordered by name.
+     */
+    public List<String> getCopyOrder(){
+
+        Comparator<Table> largestFirst = Comparator
+                .comparingLong((Table t) -> t.estimatedBytes)
+                .thenComparingLong(t -> t.estimatedRows)
+                .reversed();
+
+        return schema.values()
+                .stream()
+                .sorted(largestFirst)
+                .map(Table::toString)
+                .collect(Collectors.toList());
     }
 
 
@@ -393,4 +476,61 @@ public class Schema {
         return sb.toString();
     }
 
+
+    /**
+     * Returns the statements that create the keys, indexes, and foreign keys of the tables after the rows
+     * were copied, by phase in the order in which the phases must run:
+     *   keys         - primary keys and unique constraints, which the foreign keys reference
+     *   indexes      - the other indexes
+     *   foreign_keys - foreign keys that are added NOT VALID, which does not scan the rows
+     *   validate     - the validation of the foreign keys
+     * The statements of a phase do not depend on each other, so PostLoad runs them concurrently.
+     */
+    public Map<String, List<PostLoad.Task>> getPostLoadDdl() {
+
+        Map<String, List<PostLoad.Task>> result = new LinkedHashMap<>();
+        for (String phase : new String[]{ "keys", "indexes", "foreign_keys", "validate" })
+            result.put(phase, new ArrayList<>());
+
+        for (Table table : schema.values()){
+
+            for (Index index : table.indexes){
+                String phase = index.isConstraint() ? "keys" : "indexes";
+                result.get(phase).add(new PostLoad.Task(phase, table, index.getDdl(config, table)));
+            }
+
+            for (ForeignKey foreignKey : table.foreignKeys){
+                result.get("foreign_keys").add(new PostLoad.Task("foreign_keys", table, foreignKey.referencedTable, foreignKey.getDdl(config, table)));
+                result.get("validate").add(new PostLoad.Task("validate", table, foreignKey.referencedTable, foreignKey.getValidateDdl(config, table)));
+            }
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Returns the script of getPostLoadDdl(), which the dml command executes after the rows were copied
+     */
+    public String generatePostLoadDdl() {
+
+        StringBuilder sb = new StringBuilder(4096);
+
+        sb.append(PgMigrator.getBanner());
+
+        for (Map.Entry<String, List<PostLoad.Task>> e : getPostLoadDdl().entrySet()){
+
+            if (e.getValue().isEmpty())
+                continue;
+
+            sb.append("-- ").append(e.getKey()).append("\n");
+
+            for (PostLoad.Task task : e.getValue())
+                sb.append(task.sql).append("\n");
+
+            sb.append("\n");
+        }
+
+        return sb.toString();
+    }
 }
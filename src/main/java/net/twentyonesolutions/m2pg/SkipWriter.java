@@ -0,0 +1,180 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes rows with on_error skip.  The rows of a batch are kept until the batch is flushed, and each batch
+ * is written by a new writer of the factory, i.e. as a batched INSERT or as one COPY operation, under a
+ * savepoint.  If the batch fails then it is rolled back to the savepoint and is split in halves that are
+ * written the same way, recursively, until the rows that fail are isolated.  These rows are added with
+ * their errors to the DeadLetter of the table, which writes them to its file when the transaction is
+ * committed, and the other rows of the batch are written to the target.
+ *
+ * Errors of the connection or of the server, e.g. a lost connection or a full disk, are not caused by the
+ * rows, and are thrown as with on_error rollback.
+ */
+public class SkipWriter implements RowWriter {
+
+    static final String SAVEPOINT = "m2pg_batch";
+
+    /**
+     * Creates a writer for one batch, which writes the rows in a single operation on flush() and completes
+     * it on finish()
+     */
+    public interface Factory {
+        RowWriter create() throws SQLException;
+    }
+
+    final Connection conTgt;
+    final Factory factory;
+    final DeadLetter deadLetter;
+    final IProgress.Counter counter;
+    final List<Object[]> rows = new ArrayList<>();
+    long rejected = 0;
+
+
+    public SkipWriter(Connection conTgt, Factory factory, DeadLetter deadLetter, IProgress.Counter counter) {
+        this.conTgt = conTgt;
+        this.factory = factory;
+        this.deadLetter = deadLetter;
+        this.counter = counter;
+    }
+
+
+    @Override
+    public void write(Object[] values) {
+
+        // the caller reuses the values array
+        rows.add(values.clone());
+    }
+
+
+    @Override
+    public int flush() throws SQLException, IOException {
+
+        try {
+            return writeRows(0, rows.size());
+        }
+        finally {
+            rows.clear();
+        }
+    }
+
+
+    /**
+     * Writes the rows from index from to index to, exclusive, under a savepoint, and if that fails then
+     * writes each half of the rows recursively
+     *
+     * @return - the number of rows that were written
+     */
+    int writeRows(int from, int to) throws SQLException, IOException {
+
+        if (from >= to)
+            return 0;
+
+        try (Statement statTgt = conTgt.createStatement()) {
+
+            statTgt.execute("SAVEPOINT " + SAVEPOINT + ";");
+
+            RowWriter writer = null;
+
+            try {
+                writer = factory.create();
+
+                for (int i = from; i < to; i++)
+                    writer.write(rows.get(i));
+
+                int result = writer.flush();
+                writer.finish();
+
+                statTgt.execute("RELEASE SAVEPOINT " + SAVEPOINT + ";");
+
+                return result;
+            }
+            catch (SQLException ex) {
+
+                if (isFatal(ex))
+                    throw ex;
+
+                if (writer != null)
+                    writer.close();     // aborts the COPY operation so that the connection accepts commands
+                writer = null;
+
+                statTgt.execute("ROLLBACK TO SAVEPOINT " + SAVEPOINT + ";");
+
+                if (to - from == 1) {
+                    deadLetter.write(conTgt, rows.get(from), getMessage(ex));
+                    rejected++;
+                    counter.error();
+                    return 0;
+                }
+            }
+            finally {
+                if (writer != null)
+                    writer.close();
+            }
+        }
+
+        int mid = (from + to) >>> 1;
+
+        return writeRows(from, mid) + writeRows(mid, to);
+    }
+
+
+    /**
+     * Returns true if the error was not caused by the rows, i.e. for connection exceptions (class 08),
+     * errors of the statement or the schema (42), insufficient resources (53), operator intervention (57),
+     * and system errors (58)
+     */
+    boolean isFatal(SQLException ex) throws SQLException {
+
+        if (conTgt.isClosed())
+            return true;
+
+        SQLException cause = (ex.getNextException() != null) ? ex.getNextException() : ex;
+        String state = (cause.getSQLState() != null) ? cause.getSQLState() : "";
+
+        for (String errorClass : new String[]{ "08", "42", "53", "57", "58" }) {
+            if (state.startsWith(errorClass))
+                return true;
+        }
+
+        return false;
+    }
+
+
+    /**
+     * Returns the message of the error, or of the error that caused it, e.g. the error of the row in a
+     * BatchUpdateException
+     */
+    static String getMessage(SQLException ex) {
+
+        SQLException cause = (ex.getNextException() != null) ? ex.getNextException() : ex;
+
+        return cause.getMessage();
+    }
+
+
+    @Override
+    public void finish() {}
+
+
+    @Override
+    public void commit(Connection conTgt) throws SQLException, IOException {
+
+        try (Statement statTgt = conTgt.createStatement()) {
+            statTgt.execute("COMMIT;");
+            deadLetter.commit(conTgt);
+            statTgt.execute("BEGIN TRANSACTION;");
+        }
+    }
+
+
+    @Override
+    public void close() {}
+}
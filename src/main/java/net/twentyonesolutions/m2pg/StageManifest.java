@@ -0,0 +1,204 @@
+package net.twentyonesolutions.m2pg;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The manifest of the staged files in dml.stage.dir.  The extract command writes the rows of each table
+ * to chunks of COPY text files, see StageWriter, and records the files of each table in manifest.json,
+ * with the number of rows and the SHA-256 of each file, so that the files can also be checked with e.g.
+ * sha256sum.  The load command reads manifest.json, verifies each file while it is loaded, and records
+ * the rows that COPY reported and the SHA-256 that it computed in load-manifest.json.
+ *
+ * The manifest is rewritten with Util.writeAtomically() each time that a table completes, so that it lists
+ * the tables that were extracted when an extract was interrupted.
+ */
+public class StageManifest {
+
+    static final String EXTRACT_FILENAME = "manifest.json";
+    static final String LOAD_FILENAME = "load-manifest.json";
+
+    static final String COMPLETED = "completed";
+    static final String FAILED = "failed";
+
+    static final Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    transient Path path;
+
+    // by source table name
+    final Map<String, TableEntry> tables = new LinkedHashMap<>();
+
+
+    public static class TableEntry {
+
+        String target;
+        String columns;
+        String compression;
+        String status;
+        long rows;
+        List<Chunk> chunks = new ArrayList<>();
+    }
+
+
+    public static class Chunk {
+
+        String file;
+        long rows;
+        long bytes;     // uncompressed
+        String sha256;  // of the file
+    }
+
+
+    /**
+     * @param path - the manifest file, or null to keep the manifest only in memory
+     */
+    public StageManifest(Path path) {
+        this.path = path;
+    }
+
+
+    /**
+     * Returns the directory of the staged files, dml.stage.dir, or [name]-stage if it is not set
+     */
+    public static Path getDir(Config config) {
+
+        String dir = (String) config.dml.getOrDefault("stage.dir", "");
+        if (dir.trim().isEmpty())
+            dir = config.name + "-stage";
+
+        return Paths.get(dir);
+    }
+
+
+    /**
+     * Returns dml.stage.compression, which is gzip, zstd, or none
+     */
+    public static String getCompression(Config config) {
+
+        String result = (String) config.dml.getOrDefault("stage.compression", "");
+
+        return result.isEmpty() ? "gzip" : result.toLowerCase();
+    }
+
+
+    /**
+     * Reads the manifest file, or returns an empty manifest if the file does not exist
+     */
+    public static StageManifest load(Path path) throws IOException {
+
+        if (!Files.exists(path))
+            return new StageManifest(path);
+
+        String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+
+        StageManifest result = gson.fromJson(text, StageManifest.class);
+        result.path = path;
+
+        return result;
+    }
+
+
+    public synchronized TableEntry getTable(String tableName) {
+        return tables.get(tableName);
+    }
+
+
+    /**
+     * Records the table and rewrites the file
+     */
+    public synchronized void put(String tableName, TableEntry table) {
+
+        tables.put(tableName, table);
+        save();
+    }
+
+
+    synchronized void save() {
+
+        if (path == null)
+            return;
+
+        try {
+            Util.writeAtomically(path, gson.toJson(this));
+        }
+        catch (IOException ex) {
+            // the manifest is written again when the next table completes
+            ex.printStackTrace();
+        }
+    }
+
+
+    static String getExtension(String compression) {
+
+        switch (compression) {
+            case "gzip":
+                return ".gz";
+            case "zstd":
+                return ".zst";
+            default:
+                return "";
+        }
+    }
+
+
+    /**
+     * Returns a stream that compresses to out with the compression
+     */
+    static OutputStream compress(String compression, OutputStream out) throws IOException {
+
+        switch (compression) {
+            case "gzip":
+                return new GZIPOutputStream(out, 64 * 1024);
+            case "zstd":
+                return new ZstdOutputStream(out);
+            case "none":
+                return out;
+        }
+
+        throw new IllegalArgumentException("[dml.stage.compression] has an invalid value: " + compression + " (valid values are gzip, zstd, none)");
+    }
+
+
+    /**
+     * Returns a stream that decompresses in with the compression
+     */
+    static InputStream decompress(String compression, InputStream in) throws IOException {
+
+        switch (compression) {
+            case "gzip":
+                return new GZIPInputStream(in, 64 * 1024);
+            case "zstd":
+                return new ZstdInputStream(in);
+            case "none":
+                return in;
+        }
+
+        throw new IllegalArgumentException("Unknown compression " + compression + " in the manifest");
+    }
+
+
+    static String toHex(byte[] bytes) {
+
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02x", b));
+
+        return sb.toString();
+    }
+}
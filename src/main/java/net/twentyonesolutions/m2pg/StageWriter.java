@@ -0,0 +1,178 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes the rows of a table to compressed files in the COPY text format instead of to the target, for the
+ * extract command.  A new file is started after a flush() once the current file holds dml.stage.chunk_mb
+ * of uncompressed rows, so each file holds whole batches, and the load command can load the files of a
+ * table concurrently.  The files are named [target table].[number].copy[extension], e.g.
+ * public.orders.00001.copy.gz.
+ *
+ * The values of LOB columns are streamed to the file as they are encoded, see LobValue.
+ */
+public class StageWriter implements RowWriter {
+
+    final Path dir;
+    final String prefix;
+    final String compression;
+    final long chunkBytes;
+    final CopyEncoder encoder;
+    final CopyBuffer buffer = new CopyBuffer(64 * 1024);
+    final List<StageManifest.Chunk> chunks = new ArrayList<>();
+    IProgress.Counter counter = IProgress.Counter.NONE;
+
+    // the current file, or null if no row was written since the last file was closed
+    OutputStream out;
+    MessageDigest digest;
+    StageManifest.Chunk chunk;
+    int rows = 0;
+
+
+    /**
+     * @param dir - the directory of the files
+     * @param prefix - the prefix of the file names, i.e. the target table name
+     * @param compression - gzip, zstd, or none
+     * @param chunkBytes - the uncompressed size after which a new file is started
+     * @param columnTypes - the JDBC types of the columns
+     */
+    public StageWriter(Path dir, String prefix, String compression, long chunkBytes, int[] columnTypes) {
+
+        this.dir = dir;
+        this.prefix = prefix;
+        this.compression = compression;
+        this.chunkBytes = chunkBytes;
+        this.encoder = new CopyTextEncoder(columnTypes);
+
+        // the encoded chunks of a LobValue are written as they are filled
+        this.buffer.sink = encoded -> {
+            try {
+                send(encoded);
+            }
+            catch (IOException ex) {
+                throw new SQLException("Failed to write " + chunk.file, ex);
+            }
+        };
+    }
+
+
+    void open() throws IOException {
+
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);      // every JRE has SHA-256
+        }
+
+        chunk = new StageManifest.Chunk();
+        chunk.file = String.format("%s.%05d.copy%s", prefix, chunks.size() + 1, StageManifest.getExtension(compression));
+
+        Path path = dir.resolve(chunk.file);
+        out = StageManifest.compress(compression, new DigestOutputStream(new BufferedOutputStream(Files.newOutputStream(path), 64 * 1024), digest));
+    }
+
+
+    @Override
+    public void write(Object[] values) throws SQLException, IOException {
+
+        if (out == null)
+            open();
+
+        encoder.encodeRow(values, buffer);
+        rows++;
+    }
+
+
+    void send(CopyBuffer encoded) throws IOException {
+
+        out.write(encoded.array(), 0, encoded.size());
+        chunk.bytes += encoded.size();
+        counter.bytes(encoded.size());
+    }
+
+
+    @Override
+    public int flush() throws IOException {
+
+        if (buffer.size() > 0)
+            send(buffer);
+
+        buffer.reset();
+
+        int result = rows;
+        rows = 0;
+
+        if (chunk != null){
+
+            chunk.rows += result;
+
+            if (chunk.bytes >= chunkBytes)
+                closeChunk();
+        }
+
+        return result;
+    }
+
+
+    void closeChunk() throws IOException {
+
+        out.close();
+        out = null;
+
+        chunk.sha256 = StageManifest.toHex(digest.digest());
+        chunks.add(chunk);
+        chunk = null;
+    }
+
+
+    @Override
+    public void finish() throws IOException {
+
+        flush();
+
+        if (out != null)
+            closeChunk();
+    }
+
+
+    /**
+     * The rows are in the files once they were flushed, so there is nothing to commit
+     */
+    @Override
+    public void commit(Connection conTgt) throws IOException {
+        flush();
+    }
+
+
+    /**
+     * Closes the current file if finish() was not called, which leaves an incomplete file that is not
+     * listed in the manifest
+     */
+    @Override
+    public void close() {
+
+        if (out == null)
+            return;
+
+        try {
+            out.close();
+        }
+        catch (IOException ex) {
+            // the table failed either way, the error was already reported by write or flush
+        }
+
+        out = null;
+    }
+}
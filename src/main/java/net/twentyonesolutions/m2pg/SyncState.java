@@ -0,0 +1,180 @@
+package net.twentyonesolutions.m2pg;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Timestamp;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The high watermark of each table that was synced by the sync command, kept in a JSON file between runs.
+ * The watermark is the MAX value of the watermark column, e.g. a rowversion, a modified_at timestamp, or
+ * the identity, at the time of the sync, less the values of transactions that could still commit below
+ * it, see TableSync.getSafeWatermark().
+ */
+public class SyncState {
+
+    static final Gson gson = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    final Path path;
+    final Map<String, Watermark> tables = new LinkedHashMap<>();
+
+
+    public SyncState(Path path) {
+        this.path = path;
+    }
+
+
+    /**
+     * Returns the path of the state file, dml.sync.state_file, or [name].sync if it is not set
+     */
+    public static Path getPath(Config config) {
+
+        String filename = (String) config.dml.getOrDefault("sync.state_file", "");
+        if (filename.trim().isEmpty())
+            filename = config.name + ".sync";
+
+        return Paths.get(filename);
+    }
+
+
+    /**
+     * Reads the state file of the previous run, or returns an empty state if the file does not exist
+     */
+    public static SyncState load(Path path) throws IOException {
+
+        SyncState result = new SyncState(path);
+
+        if (!Files.exists(path))
+            return result;
+
+        String text = new String(Files.readAllBytes(path), StandardCharsets.UTF_8);
+        JsonElement tables = new JsonParser().parse(text).getAsJsonObject().get("tables");
+
+        if (tables != null){
+            Map<String, Watermark> loaded = gson.fromJson(tables, new TypeToken<Map<String, Watermark>>(){}.getType());
+            result.tables.putAll(loaded);
+        }
+
+        return result;
+    }
+
+
+    /**
+     * Returns the watermark of the previous sync of the table as a JDBC parameter value, or null if the
+     * table was not synced before
+     */
+    public synchronized Object getWatermark(String tableName) {
+
+        Watermark watermark = tables.get(tableName);
+
+        return (watermark != null) ? watermark.toObject() : null;
+    }
+
+
+    /**
+     * Records the watermark of the table and writes the state file
+     *
+     * @param tableName
+     * @param value - the value of the watermark column as returned by ResultSet.getObject()
+     */
+    public synchronized void setWatermark(String tableName, Object value) throws IOException {
+
+        tables.put(tableName, Watermark.of(value));
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("tables", tables);
+
+        Util.writeAtomically(path, gson.toJson(json));
+    }
+
+
+    /**
+     * A watermark value with its type, so that it is passed to the source database with the same JDBC type
+     * that it was read with
+     */
+    static class Watermark {
+
+        String type;
+        String value;
+
+
+        static Watermark of(Object value) {
+
+            Watermark result = new Watermark();
+
+            if (value instanceof Number) {
+                result.type = "long";
+                result.value = String.valueOf(((Number) value).longValue());
+            }
+            else if (value instanceof byte[]) {
+                result.type = "bytes";
+                result.value = toHex((byte[]) value);
+            }
+            else if (value instanceof Timestamp) {
+                result.type = "timestamp";
+                result.value = value.toString();
+            }
+            else {
+                result.type = "string";
+                result.value = value.toString();
+            }
+
+            return result;
+        }
+
+
+        Object toObject() {
+
+            switch (type) {
+
+                case "long":
+                    return Long.parseLong(value);
+
+                case "bytes":
+                    return fromHex(value);
+
+                case "timestamp":
+                    return Timestamp.valueOf(value);
+
+                default:
+                    return value;
+            }
+        }
+
+
+        @Override
+        public String toString() {
+            return (type.equals("bytes") ? "0x" : "") + value;
+        }
+    }
+
+
+    static String toHex(byte[] bytes) {
+
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            sb.append(String.format("%02X", b));
+
+        return sb.toString();
+    }
+
+
+    static byte[] fromHex(String hex) {
+
+        byte[] result = new byte[hex.length() / 2];
+        for (int i = 0; i < result.length; i++)
+            result[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+
+        return result;
+    }
+}
@@ -12,6 +12,14 @@ public class Table {
 
     Column identity;
 
+    // from information_schema.indexes_query and information_schema.foreign_keys_query, created after the copy
+    final List<Index> indexes = new ArrayList<>();
+    final List<ForeignKey> foreignKeys = new ArrayList<>();
+
+    // estimates from dml.table_size_query, -1 if unknown
+    long estimatedRows = -1;
+    long estimatedBytes = -1;
+
     public Table(String fullTableName) {
 
         int pos = fullTableName.indexOf('.');
@@ -29,13 +37,51 @@ public class Table {
     }
 
 
-    public String getColumnListSrc(Config config){
+    /**
+     * Returns the column name wrapped in the source_column_quote_prefix and source_column_quote_suffix
+     */
+    public String getColumnNameSrc(Config config, Column col){
 
         String columnPrefix = (String)config.dml.getOrDefault("source_column_quote_prefix", "");
         String columnSuffix = (String)config.dml.getOrDefault("source_column_quote_suffix", "");
 
-        String colsSql = this.columns.stream()
-            .map(col -> columnPrefix + col.name + columnSuffix)
+        return columnPrefix + col.name + columnSuffix;
+    }
+
+
+    /**
+     * Returns the columns in the order of the SELECT and of the target column list of the copy, which is the
+     * order of the table with the LOB columns last.  Drivers that stream the values of a row, e.g. the SQL
+     * Server driver, can only stream a LOB value if the columns before it were read and the columns after
+     * it were not, so the LOB columns are read after the other columns of the row, see LobValue.
+     */
+    public List<Column> getCopyColumns(){
+
+        List<Column> result = new ArrayList<>(this.columns.size());
+
+        for (Column col : this.columns){
+            if (!col.isLob())
+                result.add(col);
+        }
+
+        for (Column col : this.columns){
+            if (col.isLob())
+                result.add(col);
+        }
+
+        return result;
+    }
+
+
+    public boolean hasLob(){
+        return this.columns.stream().anyMatch(Column::isLob);
+    }
+
+
+    public String getColumnListSrc(Config config){
+
+        String colsSql = getCopyColumns().stream()
+            .map(col -> getColumnNameSrc(config, col))
             .collect(
                     Collectors.joining(", ")
             );
@@ -48,7 +94,7 @@ public class Table {
 
 //        String transformColumn = (String)config.config.getOrDefault("column_transform", "");
 
-        String colsSql = this.columns.stream()
+        String colsSql = getCopyColumns().stream()
 //            .map(col -> config.transform(col.name, transformColumn))
             .map(col -> config.getTargetColumnName(col.name))
             .collect(
@@ -67,11 +113,25 @@ public class Table {
                     Collectors.joining("\n\t,")
             );
 
-        String ddl = "CREATE TABLE " + config.getTargetTableName(this) + " (\n\t " + colsSql + "\n);";
+        // with dml.bulk_load the rows are not written to the WAL, the table is set LOGGED after its copy
+        String create = BulkLoad.isEnabled(config) ? "CREATE UNLOGGED TABLE " : "CREATE TABLE ";
+
+        String ddl = create + config.getTargetTableName(this) + " (\n\t " + colsSql + "\n);";
 
         return ddl;
     }
 
+    /**
+     * Returns the column with the given name, ignoring case, or null if the table does not have such a column
+     */
+    public Column getColumn(String name){
+
+        return this.columns.stream()
+            .filter(col -> col.name.equalsIgnoreCase(name))
+            .findFirst()
+            .orElse(null);
+    }
+
     public boolean hasIdentity(){
         return identity != null;
     }
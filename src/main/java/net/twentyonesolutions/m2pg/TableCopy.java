@@ -0,0 +1,976 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.JDBCType;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copies the data of one table from the source database to the target database.
+ *
+ * Large tables can be split into ranges of an integer key, i.e. the identity column or a column that is
+ * configured in dml.split.columns, and the ranges are then copied concurrently, each with its own source
+ * and target connections.  The ranges share the IProgress.Counter of the table, so the table is still
+ * reported as a single unit.
+ *
+ * The progress is recorded in a Checkpoint.  With dml.checkpoint.commit_rows the rows are read in the order
+ * of the key column and are committed every commit_rows rows, so that a resumed run can continue after the
+ * last committed key instead of truncating the table.
+ *
+ * With dml.bulk_load the table is copied as an UNLOGGED table by sessions with relaxed durability and
+ * without triggers, and is set LOGGED when its copy is committed, see BulkLoad.
+ */
+public class TableCopy {
+
+    final Config config;
+    final Table table;
+    final String tableName;
+    final String tgtTable;
+    final IProgress progress;
+    final Checkpoint checkpoint;
+    final boolean resume;
+    final boolean bulkLoad;
+    final boolean isSkip;
+
+    Checkpoint.TableState state;
+    Column keyColumn;
+    int keyIndex = -1;
+    long commitRows = 0;
+    boolean isUniqueKey = false;
+
+    long rowCount = 0;
+    IProgress.Counter counter = IProgress.Counter.NONE;
+    final LongAdder copied = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    DeadLetter deadLetter;
+
+    // runs the ranges of a split table, or null to run them on a thread pool of the table
+    TaskScheduler scheduler;
+
+    volatile boolean aborted = false;
+
+
+    public TableCopy(Config config, Table table, IProgress progress) {
+        this(config, table, progress, new Checkpoint(null), false);
+    }
+
+
+    /**
+     * @param config
+     * @param table
+     * @param progress
+     * @param checkpoint - the checkpoint of the dml run
+     * @param resume - true to skip the table if it was completed, or to continue it if rows were committed
+     */
+    public TableCopy(Config config, Table table, IProgress progress, Checkpoint checkpoint, boolean resume) {
+
+        this.config = config;
+        this.table = table;
+        this.tableName = table.toString();
+        this.tgtTable = config.getTargetTableName(table);
+        this.progress = progress;
+        this.checkpoint = checkpoint;
+        this.resume = resume;
+        this.bulkLoad = BulkLoad.isEnabled(config);
+        this.isSkip = "skip".equalsIgnoreCase((String) config.dml.get("on_error"));
+    }
+
+
+    @SuppressWarnings("try")    // the BulkLoad.Session resets the settings of the connection when it is closed
+    public String copy() throws IOException {
+
+        StringBuilder log = new StringBuilder(1024);
+
+        String qSelect;
+
+        log.append(String.format("/** copy table %s to %s */\n", tableName, tgtTable));
+
+        state = checkpoint.getTable(tableName);
+
+        if (resume && state != null && Checkpoint.COMPLETED.equals(state.status)) {
+
+            log.append(" /* skipped, the table was completed in a previous run */\n");
+
+            if (progress != null)
+                progress.getCounter(tableName, 0).done();
+
+            return log.toString();
+        }
+
+        boolean isResume = resume && state != null && state.hasProgress();
+
+        if (isResume && bulkLoad) {
+            log.append(" /* bulk_load: the committed rows of an UNLOGGED table do not survive a crash of the server, copying the table again */\n");
+            isResume = false;
+        }
+
+        long tc = System.currentTimeMillis();
+
+        boolean isUnlogged = false;
+        boolean isCompleted = false;
+
+        try {
+
+            try (Connection conSrc = config.connect(config.source);
+                 Statement statSrc = conSrc.createStatement()) {
+
+                long tp = System.nanoTime();
+
+                qSelect = "SELECT COUNT(*) AS row_count" + "\nFROM " + table.toString();
+                ResultSet rs = statSrc.executeQuery(qSelect);
+
+                if (rs.next()) {
+                    rowCount = rs.getLong("row_count");
+                    log.append(String.format(" /* %,d rows */\n", rowCount));
+                } else {
+                    throw new RuntimeException("No results found for " + qSelect);
+                }
+
+                rs.close();
+
+                if (progress != null)
+                    counter = progress.getCounter(tableName, rowCount);
+
+                counter.phase("count", System.nanoTime() - tp);
+
+                if (isResume) {
+
+                    keyColumn = (state.keyColumn != null) ? table.getColumn(state.keyColumn) : null;
+
+                    counter.add(state.rows);
+                    copied.add(state.rows);
+
+                    log.append(String.format(" /* resuming from checkpoint, %,d rows were committed in a previous run */\n", state.rows));
+                }
+                else {
+
+                    keyColumn = getKeyColumn();
+
+                    List<String> ranges = getSplitRanges(conSrc, log);
+                    if (ranges.isEmpty())
+                        ranges = Collections.singletonList(null);
+
+                    state = checkpoint.start(tableName, (keyColumn != null) ? keyColumn.name : null, ranges);
+                }
+            }
+
+            // intermediate commits require a key that is never NULL so that "key > last key" continues the copy.
+            // if the key is not unique then the commits wait for a change of the key, see commitBeforeBatch()
+            if (keyColumn != null && !keyColumn.isNullable) {
+                commitRows = config.getDmlInt("checkpoint.commit_rows", 0);
+                keyIndex = table.getCopyColumns().indexOf(keyColumn);
+                isUniqueKey = isUnique(keyColumn);
+            }
+
+            boolean isSplit = state.ranges.size() > 1;
+            boolean hasErrors = false;
+
+            if (bulkLoad) {
+                try (Connection conTgt = config.connect(config.target)) {
+                    isUnlogged = BulkLoad.setUnlogged(conTgt, tgtTable, log);
+                }
+            }
+
+            if (isSplit) {
+
+                if (!isResume) {
+                    // the TRUNCATE must be committed, or else its lock would block the connections that copy the ranges
+                    try (Connection conTgt = config.connect(config.target);
+                         Statement statTgt = conTgt.createStatement()) {
+
+                        statTgt.execute("TRUNCATE TABLE " + tgtTable + ";");
+                    }
+                }
+
+                List<Checkpoint.Range> pending = new ArrayList<>();
+                for (Checkpoint.Range range : state.ranges) {
+                    if (!range.completed)
+                        pending.add(range);
+                }
+
+                long tp = System.nanoTime();
+                hasErrors = !copyRanges(pending, log);
+                counter.phase("copy", System.nanoTime() - tp);
+            }
+
+            try (Connection conSrc = config.connect(config.source);
+                 Connection conTgt = config.connect(config.target);
+                 BulkLoad.Session session = new BulkLoad.Session(conTgt, bulkLoad && !isSplit, log);
+                 Statement statTgt = conTgt.createStatement()) {
+
+                statTgt.execute("BEGIN TRANSACTION;");
+
+                if (!isSplit) {
+
+                    if (!isResume)
+                        statTgt.execute("TRUNCATE TABLE " + tgtTable + ";");
+
+                    long tp = System.nanoTime();
+                    hasErrors = !copyRows(conSrc, conTgt, state.ranges.get(0), log);
+                    counter.phase("copy", System.nanoTime() - tp);
+                }
+
+                if (rowCount > 0 && table.hasIdentity()) {
+                    recommendIdentity(conSrc, conTgt, log);
+                }
+
+                if (hasErrors) {
+
+                    boolean isReset = false;
+
+                    // with on_error skip the rejected rows do not stop the copy, so this is an error of the
+                    // connection or of the server, which is handled as with rollback
+                    log.append("  rolling back transaction **/\n");
+
+                    if (isSplit && commitRows == 0) {
+                        // the ranges were committed separately so we have to remove their rows
+                        statTgt.execute("TRUNCATE TABLE " + tgtTable + ";");
+                        statTgt.execute("COMMIT;");
+                        isReset = true;
+                        resetDeadLetter(log);
+                    }
+                    else {
+                        statTgt.execute("ROLLBACK;");
+                        endDeadLetter(conTgt, false, log);
+                    }
+
+                    checkpoint.fail(state, isReset);
+
+                    if (state.hasProgress())
+                        log.append(String.format(" /* %,d rows remain committed, run dml --resume to continue the copy */\n", state.rows));
+                } else {
+
+                    long tp = System.nanoTime();
+                    statTgt.execute("COMMIT;");
+                    counter.phase("commit", System.nanoTime() - tp);
+
+                    endDeadLetter(conTgt, true, log);
+
+                    if (isUnlogged) {
+
+                        long elapsed = BulkLoad.setLogged(conTgt, tgtTable);
+                        counter.phase("set_logged", elapsed);
+
+                        log.append(String.format(" /* bulk_load: copied UNLOGGED in %.3f seconds, SET LOGGED in %.3f seconds */\n"
+                                , (System.currentTimeMillis() - tc) / 1000.0 - elapsed / 1e9, elapsed / 1e9));
+                    }
+
+                    if (!isSplit)
+                        checkpoint.complete(state, state.ranges.get(0), state.ranges.get(0).uncommitted);
+
+                    checkpoint.complete(state);
+                    isCompleted = true;
+                }
+            }
+        }
+        catch (SQLException ex){
+            ex.printStackTrace();
+            log.append("\n/** Error: ").append(ex.toString()).append(" **/\n");
+            counter.error();
+        }
+
+        if (isUnlogged && !isCompleted)
+            restoreLogged(log);
+
+        counter.done();
+
+        if (deadLetter != null){
+            deadLetter.close();
+
+            if (deadLetter.rows > 0)
+                log.append(String.format(" /* on_error skip: %,d rows were rejected, see %s */\n", deadLetter.rows, deadLetter.path));
+
+            if (rejected.sum() > deadLetter.rows)
+                log.append(String.format(" /* on_error skip: %,d rejected rows were in transactions that were rolled back, and are not in the dead-letter file */\n", rejected.sum() - deadLetter.rows));
+        }
+
+        tc = System.currentTimeMillis() - tc;
+
+        if (rowCount > 0)
+            log.append(String.format(" /* copied %,d / %,d records in %.3f seconds **/\n", copied.sum(), rowCount, tc / 1000.0));
+
+        return log.toString();
+    }
+
+
+    /**
+     * Switches the table back to LOGGED after its copy failed, so that a crash of the server does not
+     * truncate the rows that remain committed, or logs that the table was left UNLOGGED
+     */
+    void restoreLogged(StringBuilder log) {
+
+        try (Connection conTgt = config.connect(config.target)) {
+
+            BulkLoad.setLogged(conTgt, tgtTable);
+            log.append(" /* bulk_load: switched the table back to LOGGED after the failure */\n");
+        }
+        catch (SQLException ex) {
+            log.append(String.format(" /* bulk_load: the table was left UNLOGGED, a crash of the server truncates it, run ALTER TABLE %s SET LOGGED or copy it again: %s */\n"
+                    , tgtTable, ex.getMessage()));
+        }
+    }
+
+
+    /**
+     * Copies the rows of the table, or of the range of rows that match the where clause, in the current
+     * transaction of conTgt
+     *
+     * @param conSrc
+     * @param conTgt
+     * @param range - the range of the rows, and the last key that was committed in the range
+     * @param log
+     * @return - true if the rows were copied without errors
+     */
+    boolean copyRows(Connection conSrc, Connection conTgt, Checkpoint.Range range, StringBuilder log) throws SQLException {
+
+        String where = getPredicate(range);
+
+        String qSelect = "SELECT " + table.getColumnListSrc(config) + "\nFROM " + table.toString();
+        if (where != null)
+            qSelect += "\nWHERE " + where;
+
+        if (commitRows > 0)
+            qSelect += "\nORDER BY " + table.getColumnNameSrc(config, keyColumn);
+
+        try (Statement statSrc = conSrc.createStatement()) {
+
+
+            FetchSize fetchSize = new FetchSize(config, table);
+            statSrc.setFetchSize(fetchSize.rows);
+
+            ResultSet rs = statSrc.executeQuery(qSelect);
+
+            ResultSetMetaData rsMetaData = rs.getMetaData();
+
+            int columnCount = rsMetaData.getColumnCount();
+
+            int[] columnTypes = getColumnTypes(rsMetaData, log);
+
+            if (columnTypes == null) {
+                log.append(" /* No rows copied */");
+                return false;
+            }
+
+            boolean hasErrors = false;
+
+            boolean isCopy = "copy".equalsIgnoreCase((String) config.dml.get("method"));
+            String method = isCopy ? "Copy" : "Insert";
+            SkipWriter.Factory factory;
+            CopyEncoder encoder = null;
+
+            int batchSize = Math.max(config.getDmlInt("batch_size", 1000), 1);
+            int ringSize = config.getDmlInt("pipeline.ring_size", 0);
+
+            // the values of LOB columns are streamed, which requires that each row is written before the next
+            // row is read, so the rows are not kept by the SkipWriter and are not read ahead by the pipeline
+            LobValue[] lobs = isSkip ? null : LobValue.create(table.getCopyColumns(), rs);
+
+            ColumnCodec[] codecs = ColumnCodec.resolve(rsMetaData, columnTypes, lobs);
+
+            if (lobs != null && ringSize > 0) {
+                log.append(" /* streaming the LOB columns, the pipeline is not used for this table */\n");
+                ringSize = 0;
+            }
+
+            if (isCopy) {
+
+                if (lobs != null && "binary".equalsIgnoreCase((String) config.dml.get("copy_format"))) {
+
+                    // the binary format requires the length of a value before the value
+                    log.append(" /* streaming the LOB columns, using text COPY */\n");
+                }
+                else if ("binary".equalsIgnoreCase((String) config.dml.get("copy_format"))) {
+
+                    String[] tgtTypeNames = CopyWriter.getTargetTypeNames(conTgt, tgtTable, table.getColumnListTgt(config));
+                    String[] tgtColumnNames = table.getCopyColumns().stream().map(col -> config.getTargetColumnName(col.name)).toArray(String[]::new);
+                    StringBuilder unsupported = new StringBuilder();
+
+                    encoder = CopyBinaryEncoder.create(tgtTypeNames, columnTypes, tgtColumnNames, unsupported);
+
+                    if (encoder == null)
+                        log.append(String.format(" /* binary COPY is not supported for column %s, using text COPY */\n", unsupported));
+                }
+
+                if (encoder == null)
+                    encoder = new CopyTextEncoder(columnTypes);
+
+                CopyEncoder copyEncoder = encoder;
+
+                factory = () -> {
+                    CopyWriter copyWriter = new CopyWriter(conTgt, tgtTable, table.getColumnListTgt(config), copyEncoder);
+                    copyWriter.counter = counter;
+                    return copyWriter;
+                };
+            }
+            else {
+
+                String qInsert = "INSERT INTO " + tgtTable + " (" + table.getColumnListTgt(config) + ")"
+                        + "\nVALUES(" + String.join(", ", Collections.nCopies(columnCount, "?")) + ")";
+
+                factory = () -> new InsertWriter(conTgt.prepareStatement(qInsert), columnTypes);
+            }
+
+            // with on_error skip each batch is written by its own writer under a savepoint, see SkipWriter
+            RowWriter writer = isSkip
+                    ? new SkipWriter(conTgt, factory, getDeadLetter(columnTypes), counter)
+                    : factory.create();
+
+            if (ringSize > 0) {
+
+                // encoder threads are used only with COPY, the values of INSERT are bound on the writer thread, and
+                // the SkipWriter keeps the values of the rows to write them again if the batch fails
+                int encoders = (isCopy && !isSkip) ? config.getDmlInt("pipeline.encoders", 0) : 0;
+
+                CopyPipeline pipeline = new CopyPipeline(this, ringSize, batchSize, columnCount, encoders);
+                hasErrors = !pipeline.run(rs, fetchSize, codecs, writer, encoder, conTgt, range, method, where, log);
+            }
+            else {
+
+                hasErrors = !writeRows(rs, fetchSize, codecs, writer, conTgt, range, batchSize, columnCount, method, where, log);
+            }
+
+            writer.close();
+
+            log.append(fetchSize.describe());
+
+            if (writer instanceof SkipWriter)
+                rejected.add(((SkipWriter) writer).rejected);
+
+            statSrc.cancel();  // if the statement did not complete then we should cancel it or else we have to wait for a timeout
+            rs.close();
+
+            return !hasErrors;
+        }
+    }
+
+
+    /**
+     * Returns the JDBC types that are used to bind the values of the columns, i.e. the source types after
+     * dml.jdbc_type_mapping was applied
+     *
+     * @param rsMetaData - the metadata of the source rows
+     * @param log
+     * @return - the types, or null if the type of a column is not supported
+     */
+    int[] getColumnTypes(ResultSetMetaData rsMetaData, StringBuilder log) throws SQLException {
+
+        Map<String, String> jdbcTypeMapping = (Map<String, String>) config.dml.get("jdbc_type_mapping");
+
+        int columnCount = rsMetaData.getColumnCount();
+
+        int[] columnTypes = new int[columnCount];
+        //        SQLType[] sqlTypes = new SQLType[columnCount];  // TODO: use this instead of columnTypes when pgjdbc will support setObject with SQLType
+
+        for (int i = 1; i <= columnCount; i++) {
+
+            int srcType = 0, tgtType;
+            String srcTypeName;
+
+            try {
+                srcType = rsMetaData.getColumnType(i);
+                tgtType = srcType;
+
+                // translate unsupported types, e.g. nvarchar to varchar, dml jdbcTypeMapping is based on JDBC types, while ddl jdbcTypeMapping is based on SQL types
+                //            if (jdbcTypeMapping.containsKey(String.valueOf(srcType)))
+                //                tgtType = Integer.parseInt(jdbcTypeMapping.getOrDefault(String.valueOf(srcType), String.valueOf(tgtType)));
+
+                srcTypeName = JDBCType.valueOf(srcType).getName();   // WARN: rsMetaData.getColumnTypeName(i) returns the vendor's name instead of JDBC name, e.g. ntext instead of longnvarchar for MSSQL
+                if (jdbcTypeMapping.containsKey(srcTypeName)) {
+                    String tgtTypeName = jdbcTypeMapping.get(srcTypeName);
+                    tgtType = JDBCType.valueOf(tgtTypeName).getVendorTypeNumber();
+                }
+
+                columnTypes[i - 1] = tgtType;
+            }
+            catch (Throwable t) {
+                String colName = rsMetaData.getColumnName(i);
+                log.append(String.format(" /* Error: Failed to get JDBC column type (%s) for %s.%s */\n", srcType, tableName, colName));
+                return null;
+            }
+        }
+
+        return columnTypes;
+    }
+
+
+    /**
+     * Returns the dead-letter file of the table, which is shared by the ranges of a split table
+     */
+    synchronized DeadLetter getDeadLetter(int[] columnTypes) {
+
+        if (deadLetter == null)
+            deadLetter = new DeadLetter(DeadLetter.getPath(config, tgtTable), columnTypes);
+
+        return deadLetter;
+    }
+
+
+    /**
+     * Writes the rejected rows of the transaction of conTgt to the dead-letter file after the transaction
+     * was committed, or discards them after it was rolled back
+     */
+    void endDeadLetter(Connection conTgt, boolean isCommitted, StringBuilder log) {
+
+        DeadLetter deadLetter;
+        synchronized (this) {
+            deadLetter = this.deadLetter;
+        }
+
+        if (deadLetter == null)
+            return;
+
+        if (!isCommitted) {
+            deadLetter.rollback(conTgt);
+            return;
+        }
+
+        try {
+            deadLetter.commit(conTgt);
+        }
+        catch (IOException ex) {
+            log.append(String.format(" /* on_error skip: failed to write the rejected rows to %s: %s */\n", deadLetter.path, ex.toString()));
+        }
+    }
+
+
+    /**
+     * Removes the rejected rows of this run from the dead-letter file after the committed ranges of the
+     * table were truncated
+     */
+    void resetDeadLetter(StringBuilder log) {
+
+        DeadLetter deadLetter;
+        synchronized (this) {
+            deadLetter = this.deadLetter;
+        }
+
+        if (deadLetter == null)
+            return;
+
+        try {
+            deadLetter.reset();
+        }
+        catch (IOException ex) {
+            log.append(String.format(" /* on_error skip: failed to remove the rejected rows of the truncated ranges from %s: %s */\n", deadLetter.path, ex.toString()));
+        }
+    }
+
+
+    /**
+     * Reads the rows from the result set with the codecs of the columns, see ColumnCodec.resolve(), and
+     * writes them to the target on the current thread.  The fetch size of rs is adjusted after each batch.
+     *
+     * @return - true if the rows were written without errors
+     */
+    boolean writeRows(ResultSet rs, FetchSize fetchSize, ColumnCodec[] codecs, RowWriter writer, Connection conTgt, Checkpoint.Range range, int batchSize, int columnCount, String method, String where, StringBuilder log) throws SQLException {
+
+        boolean hasErrors = false;
+
+        Object[] values = new Object[columnCount];
+        int row = 0, batched = 0;
+        boolean hasNext = rs.next();
+        while (hasNext) {
+
+            row++;
+
+            for (int i = 1; i <= columnCount; i++) {
+                values[i - 1] = codecs[i - 1].read(rs, i);
+            }
+
+            fetchSize.sample(values);
+
+            try {
+
+                if (batched == 0)
+                    commitBeforeBatch(writer, conTgt, range, values);
+
+                writer.write(values);
+                batched++;
+
+                hasNext = rs.next();
+
+                if (batched < batchSize && hasNext)
+                    continue;
+
+                if (hasNext)
+                    fetchSize.adjust(rs);
+
+                counter.read(batched);
+                copied.add(writer.flush());
+                counter.add(batched);
+
+                commitIfDue(writer, conTgt, range, batched, values);
+
+                batched = 0;
+
+                if (!hasNext)
+                    writer.finish();
+            }
+            catch (SQLException | IOException ex) {
+
+                logWriteError(ex, method, batched, row, where, log);
+
+                hasErrors = true;
+                break;  // exit the loop and stop processing. TODO: modify for other exception handling strategies
+            }
+
+            if (aborted) {
+                // another range of the table failed
+                hasErrors = true;
+                break;
+            }
+
+            //            System.out.printf("\r%tT %,d/%,d %.2f%% %8s %s", System.currentTimeMillis(), row, rowCount, 100.0 * row / rowCount, executeResult, table.toString());
+        }
+
+        if (row == 0) {
+            // end the COPY operation of an empty table before running other queries on the connection
+            try {
+                writer.finish();
+            }
+            catch (SQLException | IOException ex) {
+                log.append("\n/** Error: " + method + " Failed. ").append(ex.toString()).append("\n");
+                hasErrors = true;
+            }
+        }
+
+        return !hasErrors;
+    }
+
+
+    /**
+     * Adds the rows of a batch that was flushed to the uncommitted rows of the range, and if there are at
+     * least dml.checkpoint.commit_rows uncommitted rows and the key is unique then commits them and records
+     * the key of the last row in the checkpoint
+     *
+     * @param writer
+     * @param conTgt
+     * @param range
+     * @param rows - the number of rows in the batch
+     * @param lastValues - the values of the last row in the batch
+     */
+    void commitIfDue(RowWriter writer, Connection conTgt, Checkpoint.Range range, int rows, Object[] lastValues) throws SQLException, IOException {
+
+        range.uncommitted += rows;
+
+        if (commitRows == 0)
+            return;
+
+        range.uncommittedKey = (lastValues[keyIndex] instanceof Number) ? ((Number) lastValues[keyIndex]).longValue() : null;
+
+        if (isUniqueKey)
+            commit(writer, conTgt, range);
+    }
+
+
+    /**
+     * Commits the uncommitted rows of the range before the next batch is written if the key is not unique,
+     * there are at least dml.checkpoint.commit_rows uncommitted rows, and the first row of the next batch
+     * has a different key than the last row that was written, so that "key > last key" does not skip the
+     * remaining rows of a key on --resume
+     *
+     * @param writer
+     * @param conTgt
+     * @param range
+     * @param firstValues - the values of the first row of the next batch
+     */
+    void commitBeforeBatch(RowWriter writer, Connection conTgt, Checkpoint.Range range, Object[] firstValues) throws SQLException, IOException {
+
+        if (commitRows == 0 || isUniqueKey || range.uncommittedKey == null || !(firstValues[keyIndex] instanceof Number))
+            return;
+
+        if (((Number) firstValues[keyIndex]).longValue() != range.uncommittedKey)
+            commit(writer, conTgt, range);
+    }
+
+
+    void commit(RowWriter writer, Connection conTgt, Checkpoint.Range range) throws SQLException, IOException {
+
+        if (range.uncommitted < commitRows || range.uncommittedKey == null)
+            return;
+
+        long tp = System.nanoTime();
+        writer.commit(conTgt);
+        counter.phase("commit", System.nanoTime() - tp);
+
+        checkpoint.commit(state, range, range.uncommitted, range.uncommittedKey);
+        range.uncommitted = 0;
+    }
+
+
+    /**
+     * Returns the predicate of the range for the WHERE clause, including the last key that was committed in
+     * the range, or null if all of the rows should be copied
+     */
+    String getPredicate(Checkpoint.Range range) {
+
+        if (range.lastKey == null)
+            return range.where;
+
+        String result = table.getColumnNameSrc(config, keyColumn) + " > " + range.lastKey;
+
+        return (range.where == null) ? result : range.where + " AND " + result;
+    }
+
+
+    void logWriteError(Exception ex, String method, long batched, long row, String where, StringBuilder log) {
+
+        // BatchUpdateException wraps the actual cause, e.g. the constraint violation, as the next exception
+        Exception cause = (ex instanceof SQLException && ((SQLException) ex).getNextException() != null)
+                ? ((SQLException) ex).getNextException()
+                : ex;
+
+        System.err.println("\n\n" + method + " Failed. " + cause.toString());
+
+        counter.error();
+
+        log.append("\n/** Error: " + method + " Failed. ")
+                .append(cause.toString())
+                .append(String.format("\n\tin batch of %,d rows ending at row %,d", batched, row))
+                .append(where != null ? "\n\tin range " + where : "")
+                .append("\n");
+    }
+
+
+    /**
+     * Copies each range concurrently on its own source and target connections, and commits each range
+     * separately
+     *
+     * @param ranges - the ranges of the table that were not completed yet
+     * @param log
+     * @return - true if all of the ranges were copied without errors
+     */
+    @SuppressWarnings("try")    // the BulkLoad.Session resets the settings of the connection when it is closed
+    boolean copyRanges(List<Checkpoint.Range> ranges, StringBuilder log) {
+
+        log.append(String.format(" /* copying %d ranges concurrently */\n", ranges.size()));
+
+        ExecutorService executorService = (scheduler == null) ? Executors.newFixedThreadPool(ranges.size()) : null;
+
+        List<Future<Boolean>> tasks = new ArrayList<>();
+
+        for (Checkpoint.Range range : ranges) {
+
+            Callable<Boolean> task = () -> {
+
+                StringBuilder rangeLog = new StringBuilder();
+                boolean result = false;
+
+                try (Connection conSrc = config.connect(config.source);
+                     Connection conTgt = config.connect(config.target);
+                     BulkLoad.Session session = new BulkLoad.Session(conTgt, bulkLoad, rangeLog);
+                     Statement statTgt = conTgt.createStatement()) {
+
+                    statTgt.execute("BEGIN TRANSACTION;");
+
+                    result = copyRows(conSrc, conTgt, range, rangeLog);
+
+                    statTgt.execute(result ? "COMMIT;" : "ROLLBACK;");
+                    endDeadLetter(conTgt, result, rangeLog);
+
+                    if (result)
+                        checkpoint.complete(state, range, range.uncommitted);
+                }
+                catch (SQLException ex) {
+                    ex.printStackTrace();
+                    rangeLog.append("\n/** Error: ").append(ex.toString()).append("\n\tin range ").append(range.where).append("\n");
+                    counter.error();
+                }
+
+                if (!result)
+                    aborted = true;
+
+                synchronized (log) {
+                    log.append(rangeLog);
+                }
+
+                return result;
+            };
+
+            tasks.add((scheduler != null) ? scheduler.submit(task) : executorService.submit(task));
+        }
+
+        boolean result = true;
+
+        for (Future<Boolean> task : tasks) {
+
+            try {
+                result &= task.get();
+            }
+            catch (InterruptedException | ExecutionException ex) {
+                ex.printStackTrace();
+                result = false;
+            }
+        }
+
+        if (executorService != null)
+            executorService.shutdown();
+
+        return result;
+    }
+
+
+    /**
+     * Returns the predicates that split the table into ranges of the split column, or an empty list if the
+     * table should not be split, i.e. if dml.split.threads is less than 2, the table has fewer rows than
+     * dml.split.min_rows, or it does not have an integer split column.
+     *
+     * The first range includes NULL values and values below the MIN, and the last range includes values
+     * above the MAX, so that rows that were added after the MIN/MAX query are copied as well.
+     */
+    List<String> getSplitRanges(Connection conSrc, StringBuilder log) throws SQLException {
+
+        int numRanges = config.getDmlInt("split.threads", 1);
+        long minRows = config.getDmlInt("split.min_rows", 1_000_000);
+
+        Column splitColumn = keyColumn;
+
+        if (numRanges < 2 || rowCount < minRows || splitColumn == null)
+            return Collections.emptyList();
+
+        String colName = table.getColumnNameSrc(config, splitColumn);
+
+        String qSelect = "SELECT MIN(" + colName + ") AS min_value, MAX(" + colName + ") AS max_value"
+                + "\nFROM " + table.toString();
+
+        long min, max;
+
+        try (Statement statSrc = conSrc.createStatement();
+             ResultSet rs = statSrc.executeQuery(qSelect)) {
+
+            if (!rs.next())
+                return Collections.emptyList();
+
+            min = rs.getLong("min_value");
+            max = rs.getLong("max_value");
+        }
+
+        long step;
+        try {
+            step = Math.max(Math.subtractExact(max, min) / numRanges + 1, 1);
+        }
+        catch (ArithmeticException ex) {
+            return Collections.emptyList();
+        }
+
+        // the boundaries between the ranges
+        List<Long> bounds = new ArrayList<>();
+        for (long bound = min + step; bound <= max && bounds.size() < numRanges - 1; bound += step)
+            bounds.add(bound);
+
+        if (bounds.isEmpty())
+            return Collections.emptyList();
+
+        List<String> result = new ArrayList<>();
+
+        result.add("(" + colName + " < " + bounds.get(0) + " OR " + colName + " IS NULL)");
+
+        for (int i = 1; i < bounds.size(); i++)
+            result.add(colName + " >= " + bounds.get(i - 1) + " AND " + colName + " < " + bounds.get(i));
+
+        result.add(colName + " >= " + bounds.get(bounds.size() - 1));
+
+        log.append(String.format(" /* split on %s from %,d to %,d */\n", splitColumn.name, min, max));
+
+        return result;
+    }
+
+
+    /**
+     * Returns the integer column that orders the rows for splits and checkpoints, i.e. the column that is
+     * configured in dml.split.columns or the identity column, or null if the table does not have one
+     */
+    Column getKeyColumn() {
+
+        Column result = table.getIdentity();
+
+        Map<String, String> splitColumns = (Map<String, String>) config.dml.get("split.columns");
+        if (splitColumns.containsKey(tableName))
+            result = table.getColumn(splitColumns.get(tableName));
+
+        if (result == null || !result.type.contains("INT"))
+            return null;
+
+        return result;
+    }
+
+
+    /**
+     * Returns true if the column is the identity column or the only column of a primary key or of a unique
+     * constraint or index, from information_schema.indexes_query
+     */
+    boolean isUnique(Column column) {
+
+        if (column == table.getIdentity())
+            return true;
+
+        for (Index index : table.indexes) {
+            if (!index.type.equals(Index.INDEX) && index.columns.size() == 1 && index.columns.get(0).name.equalsIgnoreCase(column.name))
+                return true;
+        }
+
+        return false;
+    }
+
+
+    void recommendIdentity(Connection conSrc, Connection conTgt, StringBuilder log) throws SQLException {
+
+        Column identity = table.getIdentity();
+        String qSelect = "SELECT MAX(" + identity.name + ") AS max_value" + "\nFROM " + table.toString();
+
+        try (Statement statSrc = conSrc.createStatement();
+             ResultSet rs = statSrc.executeQuery(qSelect)) {
+
+            if (rs.next()) {
+
+                long longValue = rs.getLong("max_value");
+
+                double recommendFactor = 1_000.0;
+
+                if (longValue > 1_000_000)
+                    recommendFactor = 10_000.0;
+
+                long recommendValue = (long) (Math.ceil((longValue + recommendFactor) / recommendFactor) * recommendFactor);
+
+                String sqlRecommended = "ALTER TABLE " +
+                        tgtTable +
+                        " ALTER COLUMN " +
+                        config.getTargetColumnName(identity.name) +
+                        " RESTART WITH " +
+                        recommendValue +
+                        ";";
+
+                log.append(" -- Identity column ")
+                        .append(identity.name)
+                        .append(" has max value of ")
+                        .append(longValue)
+                        .append(". ");
+
+                if (config.dml.get("execute.recommended").toString().toLowerCase().equals("all")){
+                    Util.executeQueries(Arrays.asList(sqlRecommended), log, conTgt);
+                }
+                else {
+                    log.append("Recommended:\n\t")
+                            .append(sqlRecommended)
+                            .append("\n");
+                }
+            } else {
+                throw new RuntimeException("No results found for " + qSelect);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Extracts the rows of one table from the source database to compressed COPY files in dml.stage.dir, see
+ * StageWriter, and records the files in the manifest, so that the rows can be loaded into the target by
+ * the load command without a connection to the source, see TableLoad.
+ */
+public class TableExtract {
+
+    final Config config;
+    final Table table;
+    final String tableName;
+    final String tgtTable;
+    final IProgress progress;
+    final StageManifest manifest;
+
+
+    public TableExtract(Config config, Table table, IProgress progress, StageManifest manifest) {
+
+        this.config = config;
+        this.table = table;
+        this.tableName = table.toString();
+        this.tgtTable = config.getTargetTableName(table);
+        this.progress = progress;
+        this.manifest = manifest;
+    }
+
+
+    public String extract() throws IOException {
+
+        StringBuilder log = new StringBuilder(1024);
+
+        Path dir = StageManifest.getDir(config);
+        String compression = StageManifest.getCompression(config);
+        long chunkBytes = Math.max(config.getDmlInt("stage.chunk_mb", 256), 1) * 1024L * 1024L;
+
+        log.append(String.format("/** extract table %s to %s */\n", tableName, dir.resolve(tgtTable + ".*")));
+
+        TableCopy tableCopy = new TableCopy(config, table, progress);
+
+        StageManifest.TableEntry entry = new StageManifest.TableEntry();
+        entry.target = tgtTable;
+        entry.columns = table.getColumnListTgt(config);
+        entry.compression = compression;
+        entry.status = StageManifest.FAILED;
+
+        long tc = System.currentTimeMillis();
+
+        try (Connection conSrc = config.connect(config.source);
+             Statement statSrc = conSrc.createStatement()) {
+
+            long tp = System.nanoTime();
+
+            try (ResultSet rs = statSrc.executeQuery("SELECT COUNT(*) AS row_count" + "\nFROM " + tableName)) {
+                rs.next();
+                tableCopy.rowCount = rs.getLong("row_count");
+            }
+
+            log.append(String.format(" /* %,d rows */\n", tableCopy.rowCount));
+
+            if (progress != null)
+                tableCopy.counter = progress.getCounter(tableName, tableCopy.rowCount);
+
+            tableCopy.counter.phase("count", System.nanoTime() - tp);
+            tp = System.nanoTime();
+
+            FetchSize fetchSize = new FetchSize(config, table);
+            statSrc.setFetchSize(fetchSize.rows);
+
+            ResultSet rs = statSrc.executeQuery("SELECT " + table.getColumnListSrc(config) + "\nFROM " + tableName);
+
+            int[] columnTypes = tableCopy.getColumnTypes(rs.getMetaData(), log);
+
+            if (columnTypes == null) {
+                log.append(" /* No rows extracted */");
+                rs.close();
+                tableCopy.counter.done();
+                manifest.put(tableName, entry);
+                return log.toString();
+            }
+
+            StageWriter writer = new StageWriter(dir, tgtTable, compression, chunkBytes, columnTypes);
+            writer.counter = tableCopy.counter;
+
+            int batchSize = Math.max(config.getDmlInt("batch_size", 1000), 1);
+            LobValue[] lobs = LobValue.create(table.getCopyColumns(), rs);
+            ColumnCodec[] codecs = ColumnCodec.resolve(rs.getMetaData(), columnTypes, lobs);
+            boolean result = tableCopy.writeRows(rs, fetchSize, codecs, writer, null, new Checkpoint.Range(), batchSize, columnTypes.length, "Extract", null, log);
+
+            writer.close();
+
+            log.append(fetchSize.describe());
+
+            statSrc.cancel();
+            rs.close();
+
+            tableCopy.counter.phase("copy", System.nanoTime() - tp);
+
+            if (result) {
+
+                entry.status = StageManifest.COMPLETED;
+                entry.rows = tableCopy.copied.sum();
+                entry.chunks = writer.chunks;
+
+                long bytes = writer.chunks.stream().mapToLong(chunk -> chunk.bytes).sum();
+                log.append(String.format(" /* %d %s files with %,.1f MB of uncompressed rows */\n", writer.chunks.size(), compression, bytes / 1048576.0));
+            }
+        }
+        catch (SQLException ex) {
+            ex.printStackTrace();
+            log.append("\n/** Error: ").append(ex.toString()).append(" **/\n");
+            tableCopy.counter.error();
+        }
+
+        tableCopy.counter.done();
+
+        manifest.put(tableName, entry);
+
+        tc = System.currentTimeMillis() - tc;
+
+        log.append(String.format(" /* extracted %,d / %,d records in %.3f seconds **/\n", tableCopy.copied.sum(), tableCopy.rowCount, tc / 1000.0));
+
+        return log.toString();
+    }
+}
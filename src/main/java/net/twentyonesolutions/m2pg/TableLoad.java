@@ -0,0 +1,347 @@
+package net.twentyonesolutions.m2pg;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Loads the staged files of one table, which were written by the extract command, into the target table
+ * with COPY FROM STDIN.  Each file is read through a FileChannel and decompressed, and its SHA-256 and the
+ * number of rows that COPY reports are compared with the manifest before the COPY is ended, so a file that
+ * was damaged in transit fails the table instead of loading partial rows.
+ *
+ * With dml.stage.load_threads the files of a table are loaded on up to that many connections, each of
+ * which loads a share of the files in its own transaction.  The TRUNCATE is then committed first, and the
+ * table is truncated again if a share failed, as with the ranges of a split table.  Otherwise the table is
+ * truncated and loaded in a single transaction.
+ */
+public class TableLoad {
+
+    final Config config;
+    final String tableName;
+    final StageManifest.TableEntry source;
+    final Path dir;
+    final IProgress progress;
+    final StageManifest loadManifest;
+    final String sqlCopy;
+
+    IProgress.Counter counter = IProgress.Counter.NONE;
+
+    // runs the shares of the files, or null to run them on a thread pool of the table
+    TaskScheduler scheduler;
+
+
+    /**
+     * @param config
+     * @param tableName - the source table name
+     * @param source - the entry of the table in the manifest of the extract command
+     * @param dir - the directory of the staged files
+     * @param progress
+     * @param loadManifest - the manifest of the load command
+     */
+    public TableLoad(Config config, String tableName, StageManifest.TableEntry source, Path dir, IProgress progress, StageManifest loadManifest) {
+
+        this.config = config;
+        this.tableName = tableName;
+        this.source = source;
+        this.dir = dir;
+        this.progress = progress;
+        this.loadManifest = loadManifest;
+        this.sqlCopy = "COPY " + source.target + " (" + source.columns + ") FROM STDIN WITH (FORMAT text)";
+    }
+
+
+    public String load() throws IOException {
+
+        StringBuilder log = new StringBuilder(1024);
+
+        log.append(String.format("/** load table %s to %s */\n", tableName, source.target));
+
+        if (!StageManifest.COMPLETED.equals(source.status)) {
+
+            log.append(" /* skipped, the extract of the table failed */\n");
+
+            if (progress != null)
+                progress.getCounter(tableName, 0).done();
+
+            return log.toString();
+        }
+
+        log.append(String.format(" /* %,d rows in %d %s files */\n", source.rows, source.chunks.size(), source.compression));
+
+        if (progress != null)
+            counter = progress.getCounter(tableName, source.rows);
+
+        StageManifest.TableEntry entry = new StageManifest.TableEntry();
+        entry.target = source.target;
+        entry.columns = source.columns;
+        entry.compression = source.compression;
+        entry.status = StageManifest.FAILED;
+
+        int threads = Math.min(Math.max(config.getDmlInt("stage.load_threads", 1), 1), source.chunks.size());
+
+        long tc = System.currentTimeMillis();
+
+        try {
+
+            List<List<StageManifest.Chunk>> shares = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+                shares.add(new ArrayList<>());
+
+            for (int i = 0; i < source.chunks.size(); i++)
+                shares.get(i % threads).add(source.chunks.get(i));
+
+            boolean result;
+
+            long tp = System.nanoTime();
+
+            if (threads > 1) {
+
+                // the TRUNCATE must be committed, or else its lock would block the connections that load the files
+                try (Connection conTgt = config.connect(config.target);
+                     Statement statTgt = conTgt.createStatement()) {
+
+                    statTgt.execute("TRUNCATE TABLE " + source.target + ";");
+                }
+
+                log.append(String.format(" /* loading the files on %d connections */\n", threads));
+
+                result = loadShares(shares, entry, log);
+
+                if (!result) {
+                    // the shares were committed separately so we have to remove their rows
+                    try (Connection conTgt = config.connect(config.target);
+                         Statement statTgt = conTgt.createStatement()) {
+
+                        statTgt.execute("TRUNCATE TABLE " + source.target + ";");
+                    }
+                }
+
+                counter.phase("copy", System.nanoTime() - tp);
+            }
+            else {
+
+                try (Connection conTgt = config.connect(config.target);
+                     Statement statTgt = conTgt.createStatement()) {
+
+                    statTgt.execute("BEGIN TRANSACTION;");
+                    statTgt.execute("TRUNCATE TABLE " + source.target + ";");
+
+                    result = loadFiles(conTgt, shares.isEmpty() ? new ArrayList<>() : shares.get(0), entry, log);
+
+                    counter.phase("copy", System.nanoTime() - tp);
+
+                    tp = System.nanoTime();
+                    statTgt.execute(result ? "COMMIT;" : "ROLLBACK;");
+                    counter.phase("commit", System.nanoTime() - tp);
+                }
+            }
+
+            if (result) {
+                entry.status = StageManifest.COMPLETED;
+            }
+            else {
+                log.append("  rolling back transaction **/\n");
+                entry.rows = 0;
+                entry.chunks.clear();
+            }
+        }
+        catch (SQLException ex) {
+            ex.printStackTrace();
+            log.append("\n/** Error: ").append(ex.toString()).append(" **/\n");
+            counter.error();
+        }
+
+        counter.done();
+
+        loadManifest.put(tableName, entry);
+
+        tc = System.currentTimeMillis() - tc;
+
+        log.append(String.format(" /* loaded %,d / %,d records in %.3f seconds **/\n", entry.rows, source.rows, tc / 1000.0));
+
+        return log.toString();
+    }
+
+
+    /**
+     * Loads each share of the files concurrently on its own connection, and commits each share separately
+     *
+     * @return - true if all of the shares were loaded without errors
+     */
+    boolean loadShares(List<List<StageManifest.Chunk>> shares, StageManifest.TableEntry entry, StringBuilder log) {
+
+        ExecutorService executorService = (scheduler == null) ? Executors.newFixedThreadPool(shares.size()) : null;
+
+        List<Future<Boolean>> tasks = new ArrayList<>();
+
+        for (List<StageManifest.Chunk> share : shares) {
+
+            Callable<Boolean> task = () -> {
+
+                StringBuilder shareLog = new StringBuilder();
+                boolean result = false;
+
+                try (Connection conTgt = config.connect(config.target);
+                     Statement statTgt = conTgt.createStatement()) {
+
+                    statTgt.execute("BEGIN TRANSACTION;");
+
+                    result = loadFiles(conTgt, share, entry, shareLog);
+
+                    statTgt.execute(result ? "COMMIT;" : "ROLLBACK;");
+                }
+                catch (SQLException ex) {
+                    ex.printStackTrace();
+                    shareLog.append("\n/** Error: ").append(ex.toString()).append("\n");
+                    counter.error();
+                }
+
+                synchronized (log) {
+                    log.append(shareLog);
+                }
+
+                return result;
+            };
+
+            tasks.add((scheduler != null) ? scheduler.submit(task) : executorService.submit(task));
+        }
+
+        boolean result = true;
+
+        for (Future<Boolean> task : tasks) {
+
+            try {
+                result &= task.get();
+            }
+            catch (InterruptedException | ExecutionException ex) {
+                ex.printStackTrace();
+                result = false;
+            }
+        }
+
+        if (executorService != null)
+            executorService.shutdown();
+
+        return result;
+    }
+
+
+    /**
+     * Loads the files in the current transaction of conTgt, and records them in entry
+     *
+     * @return - true if the files were loaded without errors
+     */
+    boolean loadFiles(Connection conTgt, List<StageManifest.Chunk> chunks, StageManifest.TableEntry entry, StringBuilder log) throws SQLException {
+
+        for (StageManifest.Chunk chunk : chunks) {
+
+            try {
+                StageManifest.Chunk loaded = loadFile(conTgt, chunk);
+
+                synchronized (entry) {
+                    entry.rows += loaded.rows;
+                    entry.chunks.add(loaded);
+                }
+            }
+            catch (SQLException | IOException ex) {
+
+                System.err.println("\n\nLoad Failed. " + ex.toString());
+                counter.error();
+
+                log.append("\n/** Error: Load Failed. ")
+                        .append(ex.toString())
+                        .append("\n\tin file ").append(chunk.file)
+                        .append("\n");
+
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+
+    /**
+     * Sends the decompressed file to COPY FROM STDIN, and ends the COPY if the SHA-256 of the file and the
+     * number of rows match the manifest
+     *
+     * @return - the file as it was loaded, with the number of rows that COPY reported
+     */
+    StageManifest.Chunk loadFile(Connection conTgt, StageManifest.Chunk chunk) throws SQLException, IOException {
+
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IOException(ex);      // every JRE has SHA-256
+        }
+
+        StageManifest.Chunk result = new StageManifest.Chunk();
+        result.file = chunk.file;
+
+        CopyIn copyIn = conTgt.unwrap(PGConnection.class).getCopyAPI().copyIn(sqlCopy);
+
+        try (FileChannel channel = FileChannel.open(dir.resolve(chunk.file), StandardOpenOption.READ);
+             InputStream file = new DigestInputStream(Channels.newInputStream(channel), digest);
+             InputStream in = StageManifest.decompress(source.compression, file)) {
+
+            byte[] buf = new byte[64 * 1024];
+            int n;
+
+            while ((n = in.read(buf)) != -1) {
+                copyIn.writeToCopy(buf, 0, n);
+                result.bytes += n;
+                counter.bytes(n);
+            }
+
+            // the digest must include bytes after the end of the compressed data, if any
+            while (file.read(buf) != -1);
+
+            result.sha256 = StageManifest.toHex(digest.digest());
+
+            if (!result.sha256.equals(chunk.sha256))
+                throw new IOException("SHA-256 of " + chunk.file + " is " + result.sha256 + " instead of " + chunk.sha256 + " in the manifest");
+
+            result.rows = copyIn.endCopy();
+        }
+        finally {
+            if (copyIn.isActive()) {
+                try {
+                    copyIn.cancelCopy();
+                }
+                catch (SQLException ex) {
+                    // the copy is aborted either way, the error is reported by the caller
+                }
+            }
+        }
+
+        if (result.rows != chunk.rows)
+            throw new SQLException(String.format("COPY of %s loaded %,d rows instead of %,d rows in the manifest", chunk.file, result.rows, chunk.rows));
+
+        counter.read(result.rows);
+        counter.add(result.rows);
+
+        return result;
+    }
+}
@@ -0,0 +1,324 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Copies the rows of one table that changed since the previous sync, i.e. the rows whose watermark column
+ * is greater than the watermark that was recorded by the previous run, and upserts them into the target
+ * table with INSERT ... ON CONFLICT.
+ *
+ * The high watermark is read before the rows are copied, and a watermark is recorded only after the rows
+ * were committed.  A transaction that is not committed when the high watermark is read can commit later
+ * with a lower value, so the recorded watermark is kept below the values of such transactions, see
+ * getSafeWatermark(), and the rows above it are upserted again by the next run.  Deleted rows are not
+ * synced.
+ */
+public class TableSync {
+
+    final Config config;
+    final Table table;
+    final String tableName;
+    final String tgtTable;
+    final IProgress progress;
+    final SyncState syncState;
+
+
+    public TableSync(Config config, Table table, IProgress progress, SyncState syncState) {
+
+        this.config = config;
+        this.table = table;
+        this.tableName = table.toString();
+        this.tgtTable = config.getTargetTableName(table);
+        this.progress = progress;
+        this.syncState = syncState;
+    }
+
+
+    public String sync() throws IOException {
+
+        StringBuilder log = new StringBuilder(1024);
+
+        log.append(String.format("/** sync table %s to %s */\n", tableName, tgtTable));
+
+        Column watermarkColumn = getWatermarkColumn();
+        List<Column> keyColumns = getKeyColumns();
+
+        if (watermarkColumn == null || keyColumns.isEmpty()) {
+
+            log.append(watermarkColumn == null
+                    ? " /* skipped, the table has no watermark column, see dml.sync.watermark_columns */\n"
+                    : " /* skipped, the table has no key columns for ON CONFLICT, see dml.sync.key_columns */\n");
+
+            if (progress != null)
+                progress.getCounter(tableName, 0).done();
+
+            return log.toString();
+        }
+
+        TableCopy tableCopy = new TableCopy(config, table, progress);
+
+        String colName = table.getColumnNameSrc(config, watermarkColumn);
+        Object lowWatermark = syncState.getWatermark(tableName);
+        Object highWatermark;
+        Object safeWatermark;
+
+        String where = (lowWatermark != null ? colName + " > ? AND " : "") + colName + " <= ?";
+
+        long tc = System.currentTimeMillis();
+
+        try (Connection conSrc = config.connect(config.source);
+             Connection conTgt = config.connect(config.target);
+             Statement statTgt = conTgt.createStatement()) {
+
+            long tp = System.nanoTime();
+
+            try (Statement statSrc = conSrc.createStatement();
+                 ResultSet rs = statSrc.executeQuery("SELECT MAX(" + colName + ") AS high_value\nFROM " + tableName)) {
+
+                rs.next();
+                highWatermark = rs.getObject("high_value");
+            }
+
+            if (highWatermark == null) {
+
+                log.append(" /* 0 rows */\n");
+
+                if (progress != null)
+                    progress.getCounter(tableName, 0).done();
+
+                return log.toString();
+            }
+
+            // read before the rows, so that the transactions that are open at this time are below it
+            safeWatermark = getSafeWatermark(conSrc, colName, lowWatermark, highWatermark);
+
+            try (PreparedStatement statSrc = conSrc.prepareStatement("SELECT COUNT(*) AS row_count\nFROM " + tableName + "\nWHERE " + where)) {
+
+                setWatermarks(statSrc, lowWatermark, highWatermark);
+
+                try (ResultSet rs = statSrc.executeQuery()) {
+                    rs.next();
+                    tableCopy.rowCount = rs.getLong("row_count");
+                }
+            }
+
+            if (progress != null)
+                tableCopy.counter = progress.getCounter(tableName, tableCopy.rowCount);
+
+            tableCopy.counter.phase("count", System.nanoTime() - tp);
+            tp = System.nanoTime();
+
+            log.append(String.format(" /* %,d rows changed since watermark %s */\n"
+                    , tableCopy.rowCount
+                    , lowWatermark != null ? SyncState.Watermark.of(lowWatermark) : "(none)"));
+
+            boolean result;
+
+            try (PreparedStatement statSrc = conSrc.prepareStatement("SELECT " + table.getColumnListSrc(config) + "\nFROM " + tableName + "\nWHERE " + where)) {
+
+                FetchSize fetchSize = new FetchSize(config, table);
+                statSrc.setFetchSize(fetchSize.rows);
+                setWatermarks(statSrc, lowWatermark, highWatermark);
+
+                try (ResultSet rs = statSrc.executeQuery()) {
+
+                    int[] columnTypes = tableCopy.getColumnTypes(rs.getMetaData(), log);
+
+                    if (columnTypes == null) {
+                        log.append(" /* No rows synced */");
+                        tableCopy.counter.done();
+                        return log.toString();
+                    }
+
+                    RowWriter writer = new InsertWriter(conTgt.prepareStatement(getUpsertSql(keyColumns)), columnTypes);
+
+                    statTgt.execute("BEGIN TRANSACTION;");
+
+                    int batchSize = Math.max(config.getDmlInt("batch_size", 1000), 1);
+                    LobValue[] lobs = LobValue.create(table.getCopyColumns(), rs);
+                    ColumnCodec[] codecs = ColumnCodec.resolve(rs.getMetaData(), columnTypes, lobs);
+                    result = tableCopy.writeRows(rs, fetchSize, codecs, writer, conTgt, new Checkpoint.Range(), batchSize, columnTypes.length, "Upsert", where, log);
+
+                    writer.close();
+
+                    log.append(fetchSize.describe());
+
+                    statSrc.cancel();
+                }
+            }
+
+            tableCopy.counter.phase("copy", System.nanoTime() - tp);
+
+            if (result) {
+
+                tp = System.nanoTime();
+                statTgt.execute("COMMIT;");
+                tableCopy.counter.phase("commit", System.nanoTime() - tp);
+
+                if (safeWatermark != null) {
+                    syncState.setWatermark(tableName, safeWatermark);
+                    log.append(String.format(" /* new watermark %s, the rows up to %s are synced again by the next run */\n"
+                            , SyncState.Watermark.of(safeWatermark), SyncState.Watermark.of(highWatermark)));
+                }
+                else {
+                    log.append(" /* the watermark was not changed, the rows are synced again by the next run */\n");
+                }
+            }
+            else {
+
+                statTgt.execute("ROLLBACK;");
+                log.append("  rolling back transaction, the watermark was not changed **/\n");
+            }
+        }
+        catch (SQLException ex) {
+            ex.printStackTrace();
+            log.append("\n/** Error: ").append(ex.toString()).append(" **/\n");
+            tableCopy.counter.error();
+        }
+
+        tableCopy.counter.done();
+
+        tc = System.currentTimeMillis() - tc;
+
+        log.append(String.format(" /* upserted %,d / %,d records in %.3f seconds **/\n", tableCopy.copied.sum(), tableCopy.rowCount, tc / 1000.0));
+
+        return log.toString();
+    }
+
+
+    static void setWatermarks(PreparedStatement stat, Object lowWatermark, Object highWatermark) throws SQLException {
+
+        int ix = 1;
+
+        if (lowWatermark != null)
+            stat.setObject(ix++, lowWatermark);
+
+        stat.setObject(ix, highWatermark);
+    }
+
+
+    /**
+     * Returns the watermark that is recorded after the rows up to highWatermark were committed.  A row of a
+     * transaction that was open when MAX() was read can commit later with a lower value than highWatermark,
+     * so for a SQL Server rowversion the result is the highest value below MIN_ACTIVE_ROWVERSION(), and for
+     * timestamp and integer columns it is highWatermark minus dml.sync.watermark_lag seconds or values.
+     * Other watermark columns are recorded as is.
+     *
+     * @return - the watermark to record, or null to keep lowWatermark
+     */
+    Object getSafeWatermark(Connection conSrc, String colName, Object lowWatermark, Object highWatermark) throws SQLException {
+
+        if (highWatermark instanceof byte[]) {
+
+            if (!conSrc.getMetaData().getDatabaseProductName().contains("SQL Server"))
+                return highWatermark;
+
+            try (Statement statSrc = conSrc.createStatement();
+                 ResultSet rs = statSrc.executeQuery("SELECT MAX(" + colName + ") AS safe_value\nFROM " + tableName + "\nWHERE " + colName + " < MIN_ACTIVE_ROWVERSION()")) {
+
+                rs.next();
+                return rs.getObject("safe_value");
+            }
+        }
+
+        long lag = Math.max(config.getDmlInt("sync.watermark_lag", 60), 0);
+
+        if (highWatermark instanceof Number) {
+
+            long result = ((Number) highWatermark).longValue() - lag;
+
+            return (lowWatermark instanceof Long && result < (Long) lowWatermark) ? null : result;
+        }
+
+        if (highWatermark instanceof Timestamp) {
+
+            Timestamp result = new Timestamp(((Timestamp) highWatermark).getTime() - lag * 1000);
+            result.setNanos(((Timestamp) highWatermark).getNanos());
+
+            return (lowWatermark instanceof Timestamp && result.before((Timestamp) lowWatermark)) ? null : result;
+        }
+
+        return highWatermark;
+    }
+
+
+    /**
+     * Returns an INSERT statement for all of the columns that updates the non-key columns of existing rows
+     */
+    String getUpsertSql(List<Column> keyColumns) {
+
+        List<String> updates = new ArrayList<>();
+
+        for (Column col : table.columns) {
+
+            if (keyColumns.contains(col))
+                continue;
+
+            String tgtName = config.getTargetColumnName(col.name);
+            updates.add(tgtName + " = EXCLUDED." + tgtName);
+        }
+
+        String conflictTarget = keyColumns.stream()
+                .map(col -> config.getTargetColumnName(col.name))
+                .collect(Collectors.joining(", "));
+
+        return "INSERT INTO " + tgtTable + " (" + table.getColumnListTgt(config) + ")"
+                + "\nVALUES(" + String.join(", ", Collections.nCopies(table.columns.size(), "?")) + ")"
+                + "\nON CONFLICT (" + conflictTarget + ")"
+                + (updates.isEmpty() ? " DO NOTHING" : " DO UPDATE SET\n\t" + String.join("\n\t,", updates));
+    }
+
+
+    /**
+     * Returns the column in dml.sync.watermark_columns, or the identity column if it is not set
+     */
+    Column getWatermarkColumn() {
+
+        Map<String, String> watermarkColumns = (Map<String, String>) config.dml.get("sync.watermark_columns");
+
+        if (watermarkColumns.containsKey(tableName))
+            return table.getColumn(watermarkColumns.get(tableName));
+
+        return table.getIdentity();
+    }
+
+
+    /**
+     * Returns the columns in dml.sync.key_columns, separated by commas, or the identity column if it is not
+     * set.  The target table must have a unique constraint on these columns.
+     */
+    List<Column> getKeyColumns() {
+
+        List<Column> result = new ArrayList<>();
+
+        Map<String, String> keyColumns = (Map<String, String>) config.dml.get("sync.key_columns");
+
+        if (keyColumns.containsKey(tableName)) {
+
+            for (String name : keyColumns.get(tableName).split(",")) {
+
+                Column col = table.getColumn(name.trim());
+                if (col == null)
+                    return Collections.emptyList();
+
+                result.add(col);
+            }
+        }
+        else if (table.hasIdentity()) {
+            result.add(table.getIdentity());
+        }
+
+        return result;
+    }
+}
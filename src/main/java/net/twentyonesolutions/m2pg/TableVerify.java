@@ -0,0 +1,506 @@
+package net.twentyonesolutions.m2pg;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Verifies that the rows of one table in the target match the rows in the source.  The table is split into
+ * ranges of dml.verify.range_size values of its integer key column, see TableCopy.getKeyColumn(), and the
+ * rows of each range are read from the source and from the target concurrently, each on its own connection
+ * of the TaskScheduler.  Each side computes a RangeHash of the rows of the range, i.e. the number of rows and
+ * the sums of the MD5 of each row, which does not depend on the order of the rows, so the queries do not
+ * sort.  A table without a key column is verified as a single range.
+ *
+ * The values are normalized before they are hashed, so that the values of the source driver and of pgjdbc
+ * hash the same, e.g. integers of any width, BigDecimal without trailing zeros, timestamps in microseconds,
+ * and uniqueidentifier and uuid as upper case text.  A column that dml.jdbc_type_mapping maps to a type with
+ * a different text, e.g. a number to text, is reported as a mismatch.  LOB columns are hashed as streams.
+ *
+ * With dml.verify.sample_percent only that percent of the ranges is verified, chosen at random with
+ * dml.verify.seed, so that a multi-TB table can be checked in minutes.
+ */
+public class TableVerify {
+
+    // the range size is raised for tables with a wider span of keys, so that the ranges fit in memory
+    static final long MAX_RANGES = 100_000;
+
+    final Config config;
+    final Table table;
+    final String tableName;
+    final String tgtTable;
+    final IProgress progress;
+    final TaskScheduler scheduler;
+    final List<Column> columns;
+
+    IProgress.Counter counter = IProgress.Counter.NONE;
+
+    int rangesVerified = 0;
+    int mismatches = 0;
+    int errors = 0;
+
+
+    public TableVerify(Config config, Table table, IProgress progress, TaskScheduler scheduler) {
+
+        this.config = config;
+        this.table = table;
+        this.tableName = table.toString();
+        this.tgtTable = config.getTargetTableName(table);
+        this.progress = progress;
+        this.scheduler = scheduler;
+        this.columns = table.getCopyColumns();
+    }
+
+
+    /**
+     * A range of the key column, with the predicates of the source and of the target, or null predicates for
+     * all of the rows
+     */
+    static class Range {
+
+        final String whereSrc;
+        final String whereTgt;
+
+        Range(String whereSrc, String whereTgt) {
+            this.whereSrc = whereSrc;
+            this.whereTgt = whereTgt;
+        }
+    }
+
+
+    /**
+     * The hash of a set of rows, which is the same for the same rows in any order
+     */
+    static class RangeHash {
+
+        long rows = 0;
+        long sumHigh = 0;
+        long sumLow = 0;
+
+        void add(byte[] digest) {
+
+            long high = 0, low = 0;
+            for (int i = 0; i < 8; i++) {
+                high = (high << 8) | (digest[i] & 0xff);
+                low = (low << 8) | (digest[i + 8] & 0xff);
+            }
+
+            rows++;
+            sumHigh += high;
+            sumLow += low;
+        }
+
+        boolean matches(RangeHash other) {
+            return rows == other.rows && sumHigh == other.sumHigh && sumLow == other.sumLow;
+        }
+    }
+
+
+    public String verify() throws IOException {
+
+        StringBuilder log = new StringBuilder(1024);
+
+        log.append(String.format("/** verify table %s against %s */\n", tgtTable, tableName));
+
+        long tc = System.currentTimeMillis();
+
+        try {
+
+            List<Range> ranges = getRanges(log);
+            List<Range> selected = sample(ranges, log);
+
+            if (progress != null) {
+                long estimatedRows = (table.estimatedRows > 0) ? table.estimatedRows * selected.size() / ranges.size() : 0;
+                counter = progress.getCounter(tableName, estimatedRows);
+            }
+
+            // at most as many ranges as connections are in progress, so that the other ranges do not wait on threads
+            int window = Math.max(scheduler.sourceConcurrency, scheduler.targetConcurrency);
+            Deque<Object[]> pending = new ArrayDeque<>();
+
+            for (Range range : selected) {
+
+                Future<RangeHash> src = scheduler.submit(() -> hash(config.source, table.toString(), table.getColumnListSrc(config), range.whereSrc, true));
+                Future<RangeHash> tgt = scheduler.submit(() -> hash(config.target, tgtTable, table.getColumnListTgt(config), range.whereTgt, false));
+
+                pending.add(new Object[]{ range, src, tgt });
+
+                if (pending.size() >= window)
+                    compare(pending.poll(), log);
+            }
+
+            while (!pending.isEmpty())
+                compare(pending.poll(), log);
+        }
+        catch (SQLException ex) {
+            ex.printStackTrace();
+            log.append("\n/** Error: ").append(ex.toString()).append(" **/\n");
+            counter.error();
+            errors++;
+        }
+
+        counter.done();
+
+        tc = System.currentTimeMillis() - tc;
+
+        String result = (errors > 0) ? String.format("%d ranges failed", errors)
+                : (mismatches > 0) ? String.format("%d ranges do not match", mismatches)
+                : "all ranges match";
+
+        log.append(String.format(" /* verified %,d ranges in %.3f seconds, %s **/\n", rangesVerified, tc / 1000.0, result));
+
+        return log.toString();
+    }
+
+
+    void compare(Object[] pending, StringBuilder log) {
+
+        Range range = (Range) pending[0];
+
+        try {
+            RangeHash src = ((Future<RangeHash>) pending[1]).get();
+            RangeHash tgt = ((Future<RangeHash>) pending[2]).get();
+
+            rangesVerified++;
+
+            if (!src.matches(tgt)) {
+
+                mismatches++;
+
+                log.append(String.format(" /* mismatch in %s: %,d rows in the source, %,d rows in the target%s */\n"
+                        , range.whereSrc != null ? "range " + range.whereSrc : "the table"
+                        , src.rows
+                        , tgt.rows
+                        , src.rows == tgt.rows ? " with different values" : ""));
+            }
+        }
+        catch (InterruptedException | ExecutionException ex) {
+
+            Throwable cause = (ex.getCause() != null) ? ex.getCause() : ex;
+
+            System.err.println("\n\nVerify Failed. " + cause.toString());
+            counter.error();
+            errors++;
+
+            log.append("\n/** Error: Verify Failed. ")
+                    .append(cause.toString())
+                    .append(range.whereSrc != null ? "\n\tin range " + range.whereSrc : "")
+                    .append("\n");
+        }
+    }
+
+
+    /**
+     * Returns the ranges of dml.verify.range_size values of the key column from its MIN to its MAX in the
+     * source, or a single range for all of the rows if the table does not have an integer key column.  As
+     * with the ranges of a split table, the first range includes NULL values and values below the MIN, and
+     * the last range includes values above the MAX.
+     */
+    List<Range> getRanges(StringBuilder log) throws SQLException {
+
+        Column keyColumn = new TableCopy(config, table, progress).getKeyColumn();
+
+        if (keyColumn == null) {
+            log.append(" /* the table has no integer key column, verifying it as a single range */\n");
+            return Collections.singletonList(new Range(null, null));
+        }
+
+        long rangeSize = Math.max(config.getDmlInt("verify.range_size", 1_000_000), 1);
+
+        String colSrc = table.getColumnNameSrc(config, keyColumn);
+        String colTgt = config.getTargetColumnName(keyColumn.name);
+
+        long min, max;
+
+        try (Connection conSrc = config.connect(config.source);
+             Statement statSrc = conSrc.createStatement();
+             ResultSet rs = statSrc.executeQuery("SELECT MIN(" + colSrc + ") AS min_value, MAX(" + colSrc + ") AS max_value" + "\nFROM " + tableName)) {
+
+            rs.next();
+            min = rs.getLong("min_value");
+            max = rs.getLong("max_value");
+        }
+
+        try {
+            rangeSize = Math.max(rangeSize, Math.subtractExact(max, min) / MAX_RANGES + 1);
+        }
+        catch (ArithmeticException ex) {
+            log.append(" /* the span of the key column is too wide for ranges, verifying the table as a single range */\n");
+            return Collections.singletonList(new Range(null, null));
+        }
+
+        // the boundaries between the ranges
+        List<Long> bounds = new ArrayList<>();
+        for (long bound = min + rangeSize; bound <= max && bound > min; bound += rangeSize)
+            bounds.add(bound);
+
+        if (bounds.isEmpty())
+            return Collections.singletonList(new Range(null, null));
+
+        List<Range> result = new ArrayList<>();
+
+        result.add(new Range(
+                 "(" + colSrc + " < " + bounds.get(0) + " OR " + colSrc + " IS NULL)"
+                ,"(" + colTgt + " < " + bounds.get(0) + " OR " + colTgt + " IS NULL)"));
+
+        for (int i = 1; i < bounds.size(); i++)
+            result.add(new Range(
+                     colSrc + " >= " + bounds.get(i - 1) + " AND " + colSrc + " < " + bounds.get(i)
+                    ,colTgt + " >= " + bounds.get(i - 1) + " AND " + colTgt + " < " + bounds.get(i)));
+
+        result.add(new Range(
+                 colSrc + " >= " + bounds.get(bounds.size() - 1)
+                ,colTgt + " >= " + bounds.get(bounds.size() - 1)));
+
+        log.append(String.format(" /* %,d ranges of %,d values of %s from %,d to %,d */\n", result.size(), rangeSize, keyColumn.name, min, max));
+
+        return result;
+    }
+
+
+    /**
+     * Returns dml.verify.sample_percent of the ranges, at least one, or all of the ranges if it is not set
+     */
+    List<Range> sample(List<Range> ranges, StringBuilder log) {
+
+        int percent = config.getDmlInt("verify.sample_percent", 0);
+
+        if (percent <= 0 || percent >= 100 || ranges.size() == 1)
+            return ranges;
+
+        long seed = config.getDmlInt("verify.seed", 0);
+        if (seed == 0)
+            seed = System.nanoTime() & Integer.MAX_VALUE;
+
+        int count = (int) Math.max(Math.ceil(ranges.size() * percent / 100.0), 1);
+
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < ranges.size(); i++)
+            indexes.add(i);
+
+        Collections.shuffle(indexes, new Random(seed));
+        indexes = new ArrayList<>(indexes.subList(0, count));
+        Collections.sort(indexes);
+
+        List<Range> result = new ArrayList<>();
+        for (int i : indexes)
+            result.add(ranges.get(i));
+
+        log.append(String.format(" /* sampling %,d of %,d ranges with seed %d */\n", count, ranges.size(), seed));
+
+        return result;
+    }
+
+
+    /**
+     * Reads the rows of the range and returns their hash
+     *
+     * @param connectionName - the source or the target connection
+     * @param from - the table name of the connection
+     * @param columnList - the column list of the connection, in the order of Table.getCopyColumns()
+     * @param where - the predicate of the range, or null for all of the rows
+     * @param isSource - true to count the rows in the progress
+     */
+    RangeHash hash(String connectionName, String from, String columnList, String where, boolean isSource) throws SQLException, IOException {
+
+        MessageDigest rowDigest = newMd5();
+        MessageDigest lobDigest = newMd5();
+
+        String qSelect = "SELECT " + columnList + "\nFROM " + from;
+        if (where != null)
+            qSelect += "\nWHERE " + where;
+
+        RangeHash result = new RangeHash();
+
+        try (Connection conn = config.connect(connectionName)) {
+
+            // pgjdbc reads the rows with a cursor only outside of autocommit, the pool restores autocommit
+            if (!isSource)
+                conn.setAutoCommit(false);
+
+            FetchSize fetchSize = new FetchSize(config, table);
+
+            try (Statement stat = conn.createStatement()) {
+
+                stat.setFetchSize(fetchSize.rows);
+
+                try (ResultSet rs = stat.executeQuery(qSelect)) {
+
+                    ResultSetMetaData rsMetaData = rs.getMetaData();
+                    int columnCount = rsMetaData.getColumnCount();
+
+                    ColumnCodec.Reader[] readers = new ColumnCodec.Reader[columnCount];
+                    for (int i = 1; i <= columnCount; i++)
+                        readers[i - 1] = ColumnCodec.getReader(rsMetaData.getColumnType(i), rsMetaData.getColumnTypeName(i));
+
+                    while (rs.next()) {
+
+                        for (int i = 1; i <= columnCount; i++) {
+
+                            if (columns.get(i - 1).isLob())
+                                updateLob(rowDigest, lobDigest, rs, i, columns.get(i - 1).isBinaryLob());
+                            else
+                                update(rowDigest, readers[i - 1].read(rs, i));
+                        }
+
+                        result.add(rowDigest.digest());
+
+                        if (isSource && result.rows % 1000 == 0)
+                            counter.add(1000);
+                    }
+                }
+            }
+        }
+
+        if (isSource)
+            counter.add(result.rows % 1000);
+
+        return result;
+    }
+
+
+    static MessageDigest newMd5() {
+
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);    // every JRE has MD5
+        }
+    }
+
+
+    /**
+     * Adds the normalized value to the digest, with a marker for NULL and the length of other values so that
+     * the boundaries between the values are part of the hash
+     */
+    static void update(MessageDigest digest, Object value) {
+
+        if (value == null) {
+            digest.update((byte) 0);
+            return;
+        }
+
+        byte[] bytes = (value instanceof byte[])
+                ? (byte[]) value
+                : normalize(value).getBytes(StandardCharsets.UTF_8);
+
+        digest.update((byte) 1);
+        digest.update(new byte[]{ (byte) (bytes.length >>> 24), (byte) (bytes.length >>> 16), (byte) (bytes.length >>> 8), (byte) bytes.length });
+        digest.update(bytes);
+    }
+
+
+    /**
+     * Returns the text of the value that is the same for the types of the source and of the target
+     */
+    static String normalize(Object value) {
+
+        if (value instanceof Boolean)
+            return ((Boolean) value) ? "t" : "f";
+
+        if (value instanceof Byte || value instanceof Short || value instanceof Integer || value instanceof Long || value instanceof BigInteger)
+            return value.toString();
+
+        if (value instanceof BigDecimal)
+            return ((BigDecimal) value).stripTrailingZeros().toPlainString();
+
+        if (value instanceof Float || value instanceof Double)
+            return Double.toString(((Number) value).doubleValue());
+
+        if (value instanceof Timestamp) {
+
+            // Postgres keeps microseconds, e.g. of a datetime2(7) value
+            Timestamp ts = (Timestamp) value;
+            long micros = Math.floorDiv(ts.getTime(), 1000) * 1_000_000 + Math.round(ts.getNanos() / 1000.0);
+
+            return Long.toString(micros);
+        }
+
+        if (value instanceof UUID)
+            return value.toString().toUpperCase();
+
+        return value.toString();
+    }
+
+
+    /**
+     * Adds the MD5 of the streamed value to the digest, so that the hash does not depend on the size of the
+     * reads of the stream
+     */
+    static void updateLob(MessageDigest digest, MessageDigest lobDigest, ResultSet rs, int i, boolean isBinary) throws SQLException, IOException {
+
+        lobDigest.reset();
+
+        OutputStream out = new DigestOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {}
+
+            @Override
+            public void write(byte[] b, int off, int len) {}
+        }, lobDigest);
+
+        byte[] bytes = new byte[LobValue.CHUNK_SIZE];
+        char[] chars = new char[LobValue.CHUNK_SIZE];
+        int n;
+
+        if (isBinary) {
+
+            try (InputStream in = rs.getBinaryStream(i)) {
+
+                if (in == null) {
+                    digest.update((byte) 0);
+                    return;
+                }
+
+                while ((n = in.read(bytes)) != -1)
+                    out.write(bytes, 0, n);
+            }
+        }
+        else {
+
+            try (Reader in = rs.getCharacterStream(i)) {
+
+                if (in == null) {
+                    digest.update((byte) 0);
+                    return;
+                }
+
+                // the writer keeps a high surrogate at the end of a read for its low surrogate
+                Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+
+                while ((n = in.read(chars)) != -1)
+                    writer.write(chars, 0, n);
+
+                writer.flush();
+            }
+        }
+
+        digest.update((byte) 2);
+        digest.update(lobDigest.digest());
+    }
+}
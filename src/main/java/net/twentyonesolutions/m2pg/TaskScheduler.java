@@ -0,0 +1,189 @@
+package net.twentyonesolutions.m2pg;
+
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the table tasks of the dml and sync commands, and the range tasks of split tables, each on its own
+ * thread, and limits the connections instead of the threads: the tasks wait for a connection to the source
+ * while dml.source_concurrency source connections are in use, and for a connection to the target while
+ * dml.target_concurrency target connections are in use, see ConnectionPool.setConcurrency().  Both default
+ * to dml.threads.  With dml.threads adaptive they are the upper bounds of the limits, which are resized
+ * during the run by AdaptiveConcurrency.
+ *
+ * The tasks run on virtual threads on JDK 21 and later, which are created with reflection since the tool
+ * is built for Java 8, and on platform threads otherwise.  The JDBC drivers block in synchronized methods,
+ * which pin a virtual thread to its carrier thread until JDK 24, so the parallelism of the virtual thread
+ * scheduler is raised to the number of connections unless jdk.virtualThreadScheduler.parallelism is set.
+ *
+ * With platform threads the table tasks run on a fixed pool with as many threads as the larger limit, so
+ * that thousands of tables do not start thousands of blocked threads, and the tables start in the order
+ * that they were submitted, i.e. largest first.  The tasks that a table task submits, e.g. its ranges, run
+ * on a separate pool, since the table task holds its thread while it waits for them.
+ *
+ * A task takes a source connection before a target connection, and a table task does not hold a connection
+ * while it waits for its range tasks, so the tasks can not deadlock on the limits.
+ */
+public class TaskScheduler implements AutoCloseable {
+
+    static final String PARALLELISM_PROPERTY = "jdk.virtualThreadScheduler.parallelism";
+
+    final int sourceConcurrency;
+    final int targetConcurrency;
+    final boolean isVirtual;
+    final boolean isAdaptive;
+    final ExecutorService executorService;
+    final ExecutorService nestedService;    // the tasks that are submitted by the tasks of executorService
+    final Config config;
+    AdaptiveConcurrency adaptive;
+
+
+    public TaskScheduler(Config config) {
+
+        this.config = config;
+
+        int threads = PgMigrator.getNumThreads(config);
+
+        this.sourceConcurrency = Math.max(config.getDmlInt("source_concurrency", threads), 1);
+        this.targetConcurrency = Math.max(config.getDmlInt("target_concurrency", threads), 1);
+
+        if (config.source.equalsIgnoreCase(config.target)){
+            // a task takes two connections of the same pool, which could deadlock with a limit on the pool
+            System.err.println("Warning: the source and the target are the same connection, dml.source_concurrency and dml.target_concurrency are ignored");
+            if (PgMigrator.isAdaptive(config))
+                System.err.println("Warning: the source and the target are the same connection, dml.threads adaptive is ignored");
+
+            this.isAdaptive = false;
+        }
+        else {
+            config.getPool(config.source).setConcurrency(sourceConcurrency);
+            config.getPool(config.target).setConcurrency(targetConcurrency);
+
+            this.isAdaptive = PgMigrator.isAdaptive(config);
+        }
+
+        ExecutorService virtual = (boolean) config.dml.getOrDefault("virtual_threads", true)
+                ? newVirtualThreadExecutor(sourceConcurrency + targetConcurrency)
+                : null;
+
+        this.isVirtual = (virtual != null);
+
+        if (isVirtual) {
+            this.executorService = virtual;
+            this.nestedService = virtual;
+        }
+        else {
+            this.executorService = Executors.newFixedThreadPool(Math.max(sourceConcurrency, targetConcurrency), new PlatformThreadFactory("m2pg-task-", true));
+            this.nestedService = Executors.newCachedThreadPool(new PlatformThreadFactory("m2pg-subtask-", false));
+        }
+    }
+
+
+    /**
+     * Returns Executors.newVirtualThreadPerTaskExecutor(), or null if the JDK does not have virtual threads
+     *
+     * @param parallelism - the parallelism of the virtual thread scheduler if it was not set
+     */
+    static ExecutorService newVirtualThreadExecutor(int parallelism){
+
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+
+            // read when the first virtual thread is created
+            if (System.getProperty(PARALLELISM_PROPERTY) == null)
+                System.setProperty(PARALLELISM_PROPERTY, String.valueOf(Math.max(parallelism, Runtime.getRuntime().availableProcessors())));
+
+            return (ExecutorService) method.invoke(null);
+        }
+        catch (ReflectiveOperationException ex) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Starts to resize the limits with dml.threads adaptive, until close()
+     *
+     * @param progress - the counters of the run
+     * @param logPath - the log file of the run
+     */
+    public void startAdaptive(ProgressReporter progress, Path logPath){
+
+        if (isAdaptive && adaptive == null)
+            adaptive = new AdaptiveConcurrency(config, this, progress, logPath);
+    }
+
+
+    public <T> Future<T> submit(Callable<T> task){
+        return getExecutor().submit(task);
+    }
+
+
+    public void execute(Runnable task){
+        getExecutor().execute(task);
+    }
+
+
+    /**
+     * Returns the executor of the tasks that are submitted on the current thread, which is the nested pool
+     * if the current thread runs a task of the fixed pool
+     */
+    ExecutorService getExecutor(){
+        return PlatformThreadFactory.isPoolThread.get() ? nestedService : executorService;
+    }
+
+
+    /**
+     * Returns a description of the limits for the log
+     */
+    public String describe(){
+        return String.format("%s threads with %s%d source and %d target connections"
+                , isVirtual ? "virtual" : "platform", isAdaptive ? "adaptive limits of up to " : "", sourceConcurrency, targetConcurrency);
+    }
+
+
+    /**
+     * Stops the resizing of the limits, and shuts down the executor after the submitted tasks
+     */
+    @Override
+    public void close() {
+
+        if (adaptive != null)
+            adaptive.close();
+
+        executorService.shutdown();
+        nestedService.shutdown();
+    }
+
+
+    static class PlatformThreadFactory implements ThreadFactory {
+
+        // true on the threads of the fixed pool of the table tasks
+        static final ThreadLocal<Boolean> isPoolThread = ThreadLocal.withInitial(() -> false);
+
+        final AtomicInteger count = new AtomicInteger();
+        final String prefix;
+        final boolean isPool;
+
+        PlatformThreadFactory(String prefix, boolean isPool) {
+            this.prefix = prefix;
+            this.isPool = isPool;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+
+            Runnable runnable = isPool ? () -> { isPoolThread.set(true); r.run(); } : r;
+
+            Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,584 @@
+package net.twentyonesolutions.m2pg;
+
+import com.google.gson.GsonBuilder;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static java.time.format.DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+
+/**
+ * Measures the throughput of the dml command for a config without a production database.
+ *
+ * The benchmark generates synthetic tables in benchmark.source_schema of the source connection, which
+ * must be a Postgres database that stands in for the source server.  Each column is created with a
+ * Postgres type that holds the values of a SQL Server type, e.g. timestamp(3) for datetime, and the SQL
+ * Server type is stored in the comment of the column.  The information schema query returns the comment
+ * as DATA_TYPE, so the type mappings of the config, e.g. of the ms-sql-server template, are applied as in
+ * a real migration.
+ *
+ * The tables are then created in benchmark.target_schema of the target connection, which is dropped
+ * first, and are copied with PgMigrator.doDml().  The report with rows/s, MB/s, peak heap, and GC time of
+ * each table is written to [output-file].json.  The peak heap and GC time are sampled while the table is
+ * copied, so with dml.threads greater than 1 they include the work of the tables that are copied at the
+ * same time.
+ */
+public class ThroughputBenchmark {
+
+    static final long SAMPLE_MILLIS = 20;
+
+    /**
+     * The SQL Server types that can be generated: the Postgres type of the source column, the expression
+     * that generates the value of row g, and the default length.  {L} is replaced with the length, {R} with
+     * the number of 32 character md5 strings, and {B} with the number of 16 byte md5 digests that are needed
+     * for the length.
+     */
+    static final Map<String, String[]> TYPES = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+    static {
+        TYPES.put("bigint",           new String[]{ "bigint",           "g * 7919", "0" });
+        TYPES.put("int",              new String[]{ "integer",          "(g % 2000000000)::integer", "0" });
+        TYPES.put("smallint",         new String[]{ "smallint",         "(g % 32000)::smallint", "0" });
+        TYPES.put("tinyint",          new String[]{ "smallint",         "(g % 256)::smallint", "0" });
+        TYPES.put("bit",              new String[]{ "boolean",          "g % 3 = 0", "0" });
+        TYPES.put("decimal",          new String[]{ "numeric(18,4)",    "round((g * 1.618033) % 100000000, 4)", "0" });
+        TYPES.put("numeric",          new String[]{ "numeric(18,4)",    "round((g * 1.618033) % 100000000, 4)", "0" });
+        TYPES.put("money",            new String[]{ "numeric(19,4)",    "round((g % 1000000) * 0.0123, 4)", "0" });
+        TYPES.put("float",            new String[]{ "double precision", "g * 0.1234567", "0" });
+        TYPES.put("real",             new String[]{ "real",             "(g % 100000) * 0.5", "0" });
+        TYPES.put("datetime",         new String[]{ "timestamp(3)",     "timestamp '2000-01-01' + g * interval '1.234 second'", "0" });
+        TYPES.put("smalldatetime",    new String[]{ "timestamp(0)",     "timestamp '2000-01-01' + g * interval '1 minute'", "0" });
+        TYPES.put("date",             new String[]{ "date",             "date '2000-01-01' + (g % 20000)::integer", "0" });
+        TYPES.put("char",             new String[]{ "char({L})",        "left(repeat(md5(g::text), {R}), {L})", "10" });
+        TYPES.put("nchar",            new String[]{ "char({L})",        "left(repeat(md5(g::text), {R}), {L})", "10" });
+        TYPES.put("varchar",          new String[]{ "varchar({L})",     "left(repeat(md5(g::text), {R}), 1 + (g % {L})::integer)", "50" });
+        TYPES.put("nvarchar",         new String[]{ "varchar({L})",     "left(repeat(md5(g::text), {R}), 1 + (g % {L})::integer)", "50" });
+        TYPES.put("text",             new String[]{ "text",             "left(repeat(md5(g::text), {R}), 1 + (g % {L})::integer)", "1000" });
+        TYPES.put("ntext",            new String[]{ "text",             "left(repeat(md5(g::text), {R}), 1 + (g % {L})::integer)", "1000" });
+        TYPES.put("uniqueidentifier", new String[]{ "char(36)",         "md5(g::text)::uuid::text", "0" });
+        TYPES.put("varbinary",        new String[]{ "bytea",            "substring(decode(repeat(md5(g::text), {B}), 'hex') from 1 for {L})", "16" });
+        TYPES.put("image",            new String[]{ "bytea",            "substring(decode(repeat(md5(g::text), {B}), 'hex') from 1 for {L})", "1000" });
+    }
+
+    final Config config;
+    final String outputFile;
+    final String sourceSchema;
+    final String targetSchema;
+    final List<TableSpec> specs = new ArrayList<>();
+
+    final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+    final List<GarbageCollectorMXBean> gcMXBeans = ManagementFactory.getGarbageCollectorMXBeans();
+    final Map<ProgressReporter.TableCounter, TableStats> stats = new HashMap<>();
+    long peakHeap = 0;
+
+
+    public ThroughputBenchmark(Config config, String outputFile) {
+
+        this.config = config;
+        this.outputFile = outputFile;
+
+        this.sourceSchema = ((String) config.config.getOrDefault("benchmark.source_schema", "m2pg_benchmark_source")).toLowerCase();
+        this.targetSchema = ((String) config.config.getOrDefault("benchmark.target_schema", "m2pg_benchmark")).toLowerCase();
+
+        if (!isIdentifier(sourceSchema) || !isIdentifier(targetSchema))
+            throw new IllegalArgumentException("[benchmark.source_schema] and [benchmark.target_schema] must be lower case identifiers");
+
+        if (sourceSchema.equals(targetSchema) || targetSchema.equals("public"))
+            throw new IllegalArgumentException("[benchmark.target_schema] is dropped by the benchmark, it must not be public or the source schema");
+
+        Map<String, Object> tables = (Map<String, Object>) config.config.getOrDefault("benchmark.tables", Collections.EMPTY_MAP);
+
+        if (tables.isEmpty())
+            throw new IllegalArgumentException("[benchmark.tables] is empty");
+
+        for (Map.Entry<String, Object> e : tables.entrySet())
+            specs.add(new TableSpec(e.getKey(), (Map<String, Object>) e.getValue()));
+    }
+
+
+    public static void run(Config config, String outputFile) throws Exception {
+
+        new ThroughputBenchmark(config, outputFile).run();
+    }
+
+
+    void run() throws Exception {
+
+        String sourceUrl = (String) config.connections.get(config.source).get("connectionString");
+        if (sourceUrl == null || !sourceUrl.startsWith("jdbc:postgresql:"))
+            throw new IllegalArgumentException("The benchmark generates the source tables in Postgres, the source connection must be a Postgres database");
+
+        try (Connection conSrc = config.connect(config.source)) {
+            generate(conSrc);
+        }
+
+        configure();
+
+        Schema schema = new Schema(config);
+
+        StringBuilder log = new StringBuilder(4096);
+        if (!Util.executeQueries(Arrays.asList(schema.generateDdl()), log, config))
+            throw new SQLException("Failed to create the target tables in " + targetSchema + ":\n" + log);
+
+        ProgressReporter progress = new ProgressReporter(schema);
+
+        ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "m2pg-benchmark");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        String started = ZonedDateTime.now().format(ISO_OFFSET_DATE_TIME);
+        long gcMillis = getGcMillis(), gcCount = getGcCount();
+        long tc = System.nanoTime();
+
+        sampler.scheduleAtFixedRate(() -> sample(progress), 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+        PgMigrator.doDml(schema, outputFile + ".log", false, progress);
+
+        sampler.shutdown();
+        sampler.awaitTermination(10, TimeUnit.SECONDS);
+        sample(progress);
+
+        double seconds = (System.nanoTime() - tc) / 1e9;
+
+        Map<String, Object> report = getReport(schema, progress, started, seconds, getGcMillis() - gcMillis, getGcCount() - gcCount);
+
+        Path path = Paths.get(outputFile + ".json");
+        Util.writeAtomically(path, new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(report));
+
+        System.out.println("\nSee benchmark report at " + path.toAbsolutePath() + "\n");
+    }
+
+
+    /**
+     * Creates the tables of benchmark.tables in the source schema, unless a table with the same definition
+     * exists from a previous run, and drops the other tables of the source schema
+     */
+    void generate(Connection conSrc) throws SQLException {
+
+        try (Statement stat = conSrc.createStatement()) {
+
+            stat.execute("CREATE SCHEMA IF NOT EXISTS " + sourceSchema);
+
+            List<String> existing = new ArrayList<>();
+            try (ResultSet rs = stat.executeQuery("SELECT tablename FROM pg_tables WHERE schemaname = '" + sourceSchema + "'")) {
+                while (rs.next())
+                    existing.add(rs.getString(1));
+            }
+
+            for (String tableName : existing) {
+                if (specs.stream().noneMatch(spec -> spec.name.equals(tableName)))
+                    stat.execute("DROP TABLE " + sourceSchema + "." + tableName);
+            }
+        }
+
+        for (TableSpec spec : specs) {
+
+            String fullName = sourceSchema + "." + spec.name;
+            String signature = spec.getSignature();
+
+            try (PreparedStatement stat = conSrc.prepareStatement("SELECT obj_description(to_regclass(?), 'pg_class')")) {
+
+                stat.setString(1, fullName);
+
+                try (ResultSet rs = stat.executeQuery()) {
+                    if (rs.next() && signature.equals(rs.getString(1))) {
+                        System.out.println(String.format("-- reusing %s with %,d rows", fullName, spec.rows));
+                        continue;
+                    }
+                }
+            }
+
+            System.out.println(String.format("-- generating %s with %,d rows of %d columns", fullName, spec.rows, spec.types.size()));
+
+            long tc = System.currentTimeMillis();
+
+            try (Statement stat = conSrc.createStatement()) {
+
+                stat.execute("DROP TABLE IF EXISTS " + fullName);
+                stat.execute(spec.getCreateSql(fullName));
+
+                for (int i = 0; i < spec.types.size(); i++)
+                    stat.execute("COMMENT ON COLUMN " + fullName + "." + spec.getColumnName(i) + " IS '" + spec.getBaseType(i) + "'");
+
+                stat.execute(spec.getInsertSql(fullName));
+                stat.execute("ANALYZE " + fullName);
+                stat.execute("COMMENT ON TABLE " + fullName + " IS '" + signature + "'");
+            }
+
+            System.out.println(String.format("-- generated %s in %.3f seconds", fullName, (System.currentTimeMillis() - tc) / 1000.0));
+        }
+    }
+
+
+    /**
+     * Points the config at the generated tables: the information schema query and the table size query of
+     * Postgres without keys or indexes, the quotes of Postgres, and the mapping of the source schema to the
+     * target schema, which is dropped and created by the DDL
+     */
+    void configure() {
+
+        config.config.put("information_schema.query", getInformationSchemaQuery());
+        config.config.put("information_schema.indexes_query", "");
+        config.config.put("information_schema.foreign_keys_query", "");
+
+        config.dml.put("table_size_query", "SELECT n.nspname AS TABLE_SCHEMA, c.relname AS TABLE_NAME"
+                + ", c.reltuples::bigint AS ROW_COUNT, pg_total_relation_size(c.oid) AS TOTAL_BYTES"
+                + "\nFROM pg_class c JOIN pg_namespace n ON n.oid = c.relnamespace"
+                + "\nWHERE c.relkind = 'r' AND n.nspname = '" + sourceSchema + "'");
+
+        config.dml.put("source_column_quote_prefix", "\"");
+        config.dml.put("source_column_quote_suffix", "\"");
+
+        config.schemaMapping.put(sourceSchema, targetSchema);
+
+        Map<String, Object> schemaMapping = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        schemaMapping.putAll((Map<String, Object>) config.config.getOrDefault("schema_mapping", Collections.EMPTY_MAP));
+        schemaMapping.put(sourceSchema, targetSchema);
+        config.config.put("schema_mapping", schemaMapping);
+
+        config.ddl.put("drop_schema", true);
+    }
+
+
+    /**
+     * Returns the columns of the generated tables, with the SQL Server type from the comment of the column as
+     * DATA_TYPE, and CHARACTER_MAXIMUM_LENGTH only for the char types, as SQL Server reports them
+     */
+    String getInformationSchemaQuery() {
+
+        String dataType = "COALESCE(col_description(format('%I.%I', C.table_schema, C.table_name)::regclass, C.ordinal_position::integer), C.data_type)";
+
+        return "SELECT   C.table_schema AS TABLE_SCHEMA"
+            + "\n        ,C.table_name AS TABLE_NAME"
+            + "\n        ,C.column_name AS COLUMN_NAME"
+            + "\n        ,C.ordinal_position AS ORDINAL_POSITION"
+            + "\n        ,C.is_nullable AS IS_NULLABLE"
+            + "\n        ," + dataType + " AS DATA_TYPE"
+            + "\n        ,CASE WHEN " + dataType + " LIKE '%char' THEN C.character_maximum_length END AS CHARACTER_MAXIMUM_LENGTH"
+            + "\n        ,C.numeric_precision AS NUMERIC_PRECISION"
+            + "\n        ,NULL AS COLUMN_DEFAULT"
+            + "\n        ,CASE WHEN C.is_identity = 'YES' THEN 1 ELSE 0 END AS IS_IDENTITY"
+            + "\n        ,0 AS IS_COMPUTED"
+            + "\n        ,NULL AS COLUMN_DEFINITION"
+            + "\nFROM    information_schema.columns C"
+            + "\nWHERE   C.table_schema = '" + sourceSchema + "'"
+            + "\nORDER BY C.table_name, C.ordinal_position";
+    }
+
+
+    /**
+     * Records the peak heap, and the GC time while each table is copied.  Runs on the sampler thread, and
+     * once more after the copy completed.
+     */
+    synchronized void sample(ProgressReporter progress) {
+
+        long heap = memoryMXBean.getHeapMemoryUsage().getUsed();
+        long gcMillis = getGcMillis(), gcCount = getGcCount();
+
+        peakHeap = Math.max(peakHeap, heap);
+
+        for (ProgressReporter.TableCounter counter : progress.counters.values()) {
+
+            TableStats tableStats = stats.computeIfAbsent(counter, k -> new TableStats(gcMillis, gcCount));
+
+            if (tableStats.isDone)
+                continue;
+
+            tableStats.peakHeap = Math.max(tableStats.peakHeap, heap);
+            tableStats.gcMillis = gcMillis - tableStats.gcMillisStart;
+            tableStats.gcCount = gcCount - tableStats.gcCountStart;
+            tableStats.isDone = counter.isDone;
+        }
+    }
+
+
+    long getGcMillis() {
+        return gcMXBeans.stream().mapToLong(bean -> Math.max(bean.getCollectionTime(), 0)).sum();
+    }
+
+
+    long getGcCount() {
+        return gcMXBeans.stream().mapToLong(bean -> Math.max(bean.getCollectionCount(), 0)).sum();
+    }
+
+
+    Map<String, Object> getReport(Schema schema, ProgressReporter progress, String started, double seconds, long gcMillis, long gcCount) {
+
+        Map<String, Object> result = new LinkedHashMap<>();
+
+        result.put("name", config.name);
+        result.put("started", started);
+
+        Map<String, Object> jvm = new LinkedHashMap<>();
+        jvm.put("version", System.getProperty("java.version"));
+        jvm.put("vm", System.getProperty("java.vm.name"));
+        jvm.put("max_heap_bytes", Runtime.getRuntime().maxMemory());
+        jvm.put("available_processors", Runtime.getRuntime().availableProcessors());
+        result.put("jvm", jvm);
+
+        Map<String, Object> settings = new LinkedHashMap<>();
+        for (String key : new String[]{ "method", "copy_format", "bulk_load", "batch_size", "threads", "source_concurrency", "target_concurrency", "split.threads", "pipeline.ring_size", "pipeline.encoders", "checkpoint.commit_rows" })
+            settings.put(key, config.dml.get(key));
+        result.put("dml", settings);
+
+        List<Map<String, Object>> tables = new ArrayList<>();
+        long totalRows = 0, totalBytes = 0;
+
+        try (Connection conTgt = config.connect(config.target);
+             PreparedStatement stat = conTgt.prepareStatement("SELECT pg_total_relation_size(to_regclass(?))")) {
+
+            for (ProgressReporter.TableCounter counter : progress.counters.values()) {
+
+                Table table = schema.getTable(counter.name);
+                TableStats tableStats = stats.get(counter);
+
+                long bytes = 0;
+                stat.setString(1, config.getTargetTableName(table));
+                try (ResultSet rs = stat.executeQuery()) {
+                    if (rs.next())
+                        bytes = rs.getLong(1);
+                }
+
+                long rows = counter.getRowsWritten();
+                double tableSeconds = ((counter.doneNanos > 0 ? counter.doneNanos : System.nanoTime()) - counter.startNanos) / 1e9;
+
+                Map<String, Object> entry = new LinkedHashMap<>();
+                entry.put("table", counter.name);
+                entry.put("columns", table.columns.size());
+                entry.put("rows", rows);
+                entry.put("seconds", round(tableSeconds));
+                entry.put("rows_per_second", round(rows / tableSeconds));
+                entry.put("bytes", bytes);
+                entry.put("mb_per_second", round(bytes / 1048576.0 / tableSeconds));
+                entry.put("copy_bytes", counter.getBytesWritten());
+                entry.put("peak_heap_bytes", tableStats != null ? tableStats.peakHeap : 0);
+                entry.put("gc_millis", tableStats != null ? tableStats.gcMillis : 0);
+                entry.put("gc_count", tableStats != null ? tableStats.gcCount : 0);
+                entry.put("errors", counter.getErrors());
+                entry.put("phase_seconds", counter.getPhaseSeconds());
+
+                tables.add(entry);
+
+                totalRows += rows;
+                totalBytes += bytes;
+
+                System.out.println(String.format("%-40s %,14d rows %10.3f seconds %,14.0f rows/s %10.1f MB/s"
+                        , counter.name, rows, tableSeconds, rows / tableSeconds, bytes / 1048576.0 / tableSeconds));
+            }
+        }
+        catch (SQLException ex) {
+            ex.printStackTrace();
+        }
+
+        result.put("tables", tables);
+
+        Map<String, Object> total = new LinkedHashMap<>();
+        total.put("rows", totalRows);
+        total.put("seconds", round(seconds));
+        total.put("rows_per_second", round(totalRows / seconds));
+        total.put("bytes", totalBytes);
+        total.put("mb_per_second", round(totalBytes / 1048576.0 / seconds));
+        total.put("peak_heap_bytes", peakHeap);
+        total.put("gc_millis", gcMillis);
+        total.put("gc_count", gcCount);
+        total.put("errors", progress.getErrors());
+        result.put("total", total);
+
+        System.out.println(String.format("%-40s %,14d rows %10.3f seconds %,14.0f rows/s %10.1f MB/s"
+                , "total", totalRows, seconds, totalRows / seconds, totalBytes / 1048576.0 / seconds));
+
+        return result;
+    }
+
+
+    static double round(double value) {
+        return Math.round(value * 1000) / 1000.0;
+    }
+
+
+    static boolean isIdentifier(String name) {
+        return name.matches("[a-z_][a-z0-9_]*");
+    }
+
+
+    /**
+     * A table of benchmark.tables, e.g. { "rows": 1000000, "width": 8, "types": ["int", "nvarchar(100)"] }
+     * where the types are repeated until the table has width columns, after the identity column id
+     */
+    static class TableSpec {
+
+        final String name;
+        final long rows;
+        final int nullPercent;
+        final List<String> types = new ArrayList<>();
+
+        TableSpec(String name, Map<String, Object> spec) {
+
+            this.name = name.toLowerCase();
+
+            if (!isIdentifier(this.name))
+                throw new IllegalArgumentException("[benchmark.tables] " + name + " is not a lower case identifier");
+
+            this.rows = getLong(spec, "rows", 100_000);
+            this.nullPercent = (int) getLong(spec, "null_percent", 0);
+
+            Object typesArg = spec.getOrDefault("types", "int,nvarchar,datetime,decimal");
+            List<String> typeList = (typesArg instanceof List)
+                    ? (List<String>) typesArg
+                    : Arrays.asList(typesArg.toString().split(",(?![^(]*\\))"));
+
+            typeList = typeList.stream().map(String::trim).filter(s -> !s.isEmpty()).collect(Collectors.toList());
+
+            for (String type : typeList) {
+                if (!TYPES.containsKey(getBaseType(type)))
+                    throw new IllegalArgumentException("[benchmark.tables] " + name + " has an unsupported type " + type + ", supported types are " + TYPES.keySet());
+            }
+
+            int width = (int) getLong(spec, "width", typeList.size() + 1);
+
+            types.add("bigint");    // the identity column
+            for (int i = 1; i < width; i++)
+                types.add(typeList.get((i - 1) % typeList.size()).toLowerCase());
+        }
+
+
+        static long getLong(Map<String, Object> spec, String key, long defaultValue) {
+
+            Object value = spec.get(key);
+
+            if (value instanceof Number)
+                return ((Number) value).longValue();
+
+            if (value instanceof String && !((String) value).isEmpty())
+                return Long.parseLong((String) value);
+
+            return defaultValue;
+        }
+
+
+        static String getBaseType(String type) {
+
+            int pos = type.indexOf('(');
+
+            return (pos == -1 ? type : type.substring(0, pos)).trim().toLowerCase();
+        }
+
+
+        String getBaseType(int i) {
+            return getBaseType(types.get(i));
+        }
+
+
+        String getColumnName(int i) {
+            return (i == 0) ? "id" : "c" + i + "_" + getBaseType(i);
+        }
+
+
+        /**
+         * Returns the length of the type, e.g. 100 for nvarchar(100), or the default length of the type
+         */
+        int getLength(int i) {
+
+            String type = types.get(i);
+            int pos = type.indexOf('(');
+
+            if (pos == -1)
+                return Integer.parseInt(TYPES.get(getBaseType(i))[2]);
+
+            return Integer.parseInt(type.substring(pos + 1, type.indexOf(')', pos)).trim());
+        }
+
+
+        String expand(String template, int i) {
+
+            int length = getLength(i);
+
+            return template
+                    .replace("{L}", String.valueOf(length))
+                    .replace("{R}", String.valueOf(length / 32 + 1))
+                    .replace("{B}", String.valueOf(length / 16 + 1));
+        }
+
+
+        String getCreateSql(String fullName) {
+
+            StringBuilder sb = new StringBuilder("CREATE TABLE " + fullName + " (\n\t id bigint GENERATED BY DEFAULT AS IDENTITY PRIMARY KEY");
+
+            for (int i = 1; i < types.size(); i++)
+                sb.append("\n\t,").append(getColumnName(i)).append(' ').append(expand(TYPES.get(getBaseType(i))[0], i));
+
+            return sb.append("\n)").toString();
+        }
+
+
+        String getInsertSql(String fullName) {
+
+            List<String> columns = new ArrayList<>();
+            List<String> values = new ArrayList<>();
+
+            for (int i = 0; i < types.size(); i++) {
+
+                columns.add(getColumnName(i));
+
+                String value = (i == 0) ? "g" : expand(TYPES.get(getBaseType(i))[1], i);
+
+                if (i > 0 && nullPercent > 0)
+                    value = "CASE WHEN (g + " + i + ") % 100 < " + nullPercent + " THEN NULL ELSE " + value + " END";
+
+                values.add(value);
+            }
+
+            return "INSERT INTO " + fullName + " (" + String.join(", ", columns) + ")"
+                    + "\nSELECT " + String.join("\n\t,", values)
+                    + "\nFROM generate_series(1, " + rows + ") AS g";
+        }
+
+
+        /**
+         * Returns the definition of the table, which is stored in the comment of the generated table so
+         * that the table is generated again only if its definition changed
+         */
+        String getSignature() {
+            return "m2pg benchmark " + rows + " rows, " + nullPercent + "% nulls, " + types;
+        }
+    }
+
+
+    static class TableStats {
+
+        final long gcMillisStart;
+        final long gcCountStart;
+        long gcMillis = 0;
+        long gcCount = 0;
+        long peakHeap = 0;
+        boolean isDone = false;
+
+        TableStats(long gcMillisStart, long gcCountStart) {
+            this.gcMillisStart = gcMillisStart;
+            this.gcCountStart = gcCountStart;
+        }
+    }
+}
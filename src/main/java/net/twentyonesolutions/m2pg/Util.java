@@ -11,6 +11,7 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.ResultSet;
@@ -281,9 +282,9 @@ public class Util {
 
     public static boolean executeQueries(List<String> queries, StringBuilder log, Config config) {
 
-        try {
+        try (Connection conTgt = config.connect(config.target)) {
 
-            return executeQueries(queries, log, config.connect(config.target));
+            return executeQueries(queries, log, conTgt);
         }
         catch (SQLException ex){
             ex.printStackTrace();
@@ -294,11 +295,11 @@ public class Util {
 
 
     public static long selectLong(String qSelect, Connection conSrc) throws SQLException {
-        Statement statSrc = conSrc.createStatement();
-        ResultSet rs;
-        rs = statSrc.executeQuery(qSelect);
-        rs.next();
-        return rs.getLong(1);
+        try (Statement statSrc = conSrc.createStatement();
+             ResultSet rs = statSrc.executeQuery(qSelect)) {
+            rs.next();
+            return rs.getLong(1);
+        }
     }
 
 
@@ -308,6 +309,18 @@ public class Util {
     }
 
 
+    /**
+     * Writes the content to a temporary file that then replaces the file, so that the file is complete even
+     * if the process is killed while writing
+     */
+    public static void writeAtomically(Path path, String content) throws IOException {
+
+        Path temp = Paths.get(path.toString() + ".tmp");
+        Files.write(temp, content.getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+
     public static Map<String, Object> flattenAndPopulate(Map<String, Object> config) {
 
         Map<String, Object> result = flattenKeys(config);